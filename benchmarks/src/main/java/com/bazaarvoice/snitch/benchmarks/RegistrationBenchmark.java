@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.benchmarks;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.naming.DefaultNamingStrategy;
+import com.bazaarvoice.snitch.scanner.AnnotationScanner;
+import com.bazaarvoice.snitch.util.ReflectionClassDetector;
+import com.bazaarvoice.snitch.variables.VariableRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of registering instances with a {@link VariableRegistry}, from a single thread and from as
+ * many threads as there are cores.  Registration doesn't take any locks once the class of the instances is known, so
+ * the throughput of the {@code contended} benchmarks should grow with the number of cores rather than stay flat.
+ * <p/>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar RegistrationBenchmark}.  Registered instances are only
+ * weakly referenced, so they're collected as the benchmark goes and the registry doesn't grow without bound.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistrationBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    private VariableRegistry _registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        _registry = new VariableRegistry(Monitored.class, new CounterScanner(), DefaultNamingStrategy.INSTANCE,
+                new ReflectionClassDetector());
+
+        // Find the counter class up front, so that only registration itself is measured
+        _registry.getVariables();
+        _registry.registerInstance(new Counter());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Counter registerSingle() {
+        return register();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Counter registerContended() {
+        return register();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Counter> registerBulkSingle() {
+        return registerBatch();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Counter> registerBulkContended() {
+        return registerBatch();
+    }
+
+    private Counter register() {
+        Counter counter = new Counter();
+        _registry.registerInstance(counter);
+        return counter;
+    }
+
+    private List<Counter> registerBatch() {
+        List<Counter> counters = Lists.newArrayListWithCapacity(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            counters.add(new Counter());
+        }
+        _registry.registerInstances(counters);
+        return counters;
+    }
+
+    /** A class with a typical mix of monitored members. */
+    public static class Counter {
+        @Monitored("requests") public long requests;
+        @Monitored("errors") public long errors;
+
+        @Monitored("errorRate")
+        public double errorRate() {
+            return (requests != 0) ? (double) errors / requests : 0;
+        }
+    }
+
+    /** Finds the members of {@link Counter} without scanning the class path. */
+    private static class CounterScanner implements AnnotationScanner {
+        @Override
+        public void addAnnotationClass(Class<? extends Annotation> annotationClass) {
+        }
+
+        @Override
+        public List<ClassEntry> getClassesAnnotatedWith(Class<? extends Annotation> annotationClass) {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public List<MethodEntry> getMethodsAnnotatedWith(Class<? extends Annotation> annotationClass) {
+            return ImmutableList.<MethodEntry>of(new MethodEntry() {
+                @Override
+                public String getClassName() {
+                    return Counter.class.getName();
+                }
+
+                @Override
+                public String getMethodName() {
+                    return "errorRate";
+                }
+            });
+        }
+
+        @Override
+        public List<FieldEntry> getFieldsAnnotatedWith(Class<? extends Annotation> annotationClass) {
+            return ImmutableList.of(field("requests"), field("errors"));
+        }
+
+        private static FieldEntry field(final String fieldName) {
+            return new FieldEntry() {
+                @Override
+                public String getClassName() {
+                    return Counter.class.getName();
+                }
+
+                @Override
+                public String getFieldName() {
+                    return fieldName;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.benchmarks;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.AnnotationScanner;
+import com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to find every {@link Monitored} field of a synthetic class path, for each of the
+ * {@link AnnotationScanner} implementations.  Every invocation creates a new scanner and forgets the results that
+ * scanners share with each other, so nothing is remembered from one scan to the next.  The exceptions are the
+ * {@code cached} scanner whose on-disk cache is populated during setup, and the {@code shared} scanner which measures
+ * re-initializing Snitch after the class path has already been scanned once.
+ * <p/>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar ScanBenchmark -prof gc} to see the allocation rate per
+ * scan alongside the scan time.  The peak heap used while scanning is reported as the {@code peakHeapBytes} counter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+    /** The number of classes on the class path. */
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    /** The fraction of fields that are annotated. */
+    @Param({"0.01", "0.1"})
+    public double annotationDensity;
+
+    /** How many levels of packages the classes are spread over. */
+    @Param({"1", "3"})
+    public int nesting;
+
+    /** Whether the classes are in a {@code jar} or a {@code directory}. */
+    @Param({"jar", "directory"})
+    public String layout;
+
+    /** The scanner to measure: {@code serial}, {@code parallel}, {@code cached}, {@code shared} or {@code index}. */
+    @Param({"serial", "parallel", "cached", "shared", "index"})
+    public String scanner;
+
+    private File _tempDir;
+    private File _cacheFile;
+    private ClassLoader _loader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        _tempDir = Files.createTempDir();
+        _cacheFile = new File(_tempDir, "scan.cache");
+
+        SyntheticClassPath classPath = new SyntheticClassPath(classCount, annotationDensity, nesting);
+        File unit = "jar".equals(layout) ? classPath.writeJar(_tempDir) : classPath.writeDirectory(_tempDir);
+        _loader = new URLClassLoader(new URL[] {unit.toURI().toURL()}, getClass().getClassLoader());
+
+        if ("cached".equals(scanner) || "shared".equals(scanner)) {
+            // Populate the cache, every measured scan should find up to date results in it
+            scan(new HeapCounters());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        delete(_tempDir);
+    }
+
+    @Benchmark
+    public List<AnnotationScanner.FieldEntry> scan(HeapCounters heap) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(_loader);
+        try {
+            if (!"shared".equals(scanner)) {
+                ClassPathAnnotationScanner.clearSharedResults();
+            }
+            AnnotationScanner annotationScanner = newScanner();
+            annotationScanner.addAnnotationClass(Monitored.class);
+            List<AnnotationScanner.FieldEntry> fields = annotationScanner.getFieldsAnnotatedWith(Monitored.class);
+            heap.record();
+            return fields;
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private AnnotationScanner newScanner() {
+        if ("serial".equals(scanner)) {
+            return new ClassPathAnnotationScanner(1, SyntheticClassPath.ROOT_PACKAGE);
+        } else if ("parallel".equals(scanner)) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            return new ClassPathAnnotationScanner(threads, SyntheticClassPath.ROOT_PACKAGE);
+        } else if ("cached".equals(scanner)) {
+            return new ClassPathAnnotationScanner(1, _cacheFile, SyntheticClassPath.ROOT_PACKAGE);
+        } else if ("shared".equals(scanner)) {
+            return new ClassPathAnnotationScanner(1, SyntheticClassPath.ROOT_PACKAGE);
+        } else if ("index".equals(scanner)) {
+            return new IndexAnnotationScanner(SyntheticClassPath.ROOT_PACKAGE);
+        }
+        throw new IllegalArgumentException("Unknown scanner: " + scanner);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Tracks the peak heap usage during an iteration.  The peaks of the individual heap pools are added together, so
+     * this is an upper bound when the pools peaked at different times.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapCounters {
+        public long peakHeapBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+            peakHeapBytes = 0;
+        }
+
+        void record() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapBytes = Math.max(peakHeapBytes, peak);
+        }
+    }
+}
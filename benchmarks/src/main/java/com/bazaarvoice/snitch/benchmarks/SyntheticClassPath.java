@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.benchmarks;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a class path of synthetic class files to scan, either as a jar or as a class directory.  Every class has
+ * the same number of {@code int} fields, a fraction of which are annotated with {@link Monitored}.  Classes are spread
+ * over a tree of packages that is {@code nesting} levels deep below {@link #ROOT_PACKAGE}.
+ * <p/>
+ * An index of the annotated fields is written alongside the classes so that the index based scanner finds the same
+ * fields as the bytecode scanners.  The classes are never loaded, so they only need to be well formed enough to be
+ * scanned: they have no methods, not even a constructor.
+ */
+final class SyntheticClassPath {
+    static final String ROOT_PACKAGE = "snitchbench";
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int JAVA_6_VERSION = 50;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int FIELDS_PER_CLASS = 10;
+    private static final int PACKAGES_PER_LEVEL = 10;
+    private static final String MONITORED_DESCRIPTOR = "L" + Monitored.class.getName().replace('.', '/') + ";";
+
+    private final int _classCount;
+    private final double _annotationDensity;
+    private final int _nesting;
+
+    /** Seeded so that every run of a benchmark scans exactly the same classes. */
+    private final Random _random = new Random(42);
+
+    SyntheticClassPath(int classCount, double annotationDensity, int nesting) {
+        _classCount = classCount;
+        _annotationDensity = annotationDensity;
+        _nesting = nesting;
+    }
+
+    /** Write the classes into a new jar and return it. */
+    File writeJar(File dir) throws IOException {
+        File jar = new File(dir, "synthetic.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            StringBuilder index = new StringBuilder();
+            Set<String> directories = Sets.newHashSet();
+            for (int i = 0; i < _classCount; i++) {
+                String internalName = internalName(i);
+
+                // Like jars built by the jar tool, have an entry for every directory so packages can be looked up
+                String directory = internalName.substring(0, internalName.lastIndexOf('/') + 1);
+                for (int end = directory.indexOf('/'); end >= 0; end = directory.indexOf('/', end + 1)) {
+                    if (directories.add(directory.substring(0, end + 1))) {
+                        out.putNextEntry(new ZipEntry(directory.substring(0, end + 1)));
+                        out.closeEntry();
+                    }
+                }
+
+                out.putNextEntry(new ZipEntry(internalName + ".class"));
+                out.write(classFile(internalName, index));
+                out.closeEntry();
+            }
+
+            out.putNextEntry(new ZipEntry(IndexAnnotationScanner.INDEX_RESOURCE));
+            out.write(index.toString().getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+        return jar;
+    }
+
+    /** Write the classes into a new class directory and return it. */
+    File writeDirectory(File dir) throws IOException {
+        File root = new File(dir, "classes");
+        StringBuilder index = new StringBuilder();
+        for (int i = 0; i < _classCount; i++) {
+            String internalName = internalName(i);
+            File file = new File(root, internalName + ".class");
+            Files.createParentDirs(file);
+            Files.write(classFile(internalName, index), file);
+        }
+
+        File indexFile = new File(root, IndexAnnotationScanner.INDEX_RESOURCE);
+        Files.createParentDirs(indexFile);
+        Files.write(index.toString(), indexFile, Charsets.UTF_8);
+        return root;
+    }
+
+    private String internalName(int classNumber) {
+        StringBuilder name = new StringBuilder(ROOT_PACKAGE);
+        int remaining = classNumber;
+        for (int level = 0; level < _nesting; level++) {
+            name.append("/p").append(remaining % PACKAGES_PER_LEVEL);
+            remaining /= PACKAGES_PER_LEVEL;
+        }
+        return name.append("/C").append(classNumber).toString();
+    }
+
+    /** Build a class file, adding an index line for every annotated field. */
+    private byte[] classFile(String internalName, StringBuilder index) throws IOException {
+        boolean[] annotated = new boolean[FIELDS_PER_CLASS];
+        boolean anyAnnotated = false;
+        for (int i = 0; i < FIELDS_PER_CLASS; i++) {
+            annotated[i] = _random.nextDouble() < _annotationDensity;
+            anyAnnotated |= annotated[i];
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(0);
+        out.writeShort(JAVA_6_VERSION);
+
+        // Constant pool.  Like real classes, only the ones that use the annotation mention its descriptor.
+        int firstFieldName = anyAnnotated ? 8 : 6;
+        out.writeShort(firstFieldName + FIELDS_PER_CLASS);
+        utf8(out, internalName);                          // 1
+        classRef(out, 1);                                 // 2
+        utf8(out, "java/lang/Object");                    // 3
+        classRef(out, 3);                                 // 4
+        utf8(out, "I");                                   // 5
+        if (anyAnnotated) {
+            utf8(out, "RuntimeVisibleAnnotations");       // 6
+            utf8(out, MONITORED_DESCRIPTOR);              // 7
+        }
+        for (int i = 0; i < FIELDS_PER_CLASS; i++) {
+            utf8(out, "field" + i);                       // firstFieldName + i
+        }
+
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(2);  // this class
+        out.writeShort(4);  // super class
+        out.writeShort(0);  // interfaces
+
+        out.writeShort(FIELDS_PER_CLASS);
+        String className = internalName.replace('/', '.');
+        for (int i = 0; i < FIELDS_PER_CLASS; i++) {
+            out.writeShort(ACC_PUBLIC | ACC_STATIC);
+            out.writeShort(firstFieldName + i);
+            out.writeShort(5);
+            if (annotated[i]) {
+                out.writeShort(1);
+                out.writeShort(6);  // RuntimeVisibleAnnotations
+                out.writeInt(6);    // attribute length
+                out.writeShort(1);  // one annotation...
+                out.writeShort(7);  // ...of type Monitored...
+                out.writeShort(0);  // ...with no values
+                index.append(IndexAnnotationScanner.FIELD_KIND).append(' ').append(Monitored.class.getName())
+                     .append(' ').append(className).append(" field").append(i).append('\n');
+            } else {
+                out.writeShort(0);
+            }
+        }
+
+        out.writeShort(0);  // methods
+        out.writeShort(0);  // attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void utf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(value);
+    }
+
+    private static void classRef(DataOutputStream out, int nameIndex) throws IOException {
+        out.writeByte(CONSTANT_CLASS);
+        out.writeShort(nameIndex);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch;
+
+/**
+ * How the values of a {@link Monitored} instance field or method are combined across every registered instance that
+ * has a variable with the same name.  Aggregated variables are exposed as one variable per name instead of one per
+ * instance.
+ */
+public enum Aggregate {
+    /** Every instance has a variable of its own. */
+    NONE,
+
+    /** The sum of the numeric values. */
+    SUM,
+
+    /** The smallest of the numeric values, or {@code null} when there aren't any. */
+    MIN,
+
+    /** The largest of the numeric values, or {@code null} when there aren't any. */
+    MAX,
+
+    /** The mean of the numeric values as a {@code double}, or {@code null} when there aren't any. */
+    AVG,
+
+    /** The number of registered instances, without reading any of their values. */
+    COUNT
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch;
+
+/**
+ * How expensive it is to read the value of a {@link Monitored} field or method.  Scrapes ask for the variables up to a
+ * cost, {@link #NORMAL} unless they say otherwise, so variables that are expensive to read are only read when a scrape
+ * asks for them.
+ */
+public enum Cost {
+    /** Trivial to read, for example a field.  Suitable for very frequent scrapes. */
+    CHEAP,
+
+    /** The default, included in every scrape that doesn't limit itself to cheap variables. */
+    NORMAL,
+
+    /** Only read when a scrape asks for expensive variables, or names the variable. */
+    EXPENSIVE;
+
+    /** Whether or not a variable of this cost is included in a scrape for variables up to {@code maxCost}. */
+    public boolean isAtMost(Cost maxCost) {
+        return compareTo(maxCost) <= 0;
+    }
+}
@@ -29,4 +29,13 @@ import java.lang.annotation.Target;
 @Target({ElementType.FIELD, ElementType.METHOD})
 public @interface Monitored {
     String value() default "";
+
+    /**
+     * How to combine the values of the instances of a non-static element into a single variable.  Ignored for static
+     * elements, which only ever have one value.
+     */
+    Aggregate aggregate() default Aggregate.NONE;
+
+    /** How expensive the element is to read.  Expensive elements are left out of scrapes unless they're asked for. */
+    Cost cost() default Cost.NORMAL;
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch;
+
+import java.io.Closeable;
+
+/**
+ * The registration of one or more instances, returned when they're registered.  Instances are only weakly referenced
+ * and are forgotten once they're garbage collected, closing the registration removes their variables right away
+ * instead, for example when a pooled object is shut down but is still reachable.
+ */
+public interface Registration extends Closeable {
+    /** Remove the variables of the registered instances.  Closing a registration more than once has no effect. */
+    @Override
+    void close();
+}
@@ -17,20 +17,27 @@ package com.bazaarvoice.snitch;
 
 import com.bazaarvoice.snitch.config.Configuration;
 import com.bazaarvoice.snitch.config.DefaultConfiguration;
+import com.bazaarvoice.snitch.config.ScanConfiguration;
 import com.bazaarvoice.snitch.formatters.DefaultFormatter;
 import com.bazaarvoice.snitch.formatters.FormatterRegistry;
 import com.bazaarvoice.snitch.naming.DefaultNamingStrategy;
 import com.bazaarvoice.snitch.naming.NamingStrategy;
 import com.bazaarvoice.snitch.scanner.AnnotationScanner;
 import com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner;
+import com.bazaarvoice.snitch.scanner.ScanFilter;
 import com.bazaarvoice.snitch.variables.VariableRegistry;
+import com.bazaarvoice.snitch.variables.VariableSnapshot;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 
 public class Snitch {
     private static final Class<? extends Annotation> DEFAULT_ANNOTATION_CLASS = Monitored.class;
@@ -66,18 +73,18 @@ public class Snitch {
 
     @SuppressWarnings("unchecked")
     private Snitch(Configuration config) throws Exception {
-        AnnotationScanner annotationScanner;
-        List<String> packagesToScan = config.getPackagesToScan();
-        if (packagesToScan != null && !packagesToScan.isEmpty()) {
-            String[] packages = packagesToScan.toArray(new String[packagesToScan.size()]);
-            annotationScanner = new ClassPathAnnotationScanner(packages);
-        } else {
-            annotationScanner = new ClassPathAnnotationScanner();
-        }
+        // Jars and class directories with an index generated at build time are read from it, the rest are scanned
+        AnnotationScanner annotationScanner = newAnnotationScanner(config);
 
         Class<? extends Annotation> annotationClass = loadAnnotationClass(config);
         NamingStrategy<? extends Annotation> namingStrategy = loadNamingStrategy(config);
         _variableRegistry = new VariableRegistry(annotationClass, annotationScanner, namingStrategy);
+        for (VariableProvider provider : ServiceLoader.load(VariableProvider.class)) {
+            _variableRegistry.registerProvider(provider);
+        }
+        if (config instanceof ScanConfiguration && ((ScanConfiguration) config).isBackgroundScan()) {
+            _variableRegistry.scanInBackground();
+        }
 
         Formatter defaultFormatter = loadDefaultFormatter(config);
         _formatterRegistry = new FormatterRegistry(defaultFormatter);
@@ -89,23 +96,117 @@ public class Snitch {
         }
     }
     
+    /** Return the variables, leaving out the {@link Cost#EXPENSIVE} ones. */
     public Iterable<Variable> getVariables() {
         return _variableRegistry.getVariables();
     }
+
+    /** Return the variables that cost at most {@code maxCost} to read. */
+    public Iterable<Variable> getVariables(Cost maxCost) {
+        return _variableRegistry.getVariables(maxCost);
+    }
+
+    /**
+     * Return an immutable snapshot of the variables that {@link #getVariables()} returns.  Its version only changes
+     * when variables appear or go away, so anything derived from a snapshot can be reused until the version changes.
+     */
+    public VariableSnapshot getSnapshot() {
+        return _variableRegistry.getSnapshot();
+    }
+
+    /** Return the variables whose name is {@code prefix} or starts with {@code prefix} followed by a dot. */
+    public Iterable<Variable> getVariables(String prefix) {
+        return _variableRegistry.getVariables(prefix);
+    }
+
+    /** Return the variables whose name starts with {@code prefix} that cost at most {@code maxCost} to read. */
+    public Iterable<Variable> getVariables(String prefix, Cost maxCost) {
+        return _variableRegistry.getVariables(prefix, maxCost);
+    }
+
+    /**
+     * Return the variables whose name matches a glob.  {@code *} and {@code ?} match within a component of a dotted
+     * name, and {@code **} matches any number of components.
+     */
+    public Iterable<Variable> getVariablesMatching(String glob) {
+        return _variableRegistry.getVariablesMatching(glob);
+    }
+
+    /** Return the variables whose name matches a glob that cost at most {@code maxCost} to read. */
+    public Iterable<Variable> getVariablesMatching(String glob, Cost maxCost) {
+        return _variableRegistry.getVariablesMatching(glob, maxCost);
+    }
+
+    /** Return the variables with exactly the name {@code name}, whatever they cost to read. */
+    public Iterable<Variable> getVariablesNamed(String name) {
+        return _variableRegistry.getVariablesNamed(name);
+    }
     
+    /**
+     * Return a future that completes once the class path has been scanned.  When scanning in the background the
+     * variables returned before then may be incomplete.
+     */
+    public ListenableFuture<Void> getReadyFuture() {
+        return _variableRegistry.getScanFuture();
+    }
+
+    /**
+     * Return the number of class loaders that variables have been found in and that haven't been unloaded.  On an app
+     * server that redeploys applications this should stay flat, growth means old applications aren't being unloaded.
+     */
+    public int getLivePartitionCount() {
+        return _variableRegistry.getLivePartitionCount();
+    }
+
     public Formatter<?> getFormatter(Variable variable) {
         Class<?> cls = variable.getType();
         return _formatterRegistry.getFormatter(cls);
     }
     
-    public void registerInstance(Object instance) {
-        _variableRegistry.registerInstance(instance);
+    /**
+     * Register an instance with non-static annotated fields or methods.  Closing the returned registration removes its
+     * variables, otherwise they go away once the instance is garbage collected.
+     */
+    public Registration registerInstance(Object instance) {
+        return _variableRegistry.registerInstance(instance);
+    }
+
+    /** Register several instances at once, cheaper than registering them one at a time. */
+    public Registration registerInstances(Iterable<?> instances) {
+        return _variableRegistry.registerInstances(instances);
+    }
+
+    /**
+     * Register a provider of variables that don't come from annotated fields or methods.  Closing the returned
+     * registration removes the provider.
+     */
+    public Registration registerProvider(VariableProvider provider) {
+        return _variableRegistry.registerProvider(provider);
     }
 
     public <T> void registerFormatter(Class<T> cls, Formatter<T> formatter) {
         _formatterRegistry.registerFormatter(cls, formatter);
     }
 
+    /** Create the scanner, with the defaults of a plain {@link Configuration} for what it doesn't configure. */
+    private static AnnotationScanner newAnnotationScanner(Configuration config) {
+        List<String> packagesToScan = nullToEmpty(config.getPackagesToScan());
+        if (!(config instanceof ScanConfiguration)) {
+            return new ClassPathAnnotationScanner(1, null, new ScanFilter(packagesToScan));
+        }
+
+        ScanConfiguration scanConfig = (ScanConfiguration) config;
+        String cacheFile = scanConfig.getScanCacheFile();
+        ScanFilter filter = new ScanFilter(packagesToScan, nullToEmpty(scanConfig.getPackagesToExclude()),
+                nullToEmpty(scanConfig.getJarsToScan()), nullToEmpty(scanConfig.getJarsToExclude()));
+        return new ClassPathAnnotationScanner(scanConfig.getScanThreads(),
+                (cacheFile != null) ? new File(cacheFile) : null, filter);
+    }
+
+    private static List<String> nullToEmpty(List<String> list) {
+        return (list != null) ? list : Collections.<String>emptyList();
+    }
+
     private static Class<? extends Annotation> loadAnnotationClass(Configuration config) throws ClassNotFoundException {
         String className = config.getAnnotationClassName();
         if (className != null) {
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch;
+
+/**
+ * Supplies variables that aren't annotated fields or methods, for example one variable per shard of a data store whose
+ * shards come and go.  Providers are either registered with {@link Snitch#registerProvider(VariableProvider)} or are
+ * found with {@link java.util.ServiceLoader} when Snitch is initialized, by listing them in a
+ * {@code META-INF/services/com.bazaarvoice.snitch.VariableProvider} file.
+ * <p/>
+ * Variables are asked for every time the variables are scraped, and are used as is.  Nothing is looked up
+ * reflectively and no classes are probed for.
+ */
+public interface VariableProvider {
+    /**
+     * Return the variables currently provided.  Return the same variable objects for as long as the set of variables
+     * doesn't change, snapshots of the variables are only taken again when it has changed.
+     */
+    Iterable<Variable> getVariables();
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.agent;
+
+/** Callback that {@link SnitchAgent} invokes whenever the JVM defines a new class. */
+public interface ClassDefinitionListener {
+    /**
+     * Called while a class is being defined, before the class object is available.  Implementations must be fast and
+     * must not try to load any classes themselves.
+     */
+    void classDefined(String className, ClassLoader loader);
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Optional java agent that tells Snitch about classes as the JVM defines them.  Without the agent, Snitch has to poll
+ * the class loader to find out whether the classes that contain monitored members have been loaded yet.  With it, the
+ * classes are reported as they're loaded and no polling is needed.
+ * <p/>
+ * Enable it by starting the JVM with {@code -javaagent:/path/to/snitch-core.jar}.  The agent never modifies any class.
+ */
+public final class SnitchAgent {
+    private static volatile Instrumentation _instrumentation;
+
+    /**
+     * The registered listeners.  They are held weakly so that a listener doesn't keep whatever created it alive
+     * forever, it's up to the owner of a listener to keep a strong reference to it for as long as it's interested in
+     * events.
+     */
+    private static final List<WeakReference<ClassDefinitionListener>> _listeners =
+            new CopyOnWriteArrayList<WeakReference<ClassDefinitionListener>>();
+
+    private SnitchAgent() {}
+
+    public static void premain(String args, Instrumentation instrumentation) {
+        install(instrumentation);
+    }
+
+    public static void agentmain(String args, Instrumentation instrumentation) {
+        install(instrumentation);
+    }
+
+    /** Determine whether or not the agent has been installed in this JVM. */
+    public static boolean isInstalled() {
+        return _instrumentation != null;
+    }
+
+    /**
+     * Return the classes that {@code loader} has defined or that have been loaded through it, or none if the agent
+     * isn't installed.  Unlike asking the class loader itself this never loads a class, not even one that is still
+     * being defined.
+     */
+    public static Class<?>[] getInitiatedClasses(ClassLoader loader) {
+        Instrumentation instrumentation = _instrumentation;
+        return (instrumentation != null) ? instrumentation.getInitiatedClasses(loader) : new Class<?>[0];
+    }
+
+    /** Return every class loaded in the JVM, or none if the agent isn't installed.  This never loads a class. */
+    public static Class<?>[] getAllLoadedClasses() {
+        Instrumentation instrumentation = _instrumentation;
+        return (instrumentation != null) ? instrumentation.getAllLoadedClasses() : new Class<?>[0];
+    }
+
+    public static void addListener(ClassDefinitionListener listener) {
+        removeListener(null);  // Clean out any listeners that have been garbage collected
+        _listeners.add(new WeakReference<ClassDefinitionListener>(listener));
+    }
+
+    public static void removeListener(ClassDefinitionListener listener) {
+        for (WeakReference<ClassDefinitionListener> reference : _listeners) {
+            ClassDefinitionListener existing = reference.get();
+            if (existing == null || existing == listener) {
+                _listeners.remove(reference);
+            }
+        }
+    }
+
+    private static synchronized void install(Instrumentation instrumentation) {
+        if (_instrumentation != null) {
+            return;
+        }
+
+        instrumentation.addTransformer(new Transformer());
+        _instrumentation = instrumentation;
+    }
+
+    private static final class Transformer implements ClassFileTransformer {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            // Only newly defined classes are interesting, redefinitions don't change which members exist
+            if (className == null || classBeingRedefined != null || _listeners.isEmpty()) {
+                return null;
+            }
+
+            String name = className.replace('/', '.');
+            for (WeakReference<ClassDefinitionListener> reference : _listeners) {
+                ClassDefinitionListener listener = reference.get();
+                if (listener != null) {
+                    try {
+                        listener.classDefined(name, loader);
+                    } catch (RuntimeException e) {
+                        // Never let a listener interfere with class loading
+                    }
+                }
+            }
+
+            // We never change the class
+            return null;
+        }
+    }
+}
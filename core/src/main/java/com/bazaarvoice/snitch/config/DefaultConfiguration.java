@@ -49,6 +49,12 @@ import java.util.Properties;
  *     <tr><td>naming-strategy-class</td><td>Fully qualified class name of the naming strategy class to use</td></tr>
  *     <tr><td>default-formatter-class</td><td>Fully qualified name of the default formatter to use</td></tr>
  *     <tr><td>packages</td><td>Comma separated list of packages that should be scanned</td></tr>
+ *     <tr><td>exclude-packages</td><td>Comma separated list of packages that should not be scanned</td></tr>
+ *     <tr><td>jars</td><td>Comma separated list of jar file name globs that should be scanned, e.g. app-*.jar</td></tr>
+ *     <tr><td>exclude-jars</td><td>Comma separated list of jar file name globs that should not be scanned</td></tr>
+ *     <tr><td>scan-threads</td><td>Number of threads to scan the classpath with, defaults to 1</td></tr>
+ *     <tr><td>scan-cache-file</td><td>File to cache classpath scan results in between runs</td></tr>
+ *     <tr><td>background-scan</td><td>Whether to scan the classpath on a background thread, defaults to false</td></tr>
  * </table>
  *
  * <table>
@@ -59,7 +65,7 @@ import java.util.Properties;
  *     <tr>Fully qualified class name<td>Fully qualified class name of the formatter class to use</td></tr>
  * </table>
  */
-public class DefaultConfiguration implements Configuration {
+public class DefaultConfiguration implements ScanConfiguration {
     private static final String CORE_CONFIGURATION_FILENAME = "META-INF/snitch.properties";
     private static final String FORMATTER_CONFIGURATION_FILENAME = "META-INF/snitch-formatters.properties";
     private static final Splitter COMMA_SEPARATOR = Splitter.on(',').omitEmptyStrings().trimResults();
@@ -68,6 +74,12 @@ public class DefaultConfiguration implements Configuration {
     private final String _namingStrategyClassName;
     private final String _defaultFormatterClassName;
     private final ImmutableList<String> _packagesToScan;
+    private final ImmutableList<String> _packagesToExclude;
+    private final ImmutableList<String> _jarsToScan;
+    private final ImmutableList<String> _jarsToExclude;
+    private final int _scanThreads;
+    private final String _scanCacheFile;
+    private final boolean _backgroundScan;
     private final ImmutableMap<String, String> _formatterClassNames;
 
     public DefaultConfiguration() throws IOException {
@@ -81,10 +93,14 @@ public class DefaultConfiguration implements Configuration {
         _namingStrategyClassName = coreProperties.getProperty("naming-strategy-class");
         _defaultFormatterClassName = coreProperties.getProperty("default-formatter-class");
 
-        String packages = coreProperties.getProperty("packages");
-        _packagesToScan = (packages != null)
-                ? ImmutableList.<String>builder().addAll(COMMA_SEPARATOR.split(packages)).build()
-                : ImmutableList.<String>of();
+        _packagesToScan = getListProperty(coreProperties, "packages");
+        _packagesToExclude = getListProperty(coreProperties, "exclude-packages");
+        _jarsToScan = getListProperty(coreProperties, "jars");
+        _jarsToExclude = getListProperty(coreProperties, "exclude-jars");
+
+        _scanThreads = getIntProperty(coreProperties, "scan-threads", 1);
+        _scanCacheFile = coreProperties.getProperty("scan-cache-file");
+        _backgroundScan = getBooleanProperty(coreProperties, "background-scan", false);
 
         Map<String, String> formatterMap = Maps.newHashMap();
         for (Properties formatterProps : formatterProperties) {
@@ -115,11 +131,76 @@ public class DefaultConfiguration implements Configuration {
         return _packagesToScan;
     }
 
+    @Override
+    public List<String> getPackagesToExclude() {
+        return _packagesToExclude;
+    }
+
+    @Override
+    public List<String> getJarsToScan() {
+        return _jarsToScan;
+    }
+
+    @Override
+    public List<String> getJarsToExclude() {
+        return _jarsToExclude;
+    }
+
+    @Override
+    public int getScanThreads() {
+        return _scanThreads;
+    }
+
+    @Override
+    public String getScanCacheFile() {
+        return _scanCacheFile;
+    }
+
+    @Override
+    public boolean isBackgroundScan() {
+        return _backgroundScan;
+    }
+
     @Override
     public Map<String, String> getFormatterClassNames() {
         return _formatterClassNames;
     }
 
+    private static ImmutableList<String> getListProperty(Properties props, String name) {
+        String value = props.getProperty(name);
+        return (value != null)
+                ? ImmutableList.<String>builder().addAll(COMMA_SEPARATOR.split(value)).build()
+                : ImmutableList.<String>of();
+    }
+
+    private static int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+
+    private static boolean getBooleanProperty(Properties props, String name, boolean defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        value = value.trim();
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+
     private static Properties getPropertiesResource(String name) throws IOException {
         ClassLoader loader = Thread.currentThread().getContextClassLoader();
         return loadProperties(loader.getResource(name));
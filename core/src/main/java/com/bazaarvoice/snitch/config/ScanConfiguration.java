@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.config;
+
+import java.util.List;
+
+/**
+ * A {@link Configuration} that also tunes how Snitch scans the classpath.  Configurations that only implement
+ * {@link Configuration} scan every jar and class directory holding the packages to scan, serially, on the first thread
+ * that needs the results, and without a cache.
+ */
+public interface ScanConfiguration extends Configuration {
+    /** The names of packages that Snitch should not scan, even when they're inside of a package that it does scan. */
+    List<String> getPackagesToExclude();
+
+    /** Globs of the jar file names that Snitch should scan, an empty list scans every jar. */
+    List<String> getJarsToScan();
+
+    /** Globs of the jar file names that Snitch should not scan. */
+    List<String> getJarsToExclude();
+
+    /** The number of threads Snitch should use to scan the classpath.  A value of 1 scans serially. */
+    int getScanThreads();
+
+    /** The path of the file that classpath scan results should be cached in, or {@code null} to disable caching. */
+    String getScanCacheFile();
+
+    /**
+     * Whether Snitch should scan the classpath on a background thread as soon as it's initialized.  Until the scan is
+     * done variables are returned without waiting for it.
+     */
+    boolean isBackgroundScan();
+}
@@ -30,7 +30,7 @@ import java.lang.reflect.Method;
  *     <li>method names have javabean prefixes removed (e.g. {@code getMyData} is transformed to {@code myData}</li>
  * </ul>
  */
-public class DefaultNamingStrategy implements NamingStrategy {
+public class DefaultNamingStrategy implements NamingStrategy<Annotation> {
     public static final DefaultNamingStrategy INSTANCE = new DefaultNamingStrategy();
 
     // Singleton
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.processor;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor that records every {@link Monitored} field and method of the classes being compiled into a
+ * {@value IndexAnnotationScanner#INDEX_RESOURCE} resource, which declares the annotation classes it lists every element
+ * of and the top level classes it covers.  At runtime the
+ * {@link com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner} reads the index instead of scanning the jar or
+ * class directory it's packaged in, as long as the index covers every class in it.
+ * <p/>
+ * Projects that use a custom annotation class can name it (or several, comma separated) with the
+ * {@code -Asnitch.annotations=...} compiler option.
+ * <p/>
+ * An incremental compile only sees some of the classes, so the index left behind by an earlier compile is merged
+ * with what this one finds: entries of classes that were compiled again are replaced, entries of classes whose class
+ * files are gone are dropped, and the entries of every other class are kept.  The processor runs for every compile,
+ * not just those whose sources use the annotations, so that recompiling a class that lost its last annotation still
+ * drops its entries.  It never claims an annotation, so javac's {@code -Xlint:processing} reports the annotations of
+ * every compile as unclaimed.
+ */
+@SupportedOptions(MonitoredProcessor.ANNOTATIONS_OPTION)
+public class MonitoredProcessor extends AbstractProcessor {
+    public static final String ANNOTATIONS_OPTION = "snitch.annotations";
+
+    private static final Splitter COMMA_SEPARATOR = Splitter.on(',').omitEmptyStrings().trimResults();
+
+    /** The index lines discovered so far.  Sorted so that the generated resource is stable from build to build. */
+    private final Set<String> _lines = Sets.newTreeSet();
+
+    /** The binary names of the top level classes being compiled, their entries in an existing index are replaced. */
+    private final Set<String> _compiledClassNames = Sets.newHashSet();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // Every compile, see the class comment.  Only the indexed annotations are looked at.
+        return ImmutableSet.of("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<String> annotationNames = getAnnotationNames();
+        for (TypeElement annotation : annotations) {
+            String annotationName = annotation.getQualifiedName().toString();
+            if (!annotationNames.contains(annotationName)) {
+                continue;
+            }
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                addElement(annotationName, element);
+            }
+        }
+
+        for (Element element : roundEnv.getRootElements()) {
+            ElementKind kind = element.getKind();
+            if (kind.isClass() || kind.isInterface()) {
+                String className = binaryName(element);
+                _compiledClassNames.add(className);
+                _lines.add(line(IndexAnnotationScanner.COVERS_KIND, className));
+            }
+        }
+
+        if (roundEnv.processingOver()) {
+            // An existing index has to be rewritten even if nothing is left in it, otherwise its entries would stay
+            boolean existing = mergeExistingIndex();
+            if (existing || !_lines.isEmpty()) {
+                writeIndex();
+            }
+        }
+
+        // Don't claim the annotations, other processors may be interested in them as well.
+        return false;
+    }
+
+    /** The names of the annotation classes to index. */
+    private Set<String> getAnnotationNames() {
+        String annotations = processingEnv.getOptions().get(ANNOTATIONS_OPTION);
+        if (annotations == null) {
+            return ImmutableSet.of(Monitored.class.getName());
+        }
+
+        return ImmutableSet.copyOf(COMMA_SEPARATOR.split(annotations));
+    }
+
+    private void addElement(String annotationName, Element element) {
+        ElementKind kind = element.getKind();
+        if (kind.isClass() || kind.isInterface()) {
+            _lines.add(line(IndexAnnotationScanner.CLASS_KIND, annotationName, binaryName(element)));
+        } else if (kind == ElementKind.METHOD) {
+            String className = binaryName(element.getEnclosingElement());
+            _lines.add(line(IndexAnnotationScanner.METHOD_KIND, annotationName, className, element.getSimpleName()));
+        } else if (kind == ElementKind.FIELD) {
+            String className = binaryName(element.getEnclosingElement());
+            _lines.add(line(IndexAnnotationScanner.FIELD_KIND, annotationName, className, element.getSimpleName()));
+        }
+    }
+
+    private String binaryName(Element element) {
+        return processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+    }
+
+    /**
+     * Add the entries of an index written by an earlier compile for classes that weren't compiled this time and
+     * still exist.  Lines that can't be parsed are reported and dropped.  Returns whether or not there was an index.
+     */
+    private boolean mergeExistingIndex() {
+        BufferedReader reader;
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "",
+                    IndexAnnotationScanner.INDEX_RESOURCE);
+            reader = new BufferedReader(new InputStreamReader(file.openInputStream(), Charsets.UTF_8));
+        } catch (IOException e) {
+            return false;  // There's no earlier index
+        }
+
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+
+                List<String> tokens;
+                try {
+                    tokens = IndexAnnotationScanner.parseLine(line);
+                } catch (IllegalArgumentException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Dropping line " + lineNumber
+                            + " of the existing " + IndexAnnotationScanner.INDEX_RESOURCE + ": " + e.getMessage());
+                    continue;
+                }
+                boolean covers = tokens != null && IndexAnnotationScanner.COVERS_KIND.equals(tokens.get(0));
+                if (tokens == null || !(covers || IndexAnnotationScanner.isElement(tokens))) {
+                    continue;  // Declared again for this compile, jars are only vouched for by the Maven plugin
+                }
+
+                String className = covers ? tokens.get(1) : tokens.get(2);
+                if (!_compiledClassNames.contains(IndexAnnotationScanner.topLevelClassName(className))
+                        && classFileExists(className)) {
+                    _lines.add(line(tokens.toArray()));
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Unable to read the existing " + IndexAnnotationScanner.INDEX_RESOURCE + ": " + e);
+        } finally {
+            Closeables.closeQuietly(reader);
+        }
+        return true;
+    }
+
+    private boolean classFileExists(String className) {
+        int lastDot = className.lastIndexOf('.');
+        String packageName = (lastDot >= 0) ? className.substring(0, lastDot) : "";
+        InputStream in = null;
+        try {
+            in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, packageName,
+                    className.substring(lastDot + 1) + ".class").openInputStream();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private void writeIndex() {
+        Writer writer = null;
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    IndexAnnotationScanner.INDEX_RESOURCE);
+            writer = new OutputStreamWriter(file.openOutputStream(), Charsets.UTF_8);
+            for (String annotationName : Sets.newTreeSet(getAnnotationNames())) {
+                writer.write(line(IndexAnnotationScanner.ANNOTATION_KIND, annotationName));
+                writer.write('\n');
+            }
+            for (String line : _lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Unable to write " + IndexAnnotationScanner.INDEX_RESOURCE + ": " + e);
+        } finally {
+            Closeables.closeQuietly(writer);
+        }
+    }
+
+    private static String line(Object... tokens) {
+        return Joiner.on(' ').join(tokens);
+    }
+}
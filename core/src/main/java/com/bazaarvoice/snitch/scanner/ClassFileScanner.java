@@ -0,0 +1,596 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.util.Enumeration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.Reporter;
+
+/**
+ * Minimal class file reader that finds annotated classes, methods and fields without loading any classes.
+ * <p/>
+ * Almost every class on a class path doesn't use any of the annotations being looked for, so the reader first walks
+ * only the constant pool looking for the descriptor of one of the annotation classes.  A class file that doesn't
+ * mention any of the descriptors can't possibly be annotated with them and is rejected without looking at any of its
+ * members.  Class files are read into a single buffer that is reused for every class, so a scan doesn't allocate
+ * anything per class until a match is found.
+ * <p/>
+ * Jars nested inside of a jar, like the libraries of an executable Spring Boot jar or a war, are scanned as well.  Only
+ * jars directly in the library directories of those layouts are, other jars that happen to be packaged inside of a jar
+ * are left alone.
+ * <p/>
+ * Instances are not thread-safe, each scanning thread should use its own.
+ */
+final class ClassFileScanner {
+    private static final Logger LOG = Logger.getLogger(ClassFileScanner.class.getName());
+
+    private static final int MAGIC = 0xCAFEBABE;
+    static final String CLASS_SUFFIX = ".class";
+    private static final String JAR_SUFFIX = ".jar";
+
+    /** The directories that executable jars and wars keep their own classes in. */
+    private static final String[] CLASSES_PREFIXES = {"BOOT-INF/classes/", "WEB-INF/classes/"};
+
+    /** The directories that executable jars and wars keep their libraries in. */
+    private static final String[] LIB_PREFIXES = {"BOOT-INF/lib/", "WEB-INF/lib/"};
+
+    // Constant pool tags, see section 4.4 of the JVM specification
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = utf8("RuntimeVisibleAnnotations");
+
+    private final Reporter _reporter;
+    private final ScanFilter _filter;
+    private final Class<? extends Annotation>[] _annotations;
+
+    /** The modified UTF-8 encoded descriptors of the annotations, parallel to {@code _annotations}. */
+    private final byte[][] _descriptors;
+
+    /** Buffer holding the class file currently being parsed.  Grown as needed and reused for every class. */
+    private byte[] _buffer = new byte[16 * 1024];
+    private int _length;
+
+    /**
+     * Offsets of each constant pool entry's tag in {@code _buffer}, indexed by constant pool index.  The unusable
+     * entry after a long or double constant is -1.
+     */
+    private int[] _constantOffsets = new int[1024];
+
+    /** The annotation class whose descriptor each constant pool entry matches, or {@code null}. */
+    private Class<? extends Annotation>[] _constantAnnotations = newAnnotationArray(1024);
+
+    ClassFileScanner(Reporter reporter) {
+        this(reporter, ScanFilter.ALL);
+    }
+
+    ClassFileScanner(Reporter reporter, ScanFilter filter) {
+        _reporter = reporter;
+        _filter = filter;
+        _annotations = reporter.getAnnotations();
+        _descriptors = new byte[_annotations.length][];
+        for (int i = 0; i < _annotations.length; i++) {
+            _descriptors[i] = utf8("L" + _annotations[i].getName().replace('.', '/') + ";");
+        }
+    }
+
+    /**
+     * Scan a class path root directory or jar file, reporting every annotated element to the reporter.  Directories
+     * and classes that the filter excludes are skipped without being opened.
+     */
+    void scan(File unit) throws IOException {
+        if (unit.isDirectory()) {
+            scanDirectory(unit, "");
+        } else if (unit.isFile()) {
+            scanJar(unit);
+        }
+    }
+
+    private void scanDirectory(File dir, String path) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String filePath = path + file.getName();
+            if (file.isDirectory()) {
+                if (_filter.includesDirectory(filePath)) {
+                    scanDirectory(file, filePath + "/");
+                }
+            } else if (filePath.endsWith(CLASS_SUFFIX) && _filter.includesClass(filePath)) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    scanClass(filePath, in, file.length());
+                } finally {
+                    Closeables.closeQuietly(in);
+                }
+            }
+        }
+    }
+
+    private void scanJar(File jar) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !isScanned(entry.getName(), true)) {
+                    continue;
+                }
+
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    scanEntry(entry, in);
+                } finally {
+                    Closeables.closeQuietly(in);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Scan a jar nested inside of another archive, such as the libraries in {@code BOOT-INF/lib} of an executable jar.
+     * The nested jar is streamed straight out of the outer archive one entry at a time, it's never extracted to disk or
+     * held in memory as a whole.
+     */
+    private void scanNestedJar(InputStream in) throws IOException {
+        // Not closed, closing it would close the outer archive's stream which belongs to the caller
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            // Libraries don't nest libraries of their own, only their classes are scanned
+            if (!entry.isDirectory() && isScanned(entry.getName(), false)) {
+                scanEntry(entry, zip);
+            }
+        }
+    }
+
+    private void scanEntry(ZipEntry entry, InputStream in) throws IOException {
+        if (entry.getName().endsWith(CLASS_SUFFIX)) {
+            scanClass(entry.getName(), in, entry.getSize());
+        } else {
+            scanNestedJar(in);
+        }
+    }
+
+    /** Whether or not an archive entry is a class, or a library jar if they're allowed, that the filter includes. */
+    private boolean isScanned(String name, boolean allowLibraries) {
+        if (name.endsWith(CLASS_SUFFIX)) {
+            return _filter.includesClass(stripClassesPrefix(name));
+        }
+        if (allowLibraries && isLibrary(name)) {
+            return _filter.includesJar(name.substring(name.lastIndexOf('/') + 1));
+        }
+        return false;
+    }
+
+    /** Whether or not an archive entry is a jar directly in the library directories of an executable jar or war. */
+    static boolean isLibrary(String name) {
+        if (!name.endsWith(JAR_SUFFIX)) {
+            return false;
+        }
+        for (String prefix : LIB_PREFIXES) {
+            if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Executable jars and wars keep their own classes below a prefix, the package starts after it. */
+    static String stripClassesPrefix(String name) {
+        for (String prefix : CLASSES_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return name.substring(prefix.length());
+            }
+        }
+        return name;
+    }
+
+    /** Read a single class file from a stream into the shared buffer and scan it. */
+    void scanClass(String name, InputStream in, long sizeHint) throws IOException {
+        if (sizeHint > _buffer.length) {
+            _buffer = new byte[(int) sizeHint];
+        }
+
+        int length = 0;
+        int n;
+        while ((n = in.read(_buffer, length, _buffer.length - length)) != -1) {
+            length += n;
+            if (length == _buffer.length) {
+                byte[] larger = new byte[_buffer.length * 2];
+                System.arraycopy(_buffer, 0, larger, 0, length);
+                _buffer = larger;
+            }
+        }
+
+        scanClass(name, length);
+    }
+
+    @VisibleForTesting
+    void scanClass(String name, byte[] bytes) {
+        if (bytes.length > _buffer.length) {
+            _buffer = new byte[bytes.length];
+        }
+        System.arraycopy(bytes, 0, _buffer, 0, bytes.length);
+        scanClass(name, bytes.length);
+    }
+
+    private void scanClass(String name, int length) {
+        _length = length;
+        try {
+            if (readConstantPool()) {
+                readMembers();
+            }
+        } catch (MalformedClassException e) {
+            // Not a class file we understand, so whatever annotations it has can't be reported
+            LOG.warning("Skipping malformed class file " + name);
+        }
+    }
+
+    /**
+     * Walk the constant pool, remembering where every entry starts and which entries are the descriptor of one of the
+     * annotations.  Returns whether or not any annotation descriptor was found.
+     */
+    private boolean readConstantPool() {
+        if (u4(0) != MAGIC) {
+            throw new MalformedClassException();
+        }
+
+        int count = u2(8);
+        if (count > _constantOffsets.length) {
+            _constantOffsets = new int[count];
+            _constantAnnotations = newAnnotationArray(count);
+        }
+
+        boolean found = false;
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            _constantOffsets[i] = pos;
+            _constantAnnotations[i] = null;
+
+            int tag = u1(pos);
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    int length = u2(pos + 1);
+                    Class<? extends Annotation> annotation = matchDescriptor(pos + 3, length);
+                    if (annotation != null) {
+                        _constantAnnotations[i] = annotation;
+                        found = true;
+                    }
+                    pos += 3 + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    pos += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    pos += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELD_REF:
+                case CONSTANT_METHOD_REF:
+                case CONSTANT_INTERFACE_METHOD_REF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    pos += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // Eight byte constants take up two entries in the constant pool
+                    pos += 9;
+                    i++;
+                    if (i < count) {
+                        // The second entry is unusable, don't leave the offset of a previous class file behind in it
+                        _constantOffsets[i] = -1;
+                        _constantAnnotations[i] = null;
+                    }
+                    break;
+                default:
+                    throw new MalformedClassException();
+            }
+        }
+
+        // Remember where the constant pool ends, the rest of the class file starts there
+        _constantOffsets[0] = pos;
+        return found;
+    }
+
+    private Class<? extends Annotation> matchDescriptor(int offset, int length) {
+        for (int i = 0; i < _descriptors.length; i++) {
+            byte[] descriptor = _descriptors[i];
+            if (descriptor.length != length) {
+                continue;
+            }
+
+            int j = 0;
+            while (j < length && _buffer[offset + j] == descriptor[j]) {
+                j++;
+            }
+            if (j == length) {
+                return _annotations[i];
+            }
+        }
+        return null;
+    }
+
+    /** Read the class, its fields and its methods, reporting the ones that carry one of the annotations. */
+    private void readMembers() {
+        int pos = _constantOffsets[0];
+        String className = readClassName(u2(pos + 2));
+
+        int interfaces = u2(pos + 6);
+        pos += 8 + 2 * interfaces;
+
+        // Fields
+        int fields = u2(pos);
+        pos += 2;
+        for (int i = 0; i < fields; i++) {
+            String fieldName = utf8At(u2(pos + 2));
+            pos = readAttributes(pos + 6, className, fieldName, ElementKind.FIELD);
+        }
+
+        // Methods
+        int methods = u2(pos);
+        pos += 2;
+        for (int i = 0; i < methods; i++) {
+            String methodName = utf8At(u2(pos + 2));
+            pos = readAttributes(pos + 6, className, methodName, ElementKind.METHOD);
+        }
+
+        // Class attributes
+        readAttributes(pos, className, null, ElementKind.TYPE);
+    }
+
+    /** Read an attribute table, reporting the annotations found.  Returns the position just after the table. */
+    private int readAttributes(int pos, String className, String memberName, ElementKind kind) {
+        int attributes = u2(pos);
+        pos += 2;
+        for (int i = 0; i < attributes; i++) {
+            int nameIndex = u2(pos);
+            int length = u4(pos + 2);
+            if (length < 0) {
+                throw new MalformedClassException();
+            }
+            if (utf8Equals(nameIndex, RUNTIME_VISIBLE_ANNOTATIONS)) {
+                readAnnotations(pos + 6, className, memberName, kind);
+            }
+            pos += 6 + length;
+        }
+        return pos;
+    }
+
+    private void readAnnotations(int pos, String className, String memberName, ElementKind kind) {
+        int annotations = u2(pos);
+        pos += 2;
+        for (int i = 0; i < annotations; i++) {
+            Class<? extends Annotation> annotation = constantAnnotation(u2(pos));
+            if (annotation != null) {
+                report(annotation, className, memberName, kind);
+            }
+            pos = skipAnnotation(pos);
+        }
+    }
+
+    private void report(Class<? extends Annotation> annotation, String className, String memberName,
+                        ElementKind kind) {
+        switch (kind) {
+            case TYPE:
+                _reporter.reportTypeAnnotation(annotation, className);
+                break;
+            case FIELD:
+                _reporter.reportFieldAnnotation(annotation, className, memberName);
+                break;
+            case METHOD:
+                _reporter.reportMethodAnnotation(annotation, className, memberName);
+                break;
+        }
+    }
+
+    private int skipAnnotation(int pos) {
+        int pairs = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < pairs; i++) {
+            pos = skipElementValue(pos + 2);
+        }
+        return pos;
+    }
+
+    private int skipElementValue(int pos) {
+        int tag = u1(pos);
+        switch (tag) {
+            case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z': case 's': case 'c':
+                return pos + 3;
+            case 'e':
+                return pos + 5;
+            case '@':
+                return skipAnnotation(pos + 1);
+            case '[':
+                int values = u2(pos + 1);
+                pos += 3;
+                for (int i = 0; i < values; i++) {
+                    pos = skipElementValue(pos);
+                }
+                return pos;
+            default:
+                throw new MalformedClassException();
+        }
+    }
+
+    private Class<? extends Annotation> constantAnnotation(int index) {
+        checkConstantIndex(index);
+        return _constantAnnotations[index];
+    }
+
+    private String readClassName(int classIndex) {
+        checkConstantIndex(classIndex);
+        int pos = _constantOffsets[classIndex];
+        if (u1(pos) != CONSTANT_CLASS) {
+            throw new MalformedClassException();
+        }
+        return utf8At(u2(pos + 1)).replace('/', '.');
+    }
+
+    private boolean utf8Equals(int index, byte[] expected) {
+        checkConstantIndex(index);
+        int pos = _constantOffsets[index];
+        if (u1(pos) != CONSTANT_UTF8 || u2(pos + 1) != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (_buffer[pos + 3 + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decode the modified UTF-8 string at a constant pool index. */
+    private String utf8At(int index) {
+        checkConstantIndex(index);
+        int pos = _constantOffsets[index];
+        if (u1(pos) != CONSTANT_UTF8) {
+            throw new MalformedClassException();
+        }
+
+        int length = u2(pos + 1);
+        int start = pos + 3;
+        checkBounds(start, length);
+
+        char[] chars = new char[length];
+        int count = 0;
+        int i = start;
+        int end = start + length;
+        while (i < end) {
+            int b = _buffer[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && i < end) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (_buffer[i++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && i + 1 < end) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((_buffer[i] & 0x3F) << 6) | (_buffer[i + 1] & 0x3F));
+                i += 2;
+            } else {
+                throw new MalformedClassException();
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private void checkConstantIndex(int index) {
+        if (index <= 0 || index >= u2(8) || _constantOffsets[index] < 0) {
+            throw new MalformedClassException();
+        }
+    }
+
+    private void checkBounds(int pos, int length) {
+        if (pos < 0 || pos + length > _length) {
+            throw new MalformedClassException();
+        }
+    }
+
+    private int u1(int pos) {
+        checkBounds(pos, 1);
+        return _buffer[pos] & 0xFF;
+    }
+
+    private int u2(int pos) {
+        checkBounds(pos, 2);
+        return ((_buffer[pos] & 0xFF) << 8) | (_buffer[pos + 1] & 0xFF);
+    }
+
+    private int u4(int pos) {
+        checkBounds(pos, 4);
+        return ((_buffer[pos] & 0xFF) << 24) | ((_buffer[pos + 1] & 0xFF) << 16) |
+                ((_buffer[pos + 2] & 0xFF) << 8) | (_buffer[pos + 3] & 0xFF);
+    }
+
+    /** Encode a string using the modified UTF-8 encoding that class files use. */
+    private static byte[] utf8(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c != 0 && c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+        }
+
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation>[] newAnnotationArray(int size) {
+        return (Class<? extends Annotation>[]) new Class<?>[size];
+    }
+
+    private enum ElementKind {
+        TYPE, FIELD, METHOD
+    }
+
+    /** Thrown internally when a class file can't be parsed. */
+    private static final class MalformedClassException extends RuntimeException {
+        private static final long serialVersionUID = 0L;
+    }
+}
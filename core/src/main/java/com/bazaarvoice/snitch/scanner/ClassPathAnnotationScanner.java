@@ -15,39 +15,102 @@
  */
 package com.bazaarvoice.snitch.scanner;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
-import eu.infomas.annotation.AnnotationDetector;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Annotation;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ClassPathAnnotationScanner implements AnnotationScanner {
+    private static final Logger LOG = Logger.getLogger(ClassPathAnnotationScanner.class.getName());
+
+    /** Separates the path of an archive from the path of an entry inside of it in a jar URL. */
+    private static final String JAR_SEPARATOR = "!/";
+
+    /** The packages used to locate the jars and class directories to scan. */
     private final String[] _packageNames;
 
+    /**
+     * Decides which jars, directories and classes are scanned.  This is always the filter the scanner was configured
+     * with, guessed package names only locate class path roots and never narrow what is scanned inside of them, so
+     * that the results of a jar or directory (and the keys they're shared and cached under) don't depend on which
+     * classes happen to be loaded when the scanner is created.
+     */
+    private final ScanFilter _filter;
+
+    /** The number of threads to scan the class path with, a value of 1 scans serially on the calling thread. */
+    private final int _scanThreads;
+
+    /** The file that scan results are cached in between runs, or {@code null} if results shouldn't be cached. */
+    private final File _cacheFile;
+
     /** The set of annotations to scan for. */
     private final Set<Class<? extends Annotation>> _annotationClasses = Sets.newHashSet();
 
+    /** The set of annotations that the class path has already been scanned for. */
+    private final Set<Class<? extends Annotation>> _scannedAnnotationClasses = Sets.newHashSet();
+
     /** Flag indicating that a class path scan is needed, because a new annotation has been added. */
     private volatile boolean _needsScan = false;
 
-    /** The set of class entries that have been discovered from the class path */
-    private volatile ListMultimap<Class<? extends Annotation>, ClassEntry> _classEntries = ImmutableListMultimap.of();
+    /** The annotated classes, methods and fields that have been discovered from the class path. */
+    private volatile ScanResults _results = ScanResults.EMPTY;
 
-    /** The set of method entries that have been discovered from the class path */
-    private volatile ListMultimap<Class<? extends Annotation>, MethodEntry> _methodEntries = ImmutableListMultimap.of();
+    public ClassPathAnnotationScanner(String... packageNames) {
+        this(1, null, packageNames);
+    }
 
-    /** The set of field entries that have been discovered from the class path */
-    private volatile ListMultimap<Class<? extends Annotation>, FieldEntry> _fieldEntries = ImmutableListMultimap.of();
+    public ClassPathAnnotationScanner(int scanThreads, String... packageNames) {
+        this(scanThreads, null, packageNames);
+    }
 
-    public ClassPathAnnotationScanner(String... packageNames) {
+    /**
+     * Create a scanner that scans the class path using {@code scanThreads} threads.  If {@code cacheFile} is not
+     * {@code null} then the results for each jar and class directory are remembered in it, and elements that haven't
+     * changed since the last run are not scanned again.
+     */
+    public ClassPathAnnotationScanner(int scanThreads, File cacheFile, String... packageNames) {
+        this(scanThreads, cacheFile, new ScanFilter(Arrays.asList(packageNames)));
+    }
+
+    /**
+     * Create a scanner that only scans the jars, directories and classes that {@code filter} includes.  The filter's
+     * included packages are the packages to scan, if there are none a set of packages is guessed to locate the jars
+     * and class directories to scan.
+     */
+    public ClassPathAnnotationScanner(int scanThreads, File cacheFile, ScanFilter filter) {
+        Preconditions.checkArgument(scanThreads > 0, "scanThreads must be positive");
+        _scanThreads = scanThreads;
+        _cacheFile = cacheFile;
+
+        List<String> includedPackages = filter.getIncludedPackages();
+        String[] packageNames = includedPackages.toArray(new String[includedPackages.size()]);
         if (packageNames.length == 0) {
             // As a heuristic load scan all of the packages that have had classes loaded already...
             Package[] packages = Package.getPackages();
@@ -64,7 +127,16 @@ public class ClassPathAnnotationScanner implements AnnotationScanner {
             packageNames = new String[] { "com", "org", "edu", "net" };
         }
         
-        _packageNames = Arrays.copyOf(packageNames, packageNames.length);
+        _packageNames = packageNames;
+        _filter = filter;
+    }
+
+    /**
+     * Forget the results that scanners have shared with each other, so that the next scanner to look for an
+     * annotation scans the class path again.  Only needed when the contents of the class path change at runtime.
+     */
+    public static void clearSharedResults() {
+        SharedScanResults.clear();
     }
 
     public synchronized void addAnnotationClass(Class<? extends Annotation> annotationClass) {
@@ -75,17 +147,17 @@ public class ClassPathAnnotationScanner implements AnnotationScanner {
 
     public List<ClassEntry> getClassesAnnotatedWith(Class<? extends Annotation> annotationClass) {
         checkScan();
-        return _classEntries.get(annotationClass);
+        return _results.getClasses(annotationClass.getName());
     }
 
     public List<MethodEntry> getMethodsAnnotatedWith(Class<? extends Annotation> annotationClass) {
         checkScan();
-        return _methodEntries.get(annotationClass);
+        return _results.getMethods(annotationClass.getName());
     }
 
     public List<FieldEntry> getFieldsAnnotatedWith(Class<? extends Annotation> annotationClass) {
         checkScan();
-        return _fieldEntries.get(annotationClass);
+        return _results.getFields(annotationClass.getName());
     }
 
     private void checkScan() {
@@ -99,24 +171,262 @@ public class ClassPathAnnotationScanner implements AnnotationScanner {
             return;
         }
 
-        // Scan the classpath for annotations
-        Reporter reporter = new Reporter(_annotationClasses);
+        // Only look for the annotations that have been added since the last scan, the entries for all of the others
+        // are already known.
+        Set<Class<? extends Annotation>> annotationClasses =
+                Sets.newHashSet(Sets.difference(_annotationClasses, _scannedAnnotationClasses));
+        ScanResults.Builder builder = ScanResults.builder().addAll(_results);
+        if (!annotationClasses.isEmpty()) {
+            scanClassPath(annotationClasses, builder);
+        }
+
+        // Remember the annotated classes, methods and fields for later, alongside the ones found by earlier scans
+        _results = builder.build();
+
+        _scannedAnnotationClasses.addAll(_annotationClasses);
+        _needsScan = false;
+    }
+
+    private void scanClassPath(Set<Class<? extends Annotation>> annotationClasses, ScanResults.Builder builder) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
         try {
-            new AnnotationDetector(reporter).detect(_packageNames);
+            Set<File> units = findClassPathUnits(_packageNames, _filter);
+
+            // Jars and directories that another scanner has already scanned with the same rules don't need a scan,
+            // their entries are shared across the process.
+            List<File> unitsToLoad = Lists.newArrayList();
+            for (File unit : units) {
+                List<ScanResults> shared = getSharedResults(loader, unit, annotationClasses);
+                if (shared != null) {
+                    for (ScanResults results : shared) {
+                        builder.addAll(results);
+                    }
+                } else {
+                    unitsToLoad.add(unit);
+                }
+            }
+            if (unitsToLoad.isEmpty()) {
+                return;
+            }
+
+            // Only the units that are neither indexed nor have up to date results in the cache need to be scanned.  An
+            // index can vouch for other units than its own, so all of them are read first.
+            Map<File, UnitIndex> indexes = UnitIndex.readAll(units);
+            ScanCache cache = (_cacheFile != null) ? ScanCache.read(_cacheFile) : null;
+            Map<File, String> fingerprints = Maps.newHashMap();
+            List<File> unitsToScan = Lists.newArrayList();
+            for (File unit : unitsToLoad) {
+                Reporter indexed = UnitIndex.find(unit, indexes, annotationClasses, _filter);
+                if (indexed != null) {
+                    addResults(loader, unit, indexed, annotationClasses, builder);
+                    continue;
+                }
+
+                Reporter cached = null;
+                if (cache != null) {
+                    // Results depend on the configured filter as well as on the unit's contents
+                    String fingerprint = ScanCache.fingerprint(unit) + "-" + _filter.getKey();
+                    fingerprints.put(unit, fingerprint);
+                    cached = cache.get(unit, fingerprint, annotationClasses);
+                }
+
+                if (cached != null) {
+                    addResults(loader, unit, cached, annotationClasses, builder);
+                } else {
+                    unitsToScan.add(unit);
+                }
+            }
+
+            Map<File, Reporter> scanned = (_scanThreads > 1)
+                    ? scanInParallel(unitsToScan, annotationClasses)
+                    : scanSerially(unitsToScan, annotationClasses);
+            for (Map.Entry<File, Reporter> entry : scanned.entrySet()) {
+                addResults(loader, entry.getKey(), entry.getValue(), annotationClasses, builder);
+                if (cache != null) {
+                    cache.put(entry.getKey(), fingerprints.get(entry.getKey()), entry.getValue());
+                }
+            }
+
+            if (cache != null) {
+                writeCache(cache, units);
+            }
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
+    }
 
-        // Remember the annotated classes, methods and fields for later
-        _classEntries = reporter.getTypeAnnotations();
-        _methodEntries = reporter.getMethodAnnotations();
-        _fieldEntries = reporter.getFieldAnnotations();
+    /**
+     * Return the shared results of every one of {@code annotationClasses} for {@code unit}, or {@code null} if any of
+     * them is missing and the unit has to be scanned.
+     */
+    private List<ScanResults> getSharedResults(ClassLoader loader, File unit,
+                                               Set<Class<? extends Annotation>> annotationClasses) {
+        if (loader == null) {
+            return null;
+        }
 
-        _needsScan = false;
+        List<ScanResults> shared = Lists.newArrayList();
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            ScanResults results = SharedScanResults.get(loader, _filter, unit, annotationClass.getName());
+            if (results == null) {
+                return null;
+            }
+            shared.add(results);
+        }
+        return shared;
     }
 
-    private static final class Reporter implements AnnotationDetector.FieldReporter, AnnotationDetector.MethodReporter,
-            AnnotationDetector.TypeReporter {
+    /** Add the entries that were found in a single unit to the results, and share them with other scanners. */
+    private void addResults(ClassLoader loader, File unit, Reporter reporter,
+                            Set<Class<? extends Annotation>> annotationClasses, ScanResults.Builder builder) {
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            ScanResults results = toScanResults(reporter, annotationClass);
+            if (loader != null) {
+                SharedScanResults.put(loader, _filter, unit, annotationClass.getName(), results);
+            }
+            builder.addAll(results);
+        }
+    }
+
+    /** Collect the entries that a reporter found for a single annotation. */
+    private static ScanResults toScanResults(Reporter reporter, Class<? extends Annotation> annotationClass) {
+        String annotationName = annotationClass.getName();
+        ScanResults.Builder builder = ScanResults.builder();
+        for (ClassEntry entry : reporter.getTypeAnnotations().get(annotationClass)) {
+            builder.addClass(annotationName, entry.getClassName());
+        }
+        for (MethodEntry entry : reporter.getMethodAnnotations().get(annotationClass)) {
+            builder.addMethod(annotationName, entry.getClassName(), entry.getMethodName());
+        }
+        for (FieldEntry entry : reporter.getFieldAnnotations().get(annotationClass)) {
+            builder.addField(annotationName, entry.getClassName(), entry.getFieldName());
+        }
+        return builder.build();
+    }
+
+    private Map<File, Reporter> scanSerially(List<File> units, Set<Class<? extends Annotation>> annotationClasses)
+            throws IOException {
+        Map<File, Reporter> results = Maps.newLinkedHashMap();
+        for (File unit : units) {
+            Reporter reporter = new Reporter(annotationClasses);
+            new ClassFileScanner(reporter, _filter).scan(unit);
+            results.put(unit, reporter);
+        }
+        return results;
+    }
+
+    /**
+     * Scan each jar and class directory on its own thread.  Every unit reports into its own {@code Reporter} and the
+     * results are merged by the caller once all of them have finished, so the entries found are exactly the same as
+     * those of a serial scan.
+     */
+    private Map<File, Reporter> scanInParallel(List<File> units,
+                                               final Set<Class<? extends Annotation>> annotationClasses)
+            throws IOException {
+        Map<File, Reporter> results = Maps.newLinkedHashMap();
+        if (units.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_scanThreads, units.size()),
+                new ThreadFactoryBuilder().setNameFormat("snitch-scanner-%d").setDaemon(true).build());
+        try {
+            Map<File, Future<Reporter>> futures = Maps.newLinkedHashMap();
+            for (final File unit : units) {
+                futures.put(unit, executor.submit(new Callable<Reporter>() {
+                    @Override
+                    public Reporter call() throws IOException {
+                        Reporter reporter = new Reporter(annotationClasses);
+                        new ClassFileScanner(reporter, _filter).scan(unit);
+                        return reporter;
+                    }
+                }));
+            }
+
+            for (Map.Entry<File, Future<Reporter>> entry : futures.entrySet()) {
+                results.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private static void writeCache(ScanCache cache, Set<File> units) {
+        try {
+            cache.write(units);
+        } catch (IOException e) {
+            // The cache is only an optimization, failing to write it shouldn't fail the scan.  The next run will just
+            // have to scan again, which is worth knowing about when it keeps happening.
+            LOG.log(Level.WARNING, "Unable to write the scan cache, the next scan won't be able to use it", e);
+        }
+    }
+
+    /**
+     * Find the class path root directories and jar files that hold the given packages.  Jars that the filter excludes
+     * by name are left out before they're ever opened.
+     */
+    private static Set<File> findClassPathUnits(String[] packageNames, ScanFilter filter) throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+        Set<File> units = Sets.newHashSet();
+        for (String packageName : packageNames) {
+            String path = packageName.replace('.', '/');
+            if (!path.endsWith("/")) {
+                path = path.concat("/");
+            }
+
+            Enumeration<URL> urls = loader.getResources(path);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                if ("file".equals(url.getProtocol())) {
+                    File root = toFile(url);
+                    for (int i = 0; i < CharMatcher.is('/').countIn(path) && root != null; i++) {
+                        root = root.getParentFile();
+                    }
+                    if (root != null && root.isDirectory()) {
+                        units.add(root);
+                    }
+                } else if ("jar".equals(url.getProtocol()) && url.getPath().startsWith("file:")
+                        && url.getPath().contains(JAR_SEPARATOR)) {
+                    // Either jar:file:/app.jar!/com/... or, for a jar nested inside of an executable jar,
+                    // jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/com/...  The outer archive is the unit in both cases,
+                    // nested jars are streamed out of it and filtered by their own names while it's scanned.
+                    String jarPath = url.getPath();
+                    int separator = jarPath.indexOf(JAR_SEPARATOR);
+                    boolean nested = jarPath.indexOf(JAR_SEPARATOR, separator + 1) >= 0;
+
+                    File jar = toFile(new URL(jarPath.substring(0, separator)));
+                    if (jar.isFile() && (nested || filter.includesJar(jar.getName()))) {
+                        units.add(jar);
+                    }
+                } else {
+                    URLConnection connection = url.openConnection();
+                    if (connection instanceof JarURLConnection) {
+                        File jar = toFile(((JarURLConnection) connection).getJarFileURL());
+                        if (jar.isFile() && filter.includesJar(jar.getName())) {
+                            units.add(jar);
+                        }
+                    }
+                }
+            }
+        }
+        return units;
+    }
+
+    private static File toFile(URL url) throws UnsupportedEncodingException {
+        return new File(URLDecoder.decode(url.getFile(), "UTF-8"));
+    }
+
+    /** Collects the annotated elements found by a {@link ClassFileScanner}. */
+    static final class Reporter {
         private final Class<? extends Annotation>[] _annotations;
         private final ListMultimap<Class<? extends Annotation>, ClassEntry> _typeAnnotations;
         private final ListMultimap<Class<? extends Annotation>, MethodEntry> _methodAnnotations;
@@ -130,26 +440,29 @@ public class ClassPathAnnotationScanner implements AnnotationScanner {
             _fieldAnnotations = ArrayListMultimap.create();
         }
 
-        @Override
-        public Class<? extends Annotation>[] annotations() {
+        public Class<? extends Annotation>[] getAnnotations() {
             return _annotations;
         }
 
-        @Override
         public void reportTypeAnnotation(Class<? extends Annotation> annotation, String clsName) {
             _typeAnnotations.put(annotation, new com.bazaarvoice.snitch.scanner.ClassEntry(clsName));
         }
 
-        @Override
         public void reportMethodAnnotation(Class<? extends Annotation> annotation, String clsName, String methodName) {
             _methodAnnotations.put(annotation, new com.bazaarvoice.snitch.scanner.MethodEntry(clsName, methodName));
         }
 
-        @Override
         public void reportFieldAnnotation(Class<? extends Annotation> annotation, String clsName, String fieldName) {
             _fieldAnnotations.put(annotation, new com.bazaarvoice.snitch.scanner.FieldEntry(clsName, fieldName));
         }
 
+        /** Merge the entries found by another reporter into this one. */
+        public void addAll(Reporter other) {
+            _typeAnnotations.putAll(other._typeAnnotations);
+            _methodAnnotations.putAll(other._methodAnnotations);
+            _fieldAnnotations.putAll(other._fieldAnnotations);
+        }
+
         public ListMultimap<Class<? extends Annotation>, ClassEntry> getTypeAnnotations() {
             return Multimaps.unmodifiableListMultimap(_typeAnnotations);
         }
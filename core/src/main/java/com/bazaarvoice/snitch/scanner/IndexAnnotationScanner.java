@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Annotation scanner that reads the index files written at compile time by
+ * {@link com.bazaarvoice.snitch.processor.MonitoredProcessor} instead of reading any bytecode.  Every
+ * {@value #INDEX_RESOURCE} resource visible to the context class loader is merged together, so it only finds the
+ * elements of jars and class directories that were indexed.  {@link ClassPathAnnotationScanner} uses the index of each
+ * jar or class directory that has one and scans the rest.
+ * <p/>
+ * Each line of an index file declares an annotation class that the index lists every element of, names a top level
+ * class that the index covers, vouches for every element of another jar, or describes one annotated element, as
+ * whitespace separated tokens:
+ * <pre>
+ *   annotation &lt;annotation class&gt;
+ *   covers &lt;class name&gt;
+ *   jar    &lt;annotation class&gt; &lt;fingerprint of the jar's classes&gt;
+ *   class  &lt;annotation class&gt; &lt;class name&gt;
+ *   method &lt;annotation class&gt; &lt;class name&gt; &lt;method name&gt;
+ *   field  &lt;annotation class&gt; &lt;class name&gt; &lt;field name&gt;
+ * </pre>
+ * An index only vouches for the declared annotation classes of the classes it covers, along with their nested classes.
+ * The jar or class directory it's packaged in is only left unscanned when the index covers every class in it.  A
+ * dependency jar that the Maven plugin indexed along with an artifact is left unscanned when its classes still match
+ * the fingerprint that the artifact's index vouches for.
+ * <p/>
+ * Blank lines and lines starting with {@code #} are ignored, any other line that doesn't follow this format fails the
+ * scan rather than silently losing the entries of an index that is corrupt or was written by a newer version.  Class
+ * names are binary names, so they can be handed directly to {@link Class#forName(String)}.
+ */
+public class IndexAnnotationScanner implements AnnotationScanner {
+    /** The location of the index files in the class path. */
+    public static final String INDEX_RESOURCE = "META-INF/snitch/index";
+
+    public static final String ANNOTATION_KIND = "annotation";
+    public static final String COVERS_KIND = "covers";
+    public static final String JAR_KIND = "jar";
+    public static final String CLASS_KIND = "class";
+    public static final String METHOD_KIND = "method";
+    public static final String FIELD_KIND = "field";
+
+    private static final Splitter WHITESPACE_SEPARATOR = Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings();
+
+    private final String _resourceName;
+    private final String[] _packagePrefixes;
+
+    /** The index entries, keyed by annotation class name, loaded lazily the first time they're needed. */
+    private volatile ScanResults _index;
+
+    /** Create a scanner that reads every index, optionally restricted to classes in the given packages. */
+    public IndexAnnotationScanner(String... packageNames) {
+        this(packageNames, INDEX_RESOURCE);
+    }
+
+    @VisibleForTesting
+    IndexAnnotationScanner(String[] packageNames, String resourceName) {
+        _resourceName = resourceName;
+        _packagePrefixes = new String[packageNames.length];
+        for (int i = 0; i < packageNames.length; i++) {
+            _packagePrefixes[i] = packageNames[i].endsWith(".") ? packageNames[i] : packageNames[i] + ".";
+        }
+    }
+
+    @Override
+    public void addAnnotationClass(Class<? extends Annotation> annotationClass) {
+        // Nothing to do, the index already contains entries for every annotation class it was built for.
+    }
+
+    @Override
+    public List<ClassEntry> getClassesAnnotatedWith(Class<? extends Annotation> annotationClass) {
+        return getIndex().getClasses(annotationClass.getName());
+    }
+
+    @Override
+    public List<MethodEntry> getMethodsAnnotatedWith(Class<? extends Annotation> annotationClass) {
+        return getIndex().getMethods(annotationClass.getName());
+    }
+
+    @Override
+    public List<FieldEntry> getFieldsAnnotatedWith(Class<? extends Annotation> annotationClass) {
+        return getIndex().getFields(annotationClass.getName());
+    }
+
+    /**
+     * Split a line of an index into its tokens, the first of which is the kind of element.  Returns {@code null} for
+     * blank lines and comments.
+     *
+     * @throws IllegalArgumentException if the line isn't a well formed index line
+     */
+    public static List<String> parseLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+            return null;
+        }
+
+        List<String> tokens = Lists.newArrayList(WHITESPACE_SEPARATOR.split(trimmed));
+        String kind = tokens.get(0);
+        int expectedTokens = (ANNOTATION_KIND.equals(kind) || COVERS_KIND.equals(kind)) ? 2
+                : (CLASS_KIND.equals(kind) || JAR_KIND.equals(kind)) ? 3
+                : (METHOD_KIND.equals(kind) || FIELD_KIND.equals(kind)) ? 4
+                : -1;
+        if (tokens.size() != expectedTokens) {
+            throw new IllegalArgumentException("Malformed index line: " + trimmed);
+        }
+        return tokens;
+    }
+
+    /** Whether or not the tokens of a line describe an annotated element, rather than being a declaration. */
+    public static boolean isElement(List<String> tokens) {
+        String kind = tokens.get(0);
+        return CLASS_KIND.equals(kind) || METHOD_KIND.equals(kind) || FIELD_KIND.equals(kind);
+    }
+
+    /** The binary name of the top level class that encloses the class with the given binary name. */
+    public static String topLevelClassName(String className) {
+        int nested = className.indexOf('$', className.lastIndexOf('.') + 1);
+        return (nested >= 0) ? className.substring(0, nested) : className;
+    }
+
+    private ScanResults getIndex() {
+        ScanResults index = _index;
+        if (index == null) {
+            index = loadIndex();
+        }
+        return index;
+    }
+
+    private synchronized ScanResults loadIndex() {
+        if (_index != null) {
+            return _index;
+        }
+
+        ScanResults.Builder index = ScanResults.builder();
+        try {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Enumeration<URL> urls = loader.getResources(_resourceName);
+            while (urls.hasMoreElements()) {
+                readIndex(urls.nextElement(), index);
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        _index = index.build();
+        return _index;
+    }
+
+    private void readIndex(URL url, ScanResults.Builder index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), Charsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+
+                List<String> tokens;
+                try {
+                    tokens = parseLine(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + " of " + url + ": " + e.getMessage());
+                }
+                if (tokens == null || !isElement(tokens) || !isIncluded(tokens.get(2))) {
+                    continue;
+                }
+
+                String kind = tokens.get(0);
+                String annotationClassName = tokens.get(1);
+                String className = tokens.get(2);
+                if (CLASS_KIND.equals(kind)) {
+                    index.addClass(annotationClassName, className);
+                } else if (METHOD_KIND.equals(kind)) {
+                    index.addMethod(annotationClassName, className, tokens.get(3));
+                } else {
+                    index.addField(annotationClassName, className, tokens.get(3));
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(reader);
+        }
+    }
+
+    private boolean isIncluded(String className) {
+        if (_packagePrefixes.length == 0) {
+            return true;
+        }
+
+        for (String prefix : _packagePrefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.Reporter;
+
+/**
+ * Builds an index in the format read by {@link IndexAnnotationScanner} by scanning the bytecode of jars and class
+ * directories, the same way {@link ClassPathAnnotationScanner} does at runtime.  Used at build time to index code that
+ * the annotation processor never saw, such as dependencies that only exist as binary jars.
+ * <p/>
+ * The index declares every annotation class it was built for and covers every class it scanned, so a jar or class
+ * directory that it's packaged in isn't scanned for them at runtime unless it holds classes that weren't scanned.  It
+ * also vouches for the dependency jars it scanned, so they aren't scanned at runtime either as long as their classes
+ * are the same.  It's written sorted so that it's stable from build to build.
+ */
+public final class IndexBuilder {
+    private static final Joiner SPACE_JOINER = Joiner.on(' ');
+
+    private final Set<Class<? extends Annotation>> _annotationClasses;
+    private final Set<String> _annotationNames = Sets.newTreeSet();
+    private final ScanFilter _filter;
+    private final Set<String> _lines = Sets.newTreeSet();
+
+    public IndexBuilder(Set<Class<? extends Annotation>> annotationClasses, ScanFilter filter) {
+        _annotationClasses = ImmutableSet.copyOf(annotationClasses);
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            _annotationNames.add(annotationClass.getName());
+        }
+        _filter = filter;
+    }
+
+    /**
+     * Scan the jar file or class path root directory that the index is packaged in, and add every annotated element
+     * found in the classes that the filter includes.
+     */
+    public void scan(File unit) throws IOException {
+        Reporter reporter = new Reporter(_annotationClasses);
+        new ClassFileScanner(reporter, _filter).scan(unit);
+        addElements(reporter);
+
+        Set<String> classNames = UnitIndex.Contents.read(unit, _filter).getClassNames();
+        if (classNames != null) {
+            for (String className : classNames) {
+                add(IndexAnnotationScanner.COVERS_KIND, IndexAnnotationScanner.topLevelClassName(className));
+            }
+        }
+    }
+
+    /**
+     * Scan a dependency jar that's on the class path next to the index, and add every annotated element found in it.
+     * Every class is scanned whatever the filter's packages, so that the index vouches for the jar as a whole.
+     * Returns {@code false}, without adding anything, for a jar that holds libraries of its own.
+     */
+    public boolean scanDependency(File jar) throws IOException {
+        String fingerprint = UnitIndex.Contents.read(jar, ScanFilter.ALL).getFingerprint();
+        if (fingerprint == null) {
+            return false;
+        }
+
+        Reporter reporter = new Reporter(_annotationClasses);
+        new ClassFileScanner(reporter).scan(jar);
+        addElements(reporter);
+
+        for (String annotationName : _annotationNames) {
+            add(IndexAnnotationScanner.JAR_KIND, annotationName, fingerprint);
+        }
+        return true;
+    }
+
+    private void addElements(Reporter reporter) {
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.ClassEntry> entry
+                : reporter.getTypeAnnotations().entries()) {
+            add(IndexAnnotationScanner.CLASS_KIND, entry.getKey().getName(), entry.getValue().getClassName());
+        }
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.MethodEntry> entry
+                : reporter.getMethodAnnotations().entries()) {
+            add(IndexAnnotationScanner.METHOD_KIND, entry.getKey().getName(), entry.getValue().getClassName(),
+                entry.getValue().getMethodName());
+        }
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.FieldEntry> entry
+                : reporter.getFieldAnnotations().entries()) {
+            add(IndexAnnotationScanner.FIELD_KIND, entry.getKey().getName(), entry.getValue().getClassName(),
+                entry.getValue().getFieldName());
+        }
+    }
+
+    /**
+     * Keep an element line of an existing index, such as the one written by the annotation processor, unless it's for
+     * one of the annotation classes this builder indexes.  Scanning finds the elements of those again.  The existing
+     * declarations are dropped, the index only vouches for what this builder scanned.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public void addExisting(String line) {
+        List<String> tokens = IndexAnnotationScanner.parseLine(line);
+        if (tokens != null && IndexAnnotationScanner.isElement(tokens) && !_annotationNames.contains(tokens.get(1))) {
+            _lines.add(SPACE_JOINER.join(tokens));
+        }
+    }
+
+    /** Whether or not anything has been scanned or kept, the index would only declare the annotation classes. */
+    public boolean isEmpty() {
+        return _lines.isEmpty();
+    }
+
+    /** Write the index. */
+    public void write(Writer writer) throws IOException {
+        Set<String> lines = Sets.newTreeSet(_lines);
+        for (String annotationName : _annotationNames) {
+            lines.add(SPACE_JOINER.join(IndexAnnotationScanner.ANNOTATION_KIND, annotationName));
+        }
+
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    private void add(String... tokens) {
+        _lines.add(SPACE_JOINER.join(tokens));
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.Reporter;
+
+/**
+ * On-disk cache of the annotations found in each jar and class directory of the class path.  Every element is keyed by
+ * its path and a fingerprint of its contents (size and modification time), so an element is only scanned again once it
+ * changes.  Each element also remembers which annotation classes it was scanned for, so results for annotations that
+ * are added incrementally accumulate instead of replacing each other.
+ * <p/>
+ * The cache file is a text file that uses the same entry lines as the {@link IndexAnnotationScanner} index, grouped
+ * under a {@code unit <fingerprint> <annotation classes> <path>} line for every class path element.  It is always
+ * replaced atomically so a crash while it's being written never leaves a partial cache behind.
+ */
+final class ScanCache {
+    private static final String HEADER = "# snitch scan cache v2";
+    private static final String UNIT = "unit";
+
+    private static final Splitter WHITESPACE_SEPARATOR = Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings();
+    private static final Splitter COMMA_SEPARATOR = Splitter.on(',').omitEmptyStrings();
+    private static final Joiner SPACE_JOINER = Joiner.on(' ');
+    private static final Joiner COMMA_JOINER = Joiner.on(',');
+
+    private final File _file;
+    private final Map<File, CachedUnit> _units = Maps.newHashMap();
+
+    /** Whether or not the in-memory contents differ from what's on disk. */
+    private boolean _dirty = false;
+
+    private ScanCache(File file) {
+        _file = file;
+    }
+
+    /** Read the cache from disk.  A cache that is missing or unreadable is treated as empty. */
+    static ScanCache read(File file) {
+        ScanCache cache = new ScanCache(file);
+        if (file.isFile()) {
+            try {
+                cache.load();
+            } catch (IOException e) {
+                cache._units.clear();
+                cache._dirty = true;
+            }
+        }
+        return cache;
+    }
+
+    /** Compute the fingerprint of a jar file or class directory. */
+    static String fingerprint(File unit) {
+        if (unit.isFile()) {
+            return "f" + unit.length() + "-" + unit.lastModified();
+        }
+
+        // A directory's own modification time doesn't change when a class file deeper in it is rewritten, so walk it.
+        long[] stats = new long[3];  // count, total length, latest modification time
+        addDirectoryStats(unit, stats);
+        return "d" + stats[0] + "-" + stats[1] + "-" + stats[2];
+    }
+
+    /**
+     * Return the cached results for a unit, or {@code null} if there are none, they are out of date, or the unit was
+     * never scanned for some of the annotation classes.
+     */
+    Reporter get(File unit, String fingerprint, Set<Class<? extends Annotation>> annotationClasses) {
+        CachedUnit cached = _units.get(unit);
+        if (cached == null || !cached._fingerprint.equals(fingerprint)) {
+            return null;
+        }
+
+        Map<String, Class<? extends Annotation>> byName = Maps.newHashMap();
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            byName.put(annotationClass.getName(), annotationClass);
+        }
+        if (!cached._annotationNames.containsAll(byName.keySet())) {
+            return null;
+        }
+
+        Reporter reporter = new Reporter(annotationClasses);
+        for (CachedEntry entry : cached._entries) {
+            Class<? extends Annotation> annotationClass = byName.get(entry._annotationName);
+            if (annotationClass == null) {
+                continue;
+            }
+
+            if (IndexAnnotationScanner.CLASS_KIND.equals(entry._kind)) {
+                reporter.reportTypeAnnotation(annotationClass, entry._className);
+            } else if (IndexAnnotationScanner.METHOD_KIND.equals(entry._kind)) {
+                reporter.reportMethodAnnotation(annotationClass, entry._className, entry._memberName);
+            } else if (IndexAnnotationScanner.FIELD_KIND.equals(entry._kind)) {
+                reporter.reportFieldAnnotation(annotationClass, entry._className, entry._memberName);
+            }
+        }
+        return reporter;
+    }
+
+    /** Remember the results of scanning a unit for the reporter's annotation classes. */
+    void put(File unit, String fingerprint, Reporter reporter) {
+        Set<String> annotationNames = Sets.newTreeSet();
+        for (Class<? extends Annotation> annotationClass : reporter.getAnnotations()) {
+            annotationNames.add(annotationClass.getName());
+        }
+
+        // Keep what's known about other annotations as long as the unit hasn't changed
+        CachedUnit cached = _units.get(unit);
+        if (cached == null || !cached._fingerprint.equals(fingerprint)) {
+            cached = new CachedUnit(fingerprint);
+            _units.put(unit, cached);
+        }
+        cached._annotationNames.addAll(annotationNames);
+        for (Iterator<CachedEntry> it = cached._entries.iterator(); it.hasNext(); ) {
+            if (annotationNames.contains(it.next()._annotationName)) {
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.ClassEntry> e
+                : reporter.getTypeAnnotations().entries()) {
+            cached._entries.add(new CachedEntry(IndexAnnotationScanner.CLASS_KIND, e.getKey().getName(),
+                    e.getValue().getClassName(), null));
+        }
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.MethodEntry> e
+                : reporter.getMethodAnnotations().entries()) {
+            cached._entries.add(new CachedEntry(IndexAnnotationScanner.METHOD_KIND, e.getKey().getName(),
+                    e.getValue().getClassName(), e.getValue().getMethodName()));
+        }
+        for (Map.Entry<Class<? extends Annotation>, AnnotationScanner.FieldEntry> e
+                : reporter.getFieldAnnotations().entries()) {
+            cached._entries.add(new CachedEntry(IndexAnnotationScanner.FIELD_KIND, e.getKey().getName(),
+                    e.getValue().getClassName(), e.getValue().getFieldName()));
+        }
+        _dirty = true;
+    }
+
+    /** Write the cache to disk, keeping only the given units, if anything has changed since it was read. */
+    void write(Set<File> units) throws IOException {
+        if (_units.keySet().retainAll(units)) {
+            _dirty = true;
+        }
+        if (!_dirty) {
+            return;
+        }
+
+        File dir = _file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+
+        // Write to a temporary file in the same directory and rename it over the cache so readers never see a
+        // partially written file.
+        File temp = File.createTempFile(_file.getName(), ".tmp", dir);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8));
+        try {
+            writeTo(writer);
+        } finally {
+            Closeables.closeQuietly(writer);
+        }
+
+        if (!temp.renameTo(_file)) {
+            // Some platforms won't rename over an existing file
+            if (!_file.delete() || !temp.renameTo(_file)) {
+                temp.delete();
+                throw new IOException("Unable to replace " + _file);
+            }
+        }
+        _dirty = false;
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), Charsets.UTF_8));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Unrecognized cache file " + _file);
+            }
+
+            CachedUnit unit = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> tokens = Lists.newArrayList(WHITESPACE_SEPARATOR.limit(4).split(line));
+                if (tokens.size() == 4 && UNIT.equals(tokens.get(0))) {
+                    // unit <fingerprint> <annotations> <path>, the path is last since it may contain spaces
+                    unit = new CachedUnit(tokens.get(1));
+                    unit._annotationNames.addAll(Lists.newArrayList(COMMA_SEPARATOR.split(tokens.get(2))));
+                    _units.put(new File(tokens.get(3)), unit);
+                } else if (unit != null && tokens.size() >= 3) {
+                    unit._entries.add(readEntry(line));
+                } else {
+                    throw new IOException("Malformed cache line: " + line);
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(reader);
+        }
+    }
+
+    private static CachedEntry readEntry(String line) throws IOException {
+        List<String> tokens = Lists.newArrayList(WHITESPACE_SEPARATOR.split(line));
+        String kind = tokens.get(0);
+        if (IndexAnnotationScanner.CLASS_KIND.equals(kind) && tokens.size() == 3) {
+            return new CachedEntry(kind, tokens.get(1), tokens.get(2), null);
+        } else if ((IndexAnnotationScanner.METHOD_KIND.equals(kind) || IndexAnnotationScanner.FIELD_KIND.equals(kind))
+                && tokens.size() == 4) {
+            return new CachedEntry(kind, tokens.get(1), tokens.get(2), tokens.get(3));
+        }
+        throw new IOException("Malformed cache line: " + line);
+    }
+
+    private void writeTo(Writer writer) throws IOException {
+        writer.write(HEADER);
+        writer.write('\n');
+
+        for (Map.Entry<File, CachedUnit> entry : _units.entrySet()) {
+            CachedUnit unit = entry.getValue();
+            writeLine(writer, UNIT, unit._fingerprint, COMMA_JOINER.join(unit._annotationNames),
+                      entry.getKey().getPath());
+
+            for (CachedEntry cached : unit._entries) {
+                if (cached._memberName == null) {
+                    writeLine(writer, cached._kind, cached._annotationName, cached._className);
+                } else {
+                    writeLine(writer, cached._kind, cached._annotationName, cached._className, cached._memberName);
+                }
+            }
+        }
+    }
+
+    private static void writeLine(Writer writer, String... tokens) throws IOException {
+        writer.write(SPACE_JOINER.join(tokens));
+        writer.write('\n');
+    }
+
+    private static void addDirectoryStats(File dir, long[] stats) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectoryStats(file, stats);
+            } else {
+                stats[0]++;
+                stats[1] += file.length();
+                stats[2] = Math.max(stats[2], file.lastModified());
+            }
+        }
+    }
+
+    private static final class CachedUnit {
+        private final String _fingerprint;
+        private final Set<String> _annotationNames = Sets.newTreeSet();
+        private final List<CachedEntry> _entries = Lists.newArrayList();
+
+        CachedUnit(String fingerprint) {
+            _fingerprint = fingerprint;
+        }
+    }
+
+    private static final class CachedEntry {
+        private final String _kind;
+        private final String _annotationName;
+        private final String _className;
+        private final String _memberName;
+
+        CachedEntry(String kind, String annotationName, String className, String memberName) {
+            _kind = kind;
+            _annotationName = annotationName;
+            _className = className;
+            _memberName = memberName;
+        }
+    }
+}
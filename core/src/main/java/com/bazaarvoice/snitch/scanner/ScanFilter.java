@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.bazaarvoice.snitch.util.Globs;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Rules that decide which parts of the class path are scanned.  Package prefixes are included or excluded, and jars
+ * can be included or excluded by file name using globs such as {@code myservice-*.jar}.
+ * <p/>
+ * The package rules are compiled into a trie keyed by package name segment, so deciding whether a class or directory
+ * is included only walks the segments of its package once no matter how many rules there are.  The most specific rule
+ * wins: excluding {@code com.example.generated} while including {@code com.example} skips just the generated code.
+ * Prefixes match whole segments, {@code com.example} doesn't match {@code com.examples}.  When no packages are
+ * included explicitly every package that isn't excluded is included.
+ */
+public final class ScanFilter {
+    /** A filter that includes everything. */
+    public static final ScanFilter ALL = new ScanFilter(Collections.<String>emptyList());
+
+    private static final Splitter PACKAGE_SEPARATOR = Splitter.on('.').omitEmptyStrings();
+
+    private final List<String> _includedPackages;
+    private final List<String> _excludedPackages;
+    private final List<String> _includedJars;
+    private final List<String> _excludedJars;
+
+    private final Node _root = new Node();
+    private final List<Pattern> _includedJarPatterns = Lists.newArrayList();
+    private final List<Pattern> _excludedJarPatterns = Lists.newArrayList();
+
+    public ScanFilter(Collection<String> includedPackages) {
+        this(includedPackages, Collections.<String>emptyList(), Collections.<String>emptyList(),
+             Collections.<String>emptyList());
+    }
+
+    public ScanFilter(Collection<String> includedPackages, Collection<String> excludedPackages,
+                      Collection<String> includedJars, Collection<String> excludedJars) {
+        _includedPackages = ImmutableList.copyOf(includedPackages);
+        _excludedPackages = ImmutableList.copyOf(excludedPackages);
+        _includedJars = ImmutableList.copyOf(includedJars);
+        _excludedJars = ImmutableList.copyOf(excludedJars);
+
+        // When nothing is included explicitly everything is, but excluded packages can still be skipped
+        _root._rule = _includedPackages.isEmpty() ? Rule.INCLUDE : Rule.EXCLUDE;
+        for (String packageName : _includedPackages) {
+            addRule(packageName, Rule.INCLUDE);
+        }
+        for (String packageName : _excludedPackages) {
+            addRule(packageName, Rule.EXCLUDE);
+        }
+
+        for (String glob : _includedJars) {
+            _includedJarPatterns.add(Globs.toPattern(glob));
+        }
+        for (String glob : _excludedJars) {
+            _excludedJarPatterns.add(Globs.toPattern(glob));
+        }
+    }
+
+    public List<String> getIncludedPackages() {
+        return _includedPackages;
+    }
+
+    /** Determine whether or not a jar should be scanned, based on its file name alone. */
+    public boolean includesJar(String jarName) {
+        for (Pattern pattern : _excludedJarPatterns) {
+            if (pattern.matcher(jarName).matches()) {
+                return false;
+            }
+        }
+        if (_includedJarPatterns.isEmpty()) {
+            return true;
+        }
+        for (Pattern pattern : _includedJarPatterns) {
+            if (pattern.matcher(jarName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether or not a class should be scanned given the path of its class file relative to the class path
+     * root, e.g. {@code com/example/Foo.class}.
+     */
+    public boolean includesClass(String path) {
+        Node node = _root;
+        Rule rule = node._rule;
+
+        int start = 0;
+        int end;
+        while ((end = path.indexOf('/', start)) >= 0) {
+            node = node.child(path, start, end);
+            if (node == null) {
+                break;
+            }
+            if (node._rule != null) {
+                rule = node._rule;
+            }
+            start = end + 1;
+        }
+        return rule == Rule.INCLUDE;
+    }
+
+    /**
+     * Determine whether or not a directory might contain classes that should be scanned given its path relative to the
+     * class path root, e.g. {@code com/example}.  Directories that can't are skipped without being listed.
+     */
+    public boolean includesDirectory(String path) {
+        Node node = _root;
+        Rule rule = node._rule;
+
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+
+            node = node.child(path, start, end);
+            if (node == null) {
+                return rule == Rule.INCLUDE;
+            }
+            if (node._rule != null) {
+                rule = node._rule;
+            }
+            start = end + 1;
+        }
+        return rule == Rule.INCLUDE || node._includesBelow;
+    }
+
+    /** A key that changes whenever the rules do, so results computed with different rules can be told apart. */
+    String getKey() {
+        return Integer.toHexString(toString().hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("includedPackages", ImmutableSortedSet.copyOf(_includedPackages))
+                .add("excludedPackages", ImmutableSortedSet.copyOf(_excludedPackages))
+                .add("includedJars", ImmutableSortedSet.copyOf(_includedJars))
+                .add("excludedJars", ImmutableSortedSet.copyOf(_excludedJars))
+                .toString();
+    }
+
+    private void addRule(String packageName, Rule rule) {
+        Node node = _root;
+        for (String segment : PACKAGE_SEPARATOR.split(packageName)) {
+            if (rule == Rule.INCLUDE) {
+                node._includesBelow = true;
+            }
+
+            Node child = node._children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node._children.put(segment, child);
+            }
+            node = child;
+        }
+
+        // Excluding a package takes precedence over including the same package
+        if (node._rule != Rule.EXCLUDE) {
+            node._rule = rule;
+        }
+    }
+
+    private static enum Rule {
+        INCLUDE, EXCLUDE
+    }
+
+    private static final class Node {
+        private final Map<String, Node> _children = Maps.newHashMap();
+
+        /** The rule for this package, or {@code null} if the rule of the closest ancestor applies. */
+        private Rule _rule;
+
+        /** Whether or not some package below this one is included. */
+        private boolean _includesBelow;
+
+        Node child(String path, int start, int end) {
+            return _children.isEmpty() ? null : _children.get(path.substring(start, end));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Immutable, compact storage for the annotated elements found by a scan.  Instead of holding one entry object per
+ * annotated class, method and field, every class and member name is stored exactly once in a shared string table and
+ * the entries for each annotation are stored as arrays of offsets into that table.  On class paths with tens of
+ * thousands of monitored members this keeps the resident footprint to a few bytes per element.
+ * <p/>
+ * The entries are exposed as read-only lists through the {@link AnnotationScanner} entry interfaces.  Entry objects are
+ * created on demand as the lists are read and share the strings in the table, so callers that hold on to them don't
+ * duplicate any names.
+ */
+final class ScanResults {
+    static final ScanResults EMPTY = new Builder().build();
+
+    /** Every distinct class and member name, each one stored once. */
+    private final String[] _strings;
+
+    /** Offsets of the class names of annotated classes, keyed by annotation class name. */
+    private final Map<String, int[]> _classes;
+
+    /** Pairs of class name and method name offsets of annotated methods, keyed by annotation class name. */
+    private final Map<String, int[]> _methods;
+
+    /** Pairs of class name and field name offsets of annotated fields, keyed by annotation class name. */
+    private final Map<String, int[]> _fields;
+
+    private ScanResults(String[] strings, Map<String, int[]> classes, Map<String, int[]> methods,
+                        Map<String, int[]> fields) {
+        _strings = strings;
+        _classes = classes;
+        _methods = methods;
+        _fields = fields;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    List<AnnotationScanner.ClassEntry> getClasses(String annotationClassName) {
+        final int[] offsets = _classes.get(annotationClassName);
+        if (offsets == null) {
+            return Collections.emptyList();
+        }
+
+        return new EntryList<AnnotationScanner.ClassEntry>(offsets.length) {
+            @Override
+            public AnnotationScanner.ClassEntry get(int index) {
+                return new ClassEntry(_strings[offsets[checkIndex(index)]]);
+            }
+        };
+    }
+
+    List<AnnotationScanner.MethodEntry> getMethods(String annotationClassName) {
+        final int[] offsets = _methods.get(annotationClassName);
+        if (offsets == null) {
+            return Collections.emptyList();
+        }
+
+        return new EntryList<AnnotationScanner.MethodEntry>(offsets.length / 2) {
+            @Override
+            public AnnotationScanner.MethodEntry get(int index) {
+                int i = 2 * checkIndex(index);
+                return new MethodEntry(_strings[offsets[i]], _strings[offsets[i + 1]]);
+            }
+        };
+    }
+
+    List<AnnotationScanner.FieldEntry> getFields(String annotationClassName) {
+        final int[] offsets = _fields.get(annotationClassName);
+        if (offsets == null) {
+            return Collections.emptyList();
+        }
+
+        return new EntryList<AnnotationScanner.FieldEntry>(offsets.length / 2) {
+            @Override
+            public AnnotationScanner.FieldEntry get(int index) {
+                int i = 2 * checkIndex(index);
+                return new FieldEntry(_strings[offsets[i]], _strings[offsets[i + 1]]);
+            }
+        };
+    }
+
+    /** Read-only list view over a run of offsets.  Mutators are inherited from {@code AbstractList} and throw. */
+    private abstract static class EntryList<E> extends AbstractList<E> implements RandomAccess {
+        private final int _size;
+
+        EntryList(int size) {
+            _size = size;
+        }
+
+        @Override
+        public int size() {
+            return _size;
+        }
+
+        int checkIndex(int index) {
+            if (index < 0 || index >= _size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+            }
+            return index;
+        }
+    }
+
+    /** Accumulates entries, interning names as they're added. */
+    static final class Builder {
+        private final Map<String, Integer> _offsets = Maps.newHashMap();
+        private String[] _strings = new String[64];
+        private int _numStrings = 0;
+
+        private final Map<String, IntArray> _classes = Maps.newHashMap();
+        private final Map<String, IntArray> _methods = Maps.newHashMap();
+        private final Map<String, IntArray> _fields = Maps.newHashMap();
+
+        private Builder() {
+        }
+
+        Builder addClass(String annotationClassName, String className) {
+            offsets(_classes, annotationClassName).add(intern(className));
+            return this;
+        }
+
+        Builder addMethod(String annotationClassName, String className, String methodName) {
+            IntArray offsets = offsets(_methods, annotationClassName);
+            offsets.add(intern(className));
+            offsets.add(intern(methodName));
+            return this;
+        }
+
+        Builder addField(String annotationClassName, String className, String fieldName) {
+            IntArray offsets = offsets(_fields, annotationClassName);
+            offsets.add(intern(className));
+            offsets.add(intern(fieldName));
+            return this;
+        }
+
+        /** Add every entry of an existing set of results. */
+        Builder addAll(ScanResults results) {
+            for (Map.Entry<String, int[]> entry : results._classes.entrySet()) {
+                for (AnnotationScanner.ClassEntry e : results.getClasses(entry.getKey())) {
+                    addClass(entry.getKey(), e.getClassName());
+                }
+            }
+            for (Map.Entry<String, int[]> entry : results._methods.entrySet()) {
+                for (AnnotationScanner.MethodEntry e : results.getMethods(entry.getKey())) {
+                    addMethod(entry.getKey(), e.getClassName(), e.getMethodName());
+                }
+            }
+            for (Map.Entry<String, int[]> entry : results._fields.entrySet()) {
+                for (AnnotationScanner.FieldEntry e : results.getFields(entry.getKey())) {
+                    addField(entry.getKey(), e.getClassName(), e.getFieldName());
+                }
+            }
+            return this;
+        }
+
+        ScanResults build() {
+            return new ScanResults(Arrays.copyOf(_strings, _numStrings), trim(_classes), trim(_methods),
+                                   trim(_fields));
+        }
+
+        private int intern(String s) {
+            Integer offset = _offsets.get(s);
+            if (offset == null) {
+                if (_numStrings == _strings.length) {
+                    _strings = Arrays.copyOf(_strings, 2 * _strings.length);
+                }
+                offset = _numStrings++;
+                _strings[offset] = s;
+                _offsets.put(s, offset);
+            }
+            return offset;
+        }
+
+        private static IntArray offsets(Map<String, IntArray> map, String annotationClassName) {
+            IntArray offsets = map.get(annotationClassName);
+            if (offsets == null) {
+                offsets = new IntArray();
+                map.put(annotationClassName, offsets);
+            }
+            return offsets;
+        }
+
+        private static Map<String, int[]> trim(Map<String, IntArray> map) {
+            ImmutableMap.Builder<String, int[]> builder = ImmutableMap.builder();
+            for (Map.Entry<String, IntArray> entry : map.entrySet()) {
+                builder.put(entry.getKey(), entry.getValue().toArray());
+            }
+            return builder.build();
+        }
+    }
+
+    /** Growable array of ints, avoids boxing every offset while the results are being built. */
+    private static final class IntArray {
+        private int[] _values = new int[16];
+        private int _size = 0;
+
+        void add(int value) {
+            if (_size == _values.length) {
+                _values = Arrays.copyOf(_values, 2 * _values.length);
+            }
+            _values[_size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(_values, _size);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.MapMaker;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide cache of class path scan results, so that scanners created when Snitch is re-initialized don't scan a
+ * class path that has already been scanned.  Results are kept per annotation and per jar or class directory, and are
+ * keyed by the configured rules that decided what was scanned, so a scanner only reuses results for exactly the
+ * packages and jars it would have scanned itself.
+ * <p/>
+ * The class path that was scanned is the one visible to the context class loader at the time, so results are also
+ * scoped to that class loader.  Class loaders are weakly referenced, the results for an undeployed application go
+ * away with its class loader.
+ */
+final class SharedScanResults {
+    private static final ConcurrentMap<ClassLoader, ConcurrentMap<String, ScanResults>> RESULTS =
+            new MapMaker().weakKeys().makeMap();
+
+    private SharedScanResults() {
+    }
+
+    /**
+     * Return the results of an earlier scan of {@code unit} for {@code annotationClassName}, or {@code null} if there
+     * are none.
+     */
+    static ScanResults get(ClassLoader loader, ScanFilter filter, File unit, String annotationClassName) {
+        ConcurrentMap<String, ScanResults> results = RESULTS.get(loader);
+        return (results != null) ? results.get(key(filter, unit, annotationClassName)) : null;
+    }
+
+    /** Remember the results of a scan of a single jar or class directory for a single annotation. */
+    static void put(ClassLoader loader, ScanFilter filter, File unit, String annotationClassName,
+                    ScanResults results) {
+        ConcurrentMap<String, ScanResults> loaderResults = RESULTS.get(loader);
+        if (loaderResults == null) {
+            loaderResults = new MapMaker().makeMap();
+            ConcurrentMap<String, ScanResults> existing = RESULTS.putIfAbsent(loader, loaderResults);
+            if (existing != null) {
+                loaderResults = existing;
+            }
+        }
+        loaderResults.put(key(filter, unit, annotationClassName), results);
+    }
+
+    static void clear() {
+        RESULTS.clear();
+    }
+
+    private static String key(ScanFilter filter, File unit, String annotationClassName) {
+        // The full description of the filter rather than its hash, two different filters must never share results
+        return filter + " " + unit.getAbsolutePath() + " " + annotationClassName;
+    }
+}
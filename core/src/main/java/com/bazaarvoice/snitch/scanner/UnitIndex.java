@@ -0,0 +1,334 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.Reporter;
+
+/**
+ * The {@value IndexAnnotationScanner#INDEX_RESOURCE} resource at the root of a single jar or class directory, which
+ * spares the unit from being scanned for the annotation classes the index declares.
+ * <p/>
+ * An index is only trusted when it covers every class in the unit that the filter includes.  A unit can hold classes
+ * that whoever wrote the index never saw, such as the classes that a shaded jar took from other modules, or classes of
+ * a directory that a compiler other than javac wrote into.  Their annotated members would silently be missing, so such
+ * a unit is scanned instead.
+ * <p/>
+ * An index built by the Maven plugin also vouches for the dependency jars that were indexed along with the artifact,
+ * by a fingerprint of their classes.  A jar on the class path whose classes still have that fingerprint isn't scanned,
+ * the entries of its classes are taken from the vouching index instead.
+ * <p/>
+ * Entries go through the same filter as scanned classes, and only the entries for classes in the unit are used.
+ */
+final class UnitIndex {
+    private static final Logger LOG = Logger.getLogger(UnitIndex.class.getName());
+
+    /** Class files that never have annotated members, and that aren't named after a class javac compiled. */
+    private static final String PACKAGE_INFO = "package-info";
+    private static final String MODULE_INFO = "module-info";
+
+    private final Set<String> _annotationNames = Sets.newHashSet();
+    private final Set<String> _coveredClassNames = Sets.newHashSet();
+    private final List<List<String>> _elements = Lists.newArrayList();
+
+    /** The fingerprints of the jars that the index lists every element of, indexed by annotation class name. */
+    private final Multimap<String, String> _jarFingerprints = HashMultimap.create();
+
+    private UnitIndex() {
+    }
+
+    /** Read the indexes of the units that have one. */
+    static Map<File, UnitIndex> readAll(Collection<File> units) {
+        Map<File, UnitIndex> indexes = Maps.newHashMap();
+        for (File unit : units) {
+            UnitIndex index = read(unit);
+            if (index != null) {
+                indexes.put(unit, index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Return the indexed entries of a unit for {@code annotationClasses}, or {@code null} if the unit has to be
+     * scanned.  The entries for an annotation class come from the unit's own index if it declares the annotation class
+     * and covers every class in the unit, or otherwise from an index that vouches for the unit's classes as they are.
+     */
+    static Reporter find(File unit, Map<File, UnitIndex> indexes, Set<Class<? extends Annotation>> annotationClasses,
+                         ScanFilter filter) {
+        UnitIndex own = indexes.get(unit);
+        boolean ownDeclares = (own != null) && own.declaresAll(annotationClasses);
+        if (!ownDeclares && !(unit.isFile() && vouchesForJars(indexes.values()))) {
+            return null;  // Don't even list the unit's classes
+        }
+
+        Contents contents;
+        try {
+            contents = Contents.read(unit, filter);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to list the classes of " + unit + ", scanning it instead", e);
+            return null;
+        }
+        if (contents.getClassNames() == null) {
+            return null;
+        }
+
+        boolean ownCovers = ownDeclares && own.covers(contents.getClassNames());
+        Reporter reporter = new Reporter(annotationClasses);
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            UnitIndex source = ownCovers ? own : findVouching(indexes.values(), annotationClass, contents);
+            if (source == null) {
+                return null;
+            }
+            source.report(reporter, annotationClass, contents.getClassNames());
+        }
+        return reporter;
+    }
+
+    private static boolean vouchesForJars(Collection<UnitIndex> indexes) {
+        for (UnitIndex index : indexes) {
+            if (!index._jarFingerprints.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static UnitIndex findVouching(Collection<UnitIndex> indexes, Class<? extends Annotation> annotationClass,
+                                          Contents contents) {
+        if (contents.getFingerprint() == null) {
+            return null;
+        }
+        for (UnitIndex index : indexes) {
+            if (index._jarFingerprints.containsEntry(annotationClass.getName(), contents.getFingerprint())) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /** Read the index of a unit, or return {@code null} if it has none or the index is unreadable. */
+    private static UnitIndex read(File unit) {
+        try {
+            if (unit.isDirectory()) {
+                File indexFile = new File(unit, IndexAnnotationScanner.INDEX_RESOURCE);
+                return indexFile.isFile() ? read(new FileInputStream(indexFile)) : null;
+            }
+
+            ZipFile zip = new ZipFile(unit);
+            try {
+                ZipEntry indexEntry = zip.getEntry(IndexAnnotationScanner.INDEX_RESOURCE);
+                return (indexEntry != null) ? read(zip.getInputStream(indexEntry)) : null;
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read the index of " + unit + ", scanning it instead", e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Malformed index in " + unit + ", scanning it instead: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static UnitIndex read(InputStream in) throws IOException {
+        UnitIndex index = new UnitIndex();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> tokens = IndexAnnotationScanner.parseLine(line);
+                if (tokens == null) {
+                    continue;
+                }
+
+                String kind = tokens.get(0);
+                if (IndexAnnotationScanner.ANNOTATION_KIND.equals(kind)) {
+                    index._annotationNames.add(tokens.get(1));
+                } else if (IndexAnnotationScanner.COVERS_KIND.equals(kind)) {
+                    index._coveredClassNames.add(tokens.get(1));
+                } else if (IndexAnnotationScanner.JAR_KIND.equals(kind)) {
+                    index._jarFingerprints.put(tokens.get(1), tokens.get(2));
+                } else {
+                    index._elements.add(tokens);
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(reader);
+        }
+        return index;
+    }
+
+    private boolean declaresAll(Set<Class<? extends Annotation>> annotationClasses) {
+        for (Class<? extends Annotation> annotationClass : annotationClasses) {
+            if (!_annotationNames.contains(annotationClass.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether or not every one of the classes is nested in a top level class that the index covers. */
+    private boolean covers(Set<String> classNames) {
+        for (String className : classNames) {
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            if (simpleName.equals(PACKAGE_INFO) || simpleName.equals(MODULE_INFO)) {
+                continue;
+            }
+            if (!_coveredClassNames.contains(IndexAnnotationScanner.topLevelClassName(className))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Report the index's elements annotated with {@code annotationClass} that belong to one of the classes. */
+    private void report(Reporter reporter, Class<? extends Annotation> annotationClass, Set<String> classNames) {
+        String annotationName = annotationClass.getName();
+        for (List<String> tokens : _elements) {
+            String className = tokens.get(2);
+            if (!tokens.get(1).equals(annotationName) || !classNames.contains(className)) {
+                continue;
+            }
+
+            String kind = tokens.get(0);
+            if (IndexAnnotationScanner.CLASS_KIND.equals(kind)) {
+                reporter.reportTypeAnnotation(annotationClass, className);
+            } else if (IndexAnnotationScanner.METHOD_KIND.equals(kind)) {
+                reporter.reportMethodAnnotation(annotationClass, className, tokens.get(3));
+            } else {
+                reporter.reportFieldAnnotation(annotationClass, className, tokens.get(3));
+            }
+        }
+    }
+
+    /** The classes in a jar or class directory. */
+    static final class Contents {
+        private final Set<String> _classNames;
+        private final String _fingerprint;
+
+        private Contents(Set<String> classNames, String fingerprint) {
+            _classNames = classNames;
+            _fingerprint = fingerprint;
+        }
+
+        /** List the classes in a unit. */
+        static Contents read(File unit, ScanFilter filter) throws IOException {
+            if (unit.isDirectory()) {
+                Set<String> classNames = Sets.newHashSet();
+                listDirectory(unit, "", filter, classNames);
+                return new Contents(classNames, null);
+            }
+
+            Set<String> classNames = Sets.newHashSet();
+            Map<String, Long> checksums = Maps.newTreeMap();
+            ZipFile zip = new ZipFile(unit);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (ClassFileScanner.isLibrary(name)
+                            && filter.includesJar(name.substring(name.lastIndexOf('/') + 1))) {
+                        return new Contents(null, null);
+                    }
+                    if (!name.endsWith(ClassFileScanner.CLASS_SUFFIX)) {
+                        continue;
+                    }
+
+                    checksums.put(name, entry.getCrc());
+                    String path = ClassFileScanner.stripClassesPrefix(name);
+                    if (filter.includesClass(path)) {
+                        classNames.add(toClassName(path));
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+
+            // The checksums are in the jar's central directory, the classes don't need to be read to fingerprint them
+            Hasher hasher = Hashing.md5().newHasher();
+            for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+                hasher.putString(entry.getKey()).putLong(entry.getValue());
+            }
+            return new Contents(classNames, hasher.hash().toString());
+        }
+
+        /**
+         * The binary names of the classes that the filter includes, or {@code null} if the unit holds libraries that
+         * would be scanned along with it.  An index never covers or vouches for those.
+         */
+        Set<String> getClassNames() {
+            return _classNames;
+        }
+
+        /**
+         * A fingerprint of every class in a jar, whatever the filter, or {@code null} for a class directory or a jar
+         * that holds libraries.  Jars with the same classes have the same fingerprint, wherever they're copied to.
+         */
+        String getFingerprint() {
+            return _fingerprint;
+        }
+
+        private static void listDirectory(File dir, String path, ScanFilter filter, Set<String> classNames) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            for (File file : files) {
+                String filePath = path + file.getName();
+                if (file.isDirectory()) {
+                    if (filter.includesDirectory(filePath)) {
+                        listDirectory(file, filePath + "/", filter, classNames);
+                    }
+                } else if (filePath.endsWith(ClassFileScanner.CLASS_SUFFIX) && filter.includesClass(filePath)) {
+                    classNames.add(toClassName(filePath));
+                }
+            }
+        }
+
+        private static String toClassName(String path) {
+            return path.substring(0, path.length() - ClassFileScanner.CLASS_SUFFIX.length()).replace('/', '.');
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.bazaarvoice.snitch.util;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface ClassDetector {
     /** Determine whether or not a class has been loaded. */
     boolean isClassLoaded(String className);
@@ -26,4 +29,11 @@ public interface ClassDetector {
      *  found, loaded, or initialized then {@code null} will be returned.
      */
     Class<?> getLoadedClass(String className);
+
+    /**
+     * Determine which of a set of classes have been loaded, in a single pass.  The returned map only contains the
+     * classes that have been loaded, keyed by name.  Unlike {@link #getLoadedClass(String)} this never triggers a
+     * class to be loaded.
+     */
+    Map<String, Class<?>> getLoadedClasses(Collection<String> classNames);
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Glob matching shared by everything that accepts globs, so they all agree on what a glob means.  {@code *} matches
+ * any number of characters, {@code ?} matches a single character and everything else matches itself.
+ */
+public final class Globs {
+    private Globs() {
+    }
+
+    /** Whether or not a string has any wildcards in it, if it doesn't it only ever matches itself. */
+    public static boolean hasWildcards(String glob) {
+        return glob.indexOf('*') >= 0 || glob.indexOf('?') >= 0;
+    }
+
+    /** Return a pattern that matches exactly the strings that a glob matches. */
+    public static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
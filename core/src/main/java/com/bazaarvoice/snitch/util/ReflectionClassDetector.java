@@ -1,5 +1,5 @@
 /*
- * Copyright 2011 Bazaarvoice
+ * Copyright 2012 Bazaarvoice
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,52 +15,200 @@
  */
 package com.bazaarvoice.snitch.util;
 
-import com.google.common.base.Throwables;
+import com.bazaarvoice.snitch.agent.SnitchAgent;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * A utility class that can be used to determine whether or not a class has been loaded or not.  This implementation
- * will not cause classes to be loaded if they aren't already loaded.
+ * Detects loaded classes by asking class loaders which classes they've already loaded, without ever loading any.
  * <p/>
- * This implementation isn't the most elegant because it relies on reflection and the ability to call
- * <code>setAccessible(true)</code> on the final protected {@link ClassLoader#findLoadedClass} method.  Unfortunately
- * there really isn't a better way to do this without forcing the entire application to load all classes with a custom
- * class loader or requiring the use of a java agent.
+ * A class loader only knows about the classes that were loaded through it, so in containers where applications have
+ * their own class loaders a class can be missed when only one loader is asked.  By default every loader from the
+ * thread context class loader up to the system class loader is asked, or a specific set of loaders can be given.
+ * <p/>
+ * Asking relies on calling <code>setAccessible(true)</code> on the protected {@link ClassLoader#findLoadedClass}
+ * method.  Where the JVM denies that, such as a JVM from Java 9 on that doesn't open {@code java.lang} to us, the
+ * {@link SnitchAgent} is asked for the classes each loader has loaded instead.  Without the agent no class is ever
+ * detected as loaded, but none is loaded just to find out either.
  */
 public class ReflectionClassDetector implements ClassDetector {
-    private final ClassLoader _loader;
+    private static final Logger LOG = Logger.getLogger(ReflectionClassDetector.class.getName());
+
+    /** The class loaders to ask, in order.  Held weakly so that applications can still be unloaded. */
+    private final List<WeakReference<ClassLoader>> _loaders;
+
+    /** {@code ClassLoader.findLoadedClass}, or {@code null} if it can't be made accessible. */
     private final Method _findLoadedClassMethod;
 
+    /** Probe the thread context class loader and all of its ancestors. */
     public ReflectionClassDetector() {
-        _loader = Thread.currentThread().getContextClassLoader();
+        this(withAncestors(contextClassLoader()));
+    }
 
-        try {
-            _findLoadedClassMethod = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
-            _findLoadedClassMethod.setAccessible(true);
-        } catch (NoSuchMethodException e) {
-            throw Throwables.propagate(e);
+    /** Probe exactly the given class loaders, in order. */
+    public ReflectionClassDetector(Collection<ClassLoader> loaders) {
+        this(loaders, FindLoadedClass.METHOD);
+    }
+
+    @VisibleForTesting
+    ReflectionClassDetector(Collection<ClassLoader> loaders, Method findLoadedClassMethod) {
+        ImmutableList.Builder<WeakReference<ClassLoader>> references = ImmutableList.builder();
+        for (ClassLoader loader : loaders) {
+            references.add(new WeakReference<ClassLoader>(loader));
         }
+        _loaders = references.build();
+        _findLoadedClassMethod = findLoadedClassMethod;
     }
 
     public boolean isClassLoaded(String className) {
-        try {
-            Class<?> cls = (Class<?>) _findLoadedClassMethod.invoke(_loader, className);
-            return cls != null;
-        } catch (IllegalAccessException e) {
-            return false;
-        } catch (InvocationTargetException e) {
-            return false;
-        }
+        return findLoadedClass(className) != null;
     }
     
     public Class<?> getLoadedClass(String className) {
-        // Our caller knows that we may trigger the class to be loaded so calling Class.forName should be okay.
+        Class<?> cls = findLoadedClass(className);
+        if (cls != null) {
+            return cls;
+        }
+
+        // Our caller knows that we may trigger the class to be loaded so loading it should be okay.  Use the loaders
+        // we probe rather than our own, which might not be able to see the class at all.
+        for (WeakReference<ClassLoader> reference : _loaders) {
+            ClassLoader loader = reference.get();
+            if (loader == null) {
+                continue;
+            }
+
+            try {
+                return Class.forName(className, true, loader);
+            } catch (ClassNotFoundException e) {
+                // Try the next loader
+            } catch (LinkageError e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public Map<String, Class<?>> getLoadedClasses(Collection<String> classNames) {
+        if (classNames.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        // Ask each loader about every class that an earlier loader didn't know about
+        Map<String, Class<?>> loaded = Maps.newHashMap();
+        List<String> remaining = Lists.newArrayList(classNames);
+        for (WeakReference<ClassLoader> reference : _loaders) {
+            ClassLoader loader = reference.get();
+            if (loader == null) {
+                continue;
+            }
+
+            Map<String, Class<?>> initiated = (_findLoadedClassMethod == null) ? initiatedClasses(loader) : null;
+            for (int i = remaining.size() - 1; i >= 0; i--) {
+                Class<?> cls = (initiated != null)
+                        ? initiated.get(remaining.get(i))
+                        : findLoadedClass(loader, remaining.get(i));
+                if (cls != null) {
+                    loaded.put(remaining.get(i), cls);
+
+                    // Order doesn't matter, so fill the hole with the last name instead of shifting them all
+                    remaining.set(i, remaining.get(remaining.size() - 1));
+                    remaining.remove(remaining.size() - 1);
+                }
+            }
+            if (remaining.isEmpty()) {
+                break;
+            }
+        }
+        return loaded;
+    }
+
+    private Class<?> findLoadedClass(String className) {
+        for (WeakReference<ClassLoader> reference : _loaders) {
+            ClassLoader loader = reference.get();
+            Class<?> cls = (loader != null) ? findLoadedClass(loader, className) : null;
+            if (cls != null) {
+                return cls;
+            }
+        }
+        return null;
+    }
+
+    private Class<?> findLoadedClass(ClassLoader loader, String className) {
+        if (_findLoadedClassMethod == null) {
+            return initiatedClasses(loader).get(className);
+        }
+
         try {
-            return Class.forName(className);
-        } catch (ClassNotFoundException e) {
+            return (Class<?>) _findLoadedClassMethod.invoke(loader, className);
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
             return null;
         }
     }
+
+    /**
+     * The classes that the agent saw being loaded through a loader, keyed by name, for when we aren't allowed to ask
+     * the loader itself.  Empty if the agent isn't installed.
+     */
+    private static Map<String, Class<?>> initiatedClasses(ClassLoader loader) {
+        Class<?>[] classes = SnitchAgent.getInitiatedClasses(loader);
+        Map<String, Class<?>> byName = Maps.newHashMapWithExpectedSize(classes.length);
+        for (Class<?> cls : classes) {
+            byName.put(cls.getName(), cls);
+        }
+        return byName;
+    }
+
+    private static ClassLoader contextClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return (loader != null) ? loader : ReflectionClassDetector.class.getClassLoader();
+    }
+
+    /**
+     * Holds {@code ClassLoader.findLoadedClass}, looked up the first time a detector is created.  Looking it up never
+     * fails, so a JVM that denies access to it can't leave this class unusable.
+     */
+    private static final class FindLoadedClass {
+        static final Method METHOD = lookup();
+
+        private static final String UNAVAILABLE = "ClassLoader.findLoadedClass is not accessible, loaded classes "
+                + "will only be detected with the Snitch agent installed";
+
+        private static Method lookup() {
+            try {
+                Method method = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException e) {
+                LOG.log(Level.WARNING, UNAVAILABLE, e);
+                return null;
+            } catch (RuntimeException e) {
+                // Newer JVMs deny access to the internals of java.lang unless they're explicitly opened
+                LOG.log(Level.WARNING, UNAVAILABLE + ", unless java.base/java.lang is opened to it", e);
+                return null;
+            }
+        }
+    }
+
+    private static List<ClassLoader> withAncestors(ClassLoader loader) {
+        List<ClassLoader> loaders = Lists.newArrayList();
+        for (; loader != null; loader = loader.getParent()) {
+            loaders.add(loader);
+        }
+        return loaders;
+    }
 }
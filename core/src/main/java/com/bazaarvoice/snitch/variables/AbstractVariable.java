@@ -15,24 +15,32 @@
  */
 package com.bazaarvoice.snitch.variables;
 
-import com.bazaarvoice.snitch.Variable;
+import com.bazaarvoice.snitch.Cost;
 
 import java.lang.ref.WeakReference;
 
-abstract class AbstractVariable implements Variable {
-    protected final Class<?> _owner;
+abstract class AbstractVariable implements CostedVariable {
+    /** Held weakly so that static variables don't keep their class loader from being unloaded. */
+    protected final WeakReference<Class<?>> _owner;
     protected final String _name;
     protected final WeakReference<Object> _instance;
+    protected final Cost _cost;
 
-    protected AbstractVariable(Class<?> owner, String name, WeakReference<Object> instance) {
+    protected AbstractVariable(Class<?> owner, String name, WeakReference<Object> instance, Cost cost) {
+        this(new WeakReference<Class<?>>(owner), name, instance, cost);
+    }
+
+    /** Share a weak reference to the owner, such as the one held by an {@link InstanceTemplate}. */
+    protected AbstractVariable(WeakReference<Class<?>> owner, String name, WeakReference<Object> instance, Cost cost) {
         _owner = owner;
         _name = name;
         _instance = instance;
+        _cost = cost;
     }
 
     @Override
     public final Class<?> getOwner() {
-        return _owner;
+        return _owner.get();
     }
 
     @Override
@@ -40,6 +48,11 @@ abstract class AbstractVariable implements Variable {
         return _name;
     }
 
+    @Override
+    public final Cost getCost() {
+        return _cost;
+    }
+
     @Override
     public Object getInstance() {
         return (_instance != null) ? _instance.get() : null;
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.bazaarvoice.snitch.Aggregate;
+import com.bazaarvoice.snitch.Cost;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single variable that combines the values of an aggregated instance member across every registered instance, for
+ * every class with an aggregated member of the same name.  The value is computed in one pass over the instances, the
+ * value of each instance is read straight from its member and no per instance variables are created.
+ * <p/>
+ * Whole numbers are combined as {@code long}s and everything else as {@code double}s, depending on the declared type
+ * of the first member.  Values that aren't numbers, including the exceptions thrown while reading them, are skipped.
+ * The first exception thrown by each member is logged, the member is likely to throw on every scrape after it.
+ */
+final class AggregateVariable implements CostedVariable {
+    private static final Logger LOG = Logger.getLogger(AggregateVariable.class.getName());
+
+    private static final Set<Class<?>> WHOLE_NUMBER_TYPES = ImmutableSet.<Class<?>>of(
+            byte.class, short.class, int.class, long.class,
+            Byte.class, Short.class, Integer.class, Long.class, AtomicInteger.class, AtomicLong.class);
+
+    private final String _name;
+    private final Aggregate _aggregate;
+    private final Cost _cost;
+
+    /** Every aggregated member with this name.  Added to when classes are first seen, read on every scrape. */
+    private final List<Source> _sources = new CopyOnWriteArrayList<Source>();
+
+    AggregateVariable(String name, Aggregate aggregate, Cost cost) {
+        _name = name;
+        _aggregate = aggregate;
+        _cost = cost;
+    }
+
+    Aggregate getAggregate() {
+        return _aggregate;
+    }
+
+    /**
+     * Whether or not the aggregated member at {@code index} of a template can be combined with the members that have
+     * already been added.  It has to be combined the same way, cost the same and be the same kind of number.
+     */
+    boolean accepts(InstanceTemplate template, int index) {
+        if (template.getAggregate(index) != _aggregate || template.getAggregatedCost(index) != _cost) {
+            return false;
+        }
+        if (_aggregate == Aggregate.COUNT) {
+            return true;  // Only instances are counted, values are never read
+        }
+
+        Class<?> type = template.getAggregatedType(index);
+        return _sources.isEmpty() || type == Object.class || WHOLE_NUMBER_TYPES.contains(type) == isWholeNumber();
+    }
+
+    /** Add the aggregated member at {@code index} of a template, read from {@code instances}. */
+    void addSource(InstanceTemplate template, int index, Iterable<? extends Reference<Object>> instances) {
+        _sources.add(new Source(template, index, instances));
+    }
+
+    /**
+     * Forget the members of classes that have been unloaded.
+     *
+     * @return Whether or not there are any members left.
+     */
+    boolean removeUnloadedSources() {
+        for (Source source : _sources) {
+            if (!source._template.isLive()) {
+                _sources.remove(source);
+            }
+        }
+        return !_sources.isEmpty();
+    }
+
+    @Override
+    public Class<?> getOwner() {
+        for (Source source : _sources) {
+            Class<?> owner = source._template.getAggregatedOwner(source._index);
+            if (owner != null) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    /** The cost of reading the member of one instance. */
+    @Override
+    public Cost getCost() {
+        return _cost;
+    }
+
+    @Override
+    public Object getInstance() {
+        return null;
+    }
+
+    @Override
+    public Class<?> getType() {
+        switch (_aggregate) {
+            case COUNT:
+                return Long.class;
+            case AVG:
+                return Double.class;
+            default:
+                return isWholeNumber() ? Long.class : Double.class;
+        }
+    }
+
+    @Override
+    public Object getValue() {
+        boolean wholeNumber = isWholeNumber();
+        long count = 0;
+        long longTotal = 0, longMin = Long.MAX_VALUE, longMax = Long.MIN_VALUE;
+        double doubleTotal = 0, doubleMin = Double.POSITIVE_INFINITY, doubleMax = Double.NEGATIVE_INFINITY;
+
+        for (Source source : _sources) {
+            for (Reference<Object> reference : source._instances) {
+                Object instance = reference.get();
+                if (instance == null) {
+                    continue;  // Collected, but not purged yet
+                }
+
+                if (_aggregate == Aggregate.COUNT) {
+                    count++;
+                    continue;
+                }
+
+                Object value;
+                try {
+                    value = source._template.readAggregated(source._index, instance);
+                } catch (Exception e) {
+                    source.readFailed(_name, e);
+                    continue;
+                }
+                if (!(value instanceof Number)) {
+                    continue;
+                }
+
+                Number number = (Number) value;
+                count++;
+                if (wholeNumber) {
+                    long l = number.longValue();
+                    longTotal += l;
+                    longMin = Math.min(longMin, l);
+                    longMax = Math.max(longMax, l);
+                } else {
+                    double d = number.doubleValue();
+                    doubleTotal += d;
+                    doubleMin = Math.min(doubleMin, d);
+                    doubleMax = Math.max(doubleMax, d);
+                }
+            }
+        }
+
+        switch (_aggregate) {
+            case COUNT:
+                return count;
+            case SUM:
+                return wholeNumber ? (Object) longTotal : (Object) doubleTotal;
+            case MIN:
+                return (count == 0) ? null : wholeNumber ? (Object) longMin : (Object) doubleMin;
+            case MAX:
+                return (count == 0) ? null : wholeNumber ? (Object) longMax : (Object) doubleMax;
+            case AVG:
+                return (count == 0) ? null : (wholeNumber ? (double) longTotal : doubleTotal) / count;
+            default:
+                throw new IllegalStateException("Not an aggregate: " + _aggregate);
+        }
+    }
+
+    private boolean isWholeNumber() {
+        for (Source source : _sources) {
+            Class<?> type = source._template.getAggregatedType(source._index);
+            if (type != Object.class) {
+                return WHOLE_NUMBER_TYPES.contains(type);
+            }
+        }
+        return false;
+    }
+
+    /** Describe how the members are combined, without reading any of them. */
+    String describe() {
+        String kind = (_aggregate == Aggregate.COUNT || _sources.isEmpty())
+                ? ""
+                : (isWholeNumber() ? "whole number " : "decimal ");
+        return "the " + kind + _aggregate + " aggregate " + _name + " (" + _cost + ")";
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("name", _name)
+                .add("aggregate", _aggregate)
+                .add("sources", _sources.size())
+                .add("value", getValue())
+                .toString();
+    }
+
+    private static final class Source {
+        private final InstanceTemplate _template;
+        private final int _index;
+        private final Iterable<? extends Reference<Object>> _instances;
+
+        /** Whether or not a failure to read the member has been logged. */
+        private volatile boolean _failureLogged;
+
+        Source(InstanceTemplate template, int index, Iterable<? extends Reference<Object>> instances) {
+            _template = template;
+            _index = index;
+            _instances = instances;
+        }
+
+        void readFailed(String name, Exception e) {
+            if (!_failureLogged) {
+                _failureLogged = true;
+                LOG.log(Level.WARNING, "Unable to read " + name + " of " + _template.getAggregatedOwner(_index)
+                        + ", instances whose member can't be read are left out of the aggregate", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.google.common.base.Objects;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+/**
+ * A reference to an annotated field that doesn't keep the field's class, and with it the class loader that defined
+ * it, from being unloaded.  Only the class is remembered, weakly, along with the name of the field.
+ * <p/>
+ * The {@link Field} itself references its class, so holding it strongly would keep the class loaded.  It's held
+ * softly instead, so it's only looked up and made accessible again when the JVM runs low on memory, not after every
+ * garbage collection.
+ */
+final class FieldAccessor {
+    private final WeakReference<Class<?>> _declaringClass;
+    private final String _name;
+    private volatile SoftReference<Field> _field;
+
+    FieldAccessor(Field field) {
+        field.setAccessible(true);
+        _declaringClass = new WeakReference<Class<?>>(field.getDeclaringClass());
+        _name = field.getName();
+        _field = new SoftReference<Field>(field);
+    }
+
+    /** Return the field, or {@code null} if its class has been unloaded. */
+    Field getField() {
+        Field field = _field.get();
+        if (field == null) {
+            Class<?> cls = _declaringClass.get();
+            if (cls == null) {
+                return null;
+            }
+
+            try {
+                field = cls.getDeclaredField(_name);
+            } catch (NoSuchFieldException e) {
+                return null;
+            }
+            field.setAccessible(true);
+            _field = new SoftReference<Field>(field);
+        }
+        return field;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("field", getField())
+                .toString();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.bazaarvoice.snitch.variables;
 
+import com.bazaarvoice.snitch.Cost;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
@@ -22,33 +23,58 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 
 class FieldVariable extends AbstractVariable {
-    private final Field _field;
+    private final FieldAccessor _accessor;
+
+    public FieldVariable(Class<?> owner, String name, WeakReference<Object> instance, FieldAccessor accessor,
+                         Cost cost) {
+        super(owner, name, instance, cost);
+
+        _accessor = accessor;
+    }
+
+    /** Bind a member of an {@link InstanceTemplate}, sharing its weak reference to the owner. */
+    FieldVariable(WeakReference<Class<?>> owner, String name, WeakReference<Object> instance, FieldAccessor accessor,
+                  Cost cost) {
+        super(owner, name, instance, cost);
+
+        _accessor = accessor;
+    }
+
+    public FieldVariable(Class<?> owner, String name, WeakReference<Object> instance, FieldAccessor accessor) {
+        this(owner, name, instance, accessor, Cost.NORMAL);
+    }
 
     public FieldVariable(Class<?> owner, String name, WeakReference<Object> instance, Field field) {
-        super(owner, name, instance);
+        this(owner, name, instance, new FieldAccessor(field));
+    }
 
-        _field = field;
-        _field.setAccessible(true);
+    public FieldVariable(Class<?> owner, String name, Field field, Cost cost) {
+        this(owner, name, null, new FieldAccessor(field), cost);
     }
 
     public FieldVariable(Class<?> owner, String name, Field field) {
-        this(owner, name, null, field);
+        this(owner, name, field, Cost.NORMAL);
     }
 
     @VisibleForTesting
     public Field getField() {
-        return _field;
+        return _accessor.getField();
     }
 
     @Override
     public Class<?> getType() {
-        return _field.getType();
+        Field field = _accessor.getField();
+        return (field != null) ? field.getType() : Object.class;
     }
 
     @Override
     public Object getValue() {
         try {
-            return _field.get(getInstance());
+            Field field = _accessor.getField();
+            if (field == null) {
+                return new IllegalStateException("The class of " + _name + " has been unloaded");
+            }
+            return field.get(getInstance());
         } catch (Exception e) {
             // If we weren't able to access the field then we need to notify the caller.  Probably the easiest way is
             // to return the exception itself as the value of the variable.  This will show the user that it wasn't
@@ -61,9 +87,9 @@ class FieldVariable extends AbstractVariable {
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("name", _name)
-                .add("owner", _owner)
+                .add("owner", getOwner())
                 .add("instance", getInstance())
-                .add("field", _field)
+                .add("field", _accessor.getField())
                 .add("value", getValue())
                 .toString();
     }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.bazaarvoice.snitch.Aggregate;
+import com.bazaarvoice.snitch.Cost;
+import com.bazaarvoice.snitch.Variable;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The instance variables of a concrete class, resolved once from the annotated members of the class and all of its
+ * superclasses.  Registering an instance only binds the template to it, the class hierarchy isn't walked and the
+ * members aren't named again.  Every instance of a class shares the same template, so the variables of an instance are
+ * flyweights that are only created when they're read, and they share the template's weak references and accessors
+ * instead of allocating their own.
+ * <p/>
+ * Templates are cached per class, so nothing in a template references a class strongly.  Otherwise a cached template
+ * would keep its class, and the class loader that defined it, from ever being unloaded.
+ * <p/>
+ * Members that are aggregated across instances aren't bound to instances at all, they're read directly by the
+ * {@link AggregateVariable} for their name.
+ */
+final class InstanceTemplate {
+    /** The concrete class that this template is for. */
+    private final WeakReference<Class<?>> _class;
+    private final List<Member> _members;
+    private final List<Member> _aggregatedMembers;
+
+    /** The members up to each cost, indexed by the ordinal of the cost. */
+    private final List<List<Member>> _membersUpTo;
+
+    private InstanceTemplate(Class<?> cls, List<Member> members, List<Member> aggregatedMembers) {
+        _class = new WeakReference<Class<?>>(cls);
+        _members = members;
+        _aggregatedMembers = aggregatedMembers;
+
+        ImmutableList.Builder<List<Member>> membersUpTo = ImmutableList.builder();
+        for (Cost cost : Cost.values()) {
+            ImmutableList.Builder<Member> upTo = ImmutableList.builder();
+            for (Member member : members) {
+                if (member._cost.isAtMost(cost)) {
+                    upTo.add(member);
+                }
+            }
+            membersUpTo.add(upTo.build());
+        }
+        _membersUpTo = membersUpTo.build();
+    }
+
+    static Builder builder(Class<?> cls) {
+        return new Builder(cls);
+    }
+
+    boolean isFor(Class<?> cls) {
+        return _class.get() == cls;
+    }
+
+    /** Whether or not the class this template is for is still loaded. */
+    boolean isLive() {
+        return _class.get() != null;
+    }
+
+    boolean isEmpty() {
+        return _members.isEmpty() && _aggregatedMembers.isEmpty();
+    }
+
+    /** The number of variables that an instance has, not counting aggregated members. */
+    int size() {
+        return _members.size();
+    }
+
+    Cost getCost(int index) {
+        return _members.get(index)._cost;
+    }
+
+    /** The name of the variable at {@code index}. */
+    String getName(int index) {
+        return _members.get(index)._name;
+    }
+
+    /** Return the variable at {@code index} of an instance. */
+    Variable bind(int index, WeakReference<Object> instance) {
+        return _members.get(index).bind(instance);
+    }
+
+    /**
+     * Return the variables of an instance up to a cost.  The list is a view, each variable is created as it's read and
+     * nothing is retained, so the only memory used per registered instance is for the weak reference to it.
+     */
+    List<Variable> bind(final WeakReference<Object> instance, Cost maxCost) {
+        final List<Member> members = _membersUpTo.get(maxCost.ordinal());
+        return new AbstractList<Variable>() {
+            @Override
+            public Variable get(int index) {
+                return members.get(index).bind(instance);
+            }
+
+            @Override
+            public int size() {
+                return members.size();
+            }
+        };
+    }
+
+    /** The number of members that are aggregated across instances. */
+    int aggregatedSize() {
+        return _aggregatedMembers.size();
+    }
+
+    String getAggregatedName(int index) {
+        return _aggregatedMembers.get(index)._name;
+    }
+
+    Aggregate getAggregate(int index) {
+        return _aggregatedMembers.get(index)._aggregate;
+    }
+
+    Cost getAggregatedCost(int index) {
+        return _aggregatedMembers.get(index)._cost;
+    }
+
+    /** The class that declares the aggregated member at {@code index}, or {@code null} if it has been unloaded. */
+    Class<?> getAggregatedOwner(int index) {
+        return _aggregatedMembers.get(index)._owner.get();
+    }
+
+    /** The declared type of the aggregated member at {@code index}. */
+    Class<?> getAggregatedType(int index) {
+        return _aggregatedMembers.get(index).getType();
+    }
+
+    /** Read the value of the aggregated member at {@code index} of an instance. */
+    Object readAggregated(int index, Object instance) throws Exception {
+        return _aggregatedMembers.get(index).read(instance);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("class", _class.get())
+                .add("members", _members)
+                .add("aggregatedMembers", _aggregatedMembers)
+                .toString();
+    }
+
+    static final class Builder {
+        private final Class<?> _class;
+        private final List<Member> _members = Lists.newArrayList();
+        private final List<Member> _aggregatedMembers = Lists.newArrayList();
+
+        private Builder(Class<?> cls) {
+            _class = cls;
+        }
+
+        Builder addField(Class<?> owner, String name, FieldAccessor accessor, Aggregate aggregate, Cost cost) {
+            return add(new FieldMember(owner, name, accessor, aggregate, cost));
+        }
+
+        Builder addMethod(Class<?> owner, String name, MethodAccessor accessor, Aggregate aggregate, Cost cost) {
+            return add(new MethodMember(owner, name, accessor, aggregate, cost));
+        }
+
+        private Builder add(Member member) {
+            (member._aggregate == Aggregate.NONE ? _members : _aggregatedMembers).add(member);
+            return this;
+        }
+
+        InstanceTemplate build() {
+            return new InstanceTemplate(_class, ImmutableList.copyOf(_members),
+                    ImmutableList.copyOf(_aggregatedMembers));
+        }
+    }
+
+    private abstract static class Member {
+        protected final WeakReference<Class<?>> _owner;
+        protected final String _name;
+        protected final Aggregate _aggregate;
+        protected final Cost _cost;
+
+        Member(Class<?> owner, String name, Aggregate aggregate, Cost cost) {
+            _owner = new WeakReference<Class<?>>(owner);
+            _name = name;
+            _aggregate = aggregate;
+            _cost = cost;
+        }
+
+        abstract Variable bind(WeakReference<Object> instance);
+
+        abstract Class<?> getType();
+
+        abstract Object read(Object instance) throws Exception;
+    }
+
+    private static final class FieldMember extends Member {
+        private final FieldAccessor _accessor;
+
+        FieldMember(Class<?> owner, String name, FieldAccessor accessor, Aggregate aggregate, Cost cost) {
+            super(owner, name, aggregate, cost);
+            _accessor = accessor;
+        }
+
+        @Override
+        Variable bind(WeakReference<Object> instance) {
+            return new FieldVariable(_owner, _name, instance, _accessor, _cost);
+        }
+
+        @Override
+        Class<?> getType() {
+            Field field = _accessor.getField();
+            return (field != null) ? field.getType() : Object.class;
+        }
+
+        @Override
+        Object read(Object instance) throws Exception {
+            Field field = _accessor.getField();
+            if (field == null) {
+                throw new IllegalStateException("The class of " + _name + " has been unloaded");
+            }
+            return field.get(instance);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("name", _name)
+                    .add("aggregate", _aggregate)
+                    .add("cost", _cost)
+                    .add("accessor", _accessor)
+                    .toString();
+        }
+    }
+
+    private static final class MethodMember extends Member {
+        private final MethodAccessor _accessor;
+
+        MethodMember(Class<?> owner, String name, MethodAccessor accessor, Aggregate aggregate, Cost cost) {
+            super(owner, name, aggregate, cost);
+            _accessor = accessor;
+        }
+
+        @Override
+        Variable bind(WeakReference<Object> instance) {
+            return new MethodVariable(_owner, _name, instance, _accessor, _cost);
+        }
+
+        @Override
+        Class<?> getType() {
+            Method method = _accessor.getMethod();
+            return (method != null) ? method.getReturnType() : Object.class;
+        }
+
+        @Override
+        Object read(Object instance) throws Exception {
+            Method method = _accessor.getMethod();
+            if (method == null) {
+                throw new IllegalStateException("The class of " + _name + " has been unloaded");
+            }
+            return method.invoke(instance);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("name", _name)
+                    .add("aggregate", _aggregate)
+                    .add("cost", _cost)
+                    .add("accessor", _accessor)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.google.common.base.Objects;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+
+/**
+ * A reference to an annotated method that doesn't keep the method's class, and with it the class loader that defined
+ * it, from being unloaded.  Only the class is remembered, weakly, along with the name of the method.
+ * <p/>
+ * The {@link Method} itself references its class, so holding it strongly would keep the class loaded.  It's held
+ * softly instead, so it's only looked up and made accessible again when the JVM runs low on memory, not after every
+ * garbage collection.
+ */
+final class MethodAccessor {
+    private final WeakReference<Class<?>> _declaringClass;
+    private final String _name;
+    private volatile SoftReference<Method> _method;
+
+    MethodAccessor(Method method) {
+        method.setAccessible(true);
+        _declaringClass = new WeakReference<Class<?>>(method.getDeclaringClass());
+        _name = method.getName();
+        _method = new SoftReference<Method>(method);
+    }
+
+    /** Return the method, or {@code null} if its class has been unloaded. */
+    Method getMethod() {
+        Method method = _method.get();
+        if (method == null) {
+            Class<?> cls = _declaringClass.get();
+            if (cls == null) {
+                return null;
+            }
+
+            try {
+                method = cls.getDeclaredMethod(_name);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+            method.setAccessible(true);
+            _method = new SoftReference<Method>(method);
+        }
+        return method;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("method", getMethod())
+                .toString();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.bazaarvoice.snitch.variables;
 
+import com.bazaarvoice.snitch.Cost;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
@@ -22,33 +23,58 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 
 class MethodVariable extends AbstractVariable {
-    private final Method _method;
+    private final MethodAccessor _accessor;
+
+    public MethodVariable(Class<?> owner, String name, WeakReference<Object> instance, MethodAccessor accessor,
+                          Cost cost) {
+        super(owner, name, instance, cost);
+
+        _accessor = accessor;
+    }
+
+    /** Bind a member of an {@link InstanceTemplate}, sharing its weak reference to the owner. */
+    MethodVariable(WeakReference<Class<?>> owner, String name, WeakReference<Object> instance, MethodAccessor accessor,
+                   Cost cost) {
+        super(owner, name, instance, cost);
+
+        _accessor = accessor;
+    }
+
+    public MethodVariable(Class<?> owner, String name, WeakReference<Object> instance, MethodAccessor accessor) {
+        this(owner, name, instance, accessor, Cost.NORMAL);
+    }
 
     public MethodVariable(Class<?> owner, String name, WeakReference<Object> instance, Method method) {
-        super(owner, name, instance);
+        this(owner, name, instance, new MethodAccessor(method));
+    }
 
-        _method = method;
-        _method.setAccessible(true);
+    public MethodVariable(Class<?> owner, String name, Method method, Cost cost) {
+        this(owner, name, null, new MethodAccessor(method), cost);
     }
 
     public MethodVariable(Class<?> owner, String name, Method method) {
-        this(owner, name, null, method);
+        this(owner, name, method, Cost.NORMAL);
     }
 
     @VisibleForTesting
     public Method getMethod() {
-        return _method;
+        return _accessor.getMethod();
     }
 
     @Override
     public Class<?> getType() {
-        return _method.getReturnType();
+        Method method = _accessor.getMethod();
+        return (method != null) ? method.getReturnType() : Object.class;
     }
 
     @Override
     public Object getValue() {
         try {
-            return _method.invoke(getInstance());
+            Method method = _accessor.getMethod();
+            if (method == null) {
+                return new IllegalStateException("The class of " + _name + " has been unloaded");
+            }
+            return method.invoke(getInstance());
         } catch (Exception e) {
             // If we weren't able to invoke the method then we need to notify the caller.  Probably the easiest way is
             // to return the exception itself as the value of the variable.  This will show the user that it wasn't
@@ -61,9 +87,9 @@ class MethodVariable extends AbstractVariable {
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("name", _name)
-                .add("owner", _owner)
+                .add("owner", getOwner())
                 .add("instance", getInstance())
-                .add("method", _method)
+                .add("method", _accessor.getMethod())
                 .add("value", getValue())
                 .toString();
     }
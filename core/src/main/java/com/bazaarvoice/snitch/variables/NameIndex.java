@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.bazaarvoice.snitch.util.Globs;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index of values by dotted name, for example {@code jvm.memory.heap}.  Names are kept in a trie with one level per
+ * component of a name, so a lookup only visits the parts of the trie that can match instead of every name.
+ * <p/>
+ * Lookups don't take any locks and can run at the same time as values are added and removed, in which case they may
+ * or may not see the changes.  Nodes are never removed, the names in the index come from the annotated members of
+ * classes so there are only ever a bounded number of them.
+ */
+final class NameIndex<T> {
+    private static final Splitter DOT_SPLITTER = Splitter.on('.');
+
+    /** The glob component that matches any number of name components. */
+    private static final String ANY_COMPONENTS = "**";
+
+    private final Node<T> _root = new Node<T>();
+
+    void add(String name, T value) {
+        Node<T> node = _root;
+        for (String component : DOT_SPLITTER.split(name)) {
+            node = node.getOrCreateChild(component);
+        }
+        node._values.add(value);
+    }
+
+    void remove(String name, T value) {
+        Node<T> node = find(name);
+        if (node != null) {
+            node._values.remove(value);
+        }
+    }
+
+    /** Remove every value that matches {@code predicate}, wherever it is in the index. */
+    void removeAll(Predicate<? super T> predicate) {
+        removeAll(_root, predicate);
+    }
+
+    /** Return the values with exactly the name {@code name}. */
+    List<T> get(String name) {
+        Node<T> node = find(name);
+        return (node != null) ? Lists.newArrayList(node._values) : ImmutableList.<T>of();
+    }
+
+    /**
+     * Return the values whose name is {@code prefix} or starts with {@code prefix} followed by a dot.  So the prefix
+     * {@code jvm.memory} finds {@code jvm.memory} and {@code jvm.memory.heap}, but not {@code jvm.memoryPools}.  The
+     * empty prefix finds every value.
+     */
+    List<T> getWithPrefix(String prefix) {
+        Node<T> node = prefix.isEmpty() ? _root : find(prefix);
+        if (node == null) {
+            return ImmutableList.of();
+        }
+
+        List<T> values = Lists.newArrayList();
+        addAll(node, values);
+        return values;
+    }
+
+    /**
+     * Return the values whose name matches a glob.  Within a component of a name {@code *} matches any number of
+     * characters and {@code ?} matches a single character, and a component of just {@code **} matches any number of
+     * components.  So {@code jvm.*.heap} finds {@code jvm.memory.heap}, and {@code jvm.**} finds every name that
+     * starts with {@code jvm.}.
+     */
+    List<T> getMatching(String glob) {
+        List<Component> components = parseGlob(glob);
+
+        // A value can be reached more than once when the glob has several components that match any number of others
+        Set<T> values = Sets.newLinkedHashSet();
+        addMatching(_root, components, 0, values);
+        return Lists.newArrayList(values);
+    }
+
+    /** Return a predicate for names that {@link #getWithPrefix} would find, for names that aren't in an index. */
+    static Predicate<String> withPrefix(final String prefix) {
+        return new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                return prefix.isEmpty() || name.equals(prefix) ||
+                        (name.startsWith(prefix) && name.charAt(prefix.length()) == '.');
+            }
+        };
+    }
+
+    /** Return a predicate for names that {@link #getMatching} would find, for names that aren't in an index. */
+    static Predicate<String> matching(String glob) {
+        final List<Component> components = parseGlob(glob);
+        return new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                return matches(components, 0, Lists.newArrayList(DOT_SPLITTER.split(name)), 0);
+            }
+        };
+    }
+
+    private static List<Component> parseGlob(String glob) {
+        List<Component> components = Lists.newArrayList();
+        for (String component : DOT_SPLITTER.split(glob)) {
+            components.add(new Component(component));
+        }
+        return components;
+    }
+
+    private static boolean matches(List<Component> glob, int globIndex, List<String> name, int nameIndex) {
+        if (globIndex == glob.size()) {
+            return nameIndex == name.size();
+        }
+
+        Component component = glob.get(globIndex);
+        if (component._anyComponents) {
+            return matches(glob, globIndex + 1, name, nameIndex) ||
+                    (nameIndex < name.size() && matches(glob, globIndex, name, nameIndex + 1));
+        }
+        return nameIndex < name.size() && component.matches(name.get(nameIndex)) &&
+                matches(glob, globIndex + 1, name, nameIndex + 1);
+    }
+
+    private Node<T> find(String name) {
+        Node<T> node = _root;
+        for (String component : DOT_SPLITTER.split(name)) {
+            node = node._children.get(component);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private static <T> void addAll(Node<T> node, Collection<T> values) {
+        values.addAll(node._values);
+        for (Node<T> child : node._children.values()) {
+            addAll(child, values);
+        }
+    }
+
+    private static <T> void addMatching(Node<T> node, List<Component> components, int index, Collection<T> values) {
+        if (index == components.size()) {
+            values.addAll(node._values);
+            return;
+        }
+
+        Component component = components.get(index);
+        if (component._anyComponents) {
+            // Either match no more components, or match one more and stay on this component of the glob
+            addMatching(node, components, index + 1, values);
+            for (Node<T> child : node._children.values()) {
+                addMatching(child, components, index, values);
+            }
+        } else if (component._pattern == null) {
+            Node<T> child = node._children.get(component._literal);
+            if (child != null) {
+                addMatching(child, components, index + 1, values);
+            }
+        } else {
+            for (Map.Entry<String, Node<T>> child : node._children.entrySet()) {
+                if (component.matches(child.getKey())) {
+                    addMatching(child.getValue(), components, index + 1, values);
+                }
+            }
+        }
+    }
+
+    private static <T> void removeAll(Node<T> node, Predicate<? super T> predicate) {
+        for (T value : node._values) {
+            if (predicate.apply(value)) {
+                node._values.remove(value);
+            }
+        }
+        for (Node<T> child : node._children.values()) {
+            removeAll(child, predicate);
+        }
+    }
+
+    private static final class Node<T> {
+        private final ConcurrentMap<String, Node<T>> _children = new ConcurrentHashMap<String, Node<T>>();
+        private final Set<T> _values = Sets.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+
+        Node<T> getOrCreateChild(String component) {
+            Node<T> child = _children.get(component);
+            if (child == null) {
+                Node<T> created = new Node<T>();
+                child = _children.putIfAbsent(component, created);
+                if (child == null) {
+                    child = created;
+                }
+            }
+            return child;
+        }
+    }
+
+    /** A single component of a glob. */
+    private static final class Component {
+        /** The component when it's matched literally. */
+        private final String _literal;
+
+        /** The pattern the component is matched with, or {@code null} when it's matched literally. */
+        private final Pattern _pattern;
+
+        /** Whether this component matches any number of components. */
+        private final boolean _anyComponents;
+
+        Component(String glob) {
+            _literal = glob;
+            _anyComponents = ANY_COMPONENTS.equals(glob);
+            _pattern = (!_anyComponents && Globs.hasWildcards(glob)) ? Globs.toPattern(glob) : null;
+        }
+
+        boolean matches(String name) {
+            return (_pattern != null) ? _pattern.matcher(name).matches() : _literal.equals(name);
+        }
+    }
+}
@@ -15,41 +15,138 @@
  */
 package com.bazaarvoice.snitch.variables;
 
+import com.bazaarvoice.snitch.Aggregate;
+import com.bazaarvoice.snitch.Cost;
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.Registration;
 import com.bazaarvoice.snitch.Variable;
+import com.bazaarvoice.snitch.VariableProvider;
+import com.bazaarvoice.snitch.agent.ClassDefinitionListener;
+import com.bazaarvoice.snitch.agent.SnitchAgent;
 import com.bazaarvoice.snitch.naming.NamingStrategy;
 import com.bazaarvoice.snitch.scanner.AnnotationScanner;
 import com.bazaarvoice.snitch.util.ClassDetector;
 import com.bazaarvoice.snitch.util.ReflectionClassDetector;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Objects;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Ticker;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.FieldEntry;
-import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.MethodEntry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 // TODO: Javadoc for class
 // TODO: Create an error reporter that can switch between logging and throwing exceptions (dev mode)
-// TODO: Don't check for classes having been loaded every time, have some sort of backoff
 public class VariableRegistry {
+    private static final Logger LOG = Logger.getLogger(VariableRegistry.class.getName());
+
+    /** How long to wait before probing for pending classes again after a probe that found none of them loaded. */
+    private static final long MIN_PROBE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** The longest that probing for pending classes backs off to while none of them are being loaded. */
+    private static final long MAX_PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /** How many checks a class that the agent reported being defined is looked for in before it's given up on. */
+    private static final int MAX_RESOLVE_ATTEMPTS = 10;
+
+    /**
+     * How long to wait before looking for a class that the agent reported being defined again, when it wasn't defined
+     * yet the last time.  Looking means listing every class of its class loader, so it isn't done on every check.
+     */
+    private static final long RESOLVE_INTERVAL_NANOS = MIN_PROBE_INTERVAL_NANOS;
+
+    /**
+     * How many threads are expected to register instances at the same time.  The maps of registered instances are
+     * striped into this many independently locked segments.
+     */
+    private static final int REGISTRATION_CONCURRENCY = Math.max(16, Runtime.getRuntime().availableProcessors());
+
+    private static final Function<Partition, Collection<Variable>> STATIC_VARIABLES =
+            new Function<Partition, Collection<Variable>>() {
+                @Override
+                public Collection<Variable> apply(Partition partition) {
+                    return partition._staticVariables;
+                }
+            };
+
+    private static final Function<GroupMember, Iterable<Variable>> MEMBER_VARIABLES =
+            new Function<GroupMember, Iterable<Variable>>() {
+                @Override
+                public Iterable<Variable> apply(GroupMember member) {
+                    return Iterables.filter(Iterables.transform(member._group._slots, member), Predicates.notNull());
+                }
+            };
+
+    private static final Function<ProviderSlot, Iterable<Variable>> PROVIDED_VARIABLES =
+            new Function<ProviderSlot, Iterable<Variable>>() {
+                @Override
+                public Iterable<Variable> apply(ProviderSlot slot) {
+                    return slot.getVariables();
+                }
+            };
+
+    private static final Function<ProviderSlot, Iterable<Variable>> LAST_PROVIDED_VARIABLES =
+            new Function<ProviderSlot, Iterable<Variable>>() {
+                @Override
+                public Iterable<Variable> apply(ProviderSlot slot) {
+                    return slot._lastVariables;
+                }
+            };
+
+    private static final Function<Variable, String> VARIABLE_NAME = new Function<Variable, String>() {
+        @Override
+        public String apply(Variable variable) {
+            return variable.getName();
+        }
+    };
+
+    private static final Predicate<GroupMember> UNLOADED_MEMBER = new Predicate<GroupMember>() {
+        @Override
+        public boolean apply(GroupMember member) {
+            return !member._group._template.isLive();
+        }
+    };
+
+    /** What registering {@code null}, or instances without any variables, returns. */
+    private static final Registration NOT_REGISTERED = new Registration() {
+        @Override
+        public void close() {
+        }
+    };
+
     /** The annotation class to find. */
     private final Class<? extends Annotation> _annotationClass;
 
@@ -69,102 +166,611 @@ public class VariableRegistry {
     /** Helper that knows whether or not a class has already been loaded in the JVM. */
     private final ClassDetector _classDetector;
 
+    /** Source of the time used to schedule probes for pending classes. */
+    private final Ticker _ticker;
+
     /** Whether or not we've already scanned for annotations in the class path. */
-    private boolean _alreadyScanned = false;
+    private volatile boolean _alreadyScanned = false;
 
-    /** The annotated field entries that were found when the class path was scanned.  Indexed by class name. */
-    private final Multimap<String, FieldEntry> _unloadedFieldEntries = HashMultimap.create();
+    /**
+     * Whether or not the class path is being scanned on a background thread, callers shouldn't wait for it.  Only
+     * written while holding the lock.
+     */
+    private volatile boolean _scanningInBackground = false;
 
-    /** The annotated method entries that were found when the class path was scanned.  Indexed by class name. */
-    private final Multimap<String, MethodEntry> _unloadedMethodEntries = HashMultimap.create();
+    /**
+     * Completed once the class path has been scanned and every class loaded so far has been checked.  A background
+     * scan that fails fails the future, which is then replaced by a new one once a scan is retried or succeeds.  Only
+     * written while holding the lock.
+     */
+    private volatile SettableFuture<Void> _scanFuture = SettableFuture.create();
 
-    /** The non-static field handles that were found when the class path was scanned.  Indexed by class name. */
-    private final Multimap<String, FieldHandle> _unboundFieldHandles = HashMultimap.create();
+    /** Whether or not {@link #_scanFuture} failed and has to be replaced.  Only written while holding the lock. */
+    private volatile boolean _scanFailed = false;
 
-    /** The non-static method handles that were found when the class path was scanned.  Indexed by class name. */
-    private final Multimap<String, MethodHandle> _unboundMethodHandles = HashMultimap.create();
+    /** Instances registered while the class path was being scanned in the background, bound once the scan is done. */
+    private final Queue<InstanceSlot> _deferredInstances = new ConcurrentLinkedQueue<InstanceSlot>();
 
     /**
-     * The variables in the JVM that are static.  This storage is separate from the instance variable storage for two
-     * reasons.  First, concurrent maps typically don't permit null keys, and since these are static variables they
-     * don't have an instance backing them and thus the logical choice would be null for the instance (that's how all
-     * of the reflection APIs work).  Secondly, the write pattern to this set of variables is quite different from the
-     * write pattern for instance backed variables.  Instance backed variables are only ever discovered when the
-     * instance is registered and then never again.  So the storage for them can be optimized around very infrequent
-     * writes.  On the other hand, the static variables storage is written to whenever a new class is loaded that
-     * contains an annotation.  This doesn't happen very often, but will happen multiple times during the lifetime of
-     * this storage so a CopyOnWriteArrayList isn't a very good choice for the static variables since writes are very
-     * expensive.
+     * Listener that is told about classes as they're defined when the {@link SnitchAgent} is installed, or
+     * {@code null} when classes have to be polled for instead.
      */
-    private final Collection<Variable> _staticVariables = new ConcurrentLinkedQueue<Variable>();
+    private final ClassDefinitionListener _classDefinitionListener;
 
-    /** The variables in the JVM indexed by instance that caused the variable to be created. */
-    private final Multimap<Object, Variable> _instanceVariables = Multimaps.newMultimap(
-            // The underlying map to use for storage.  Use weak keys so that we don't maintain any strong references
-            // to instances that are given to us.  They should always be able to be reclaimed by the garbage collector.
-            new MapMaker().weakKeys().<Object, Collection<Variable>>makeMap(),
+    /** The names of the classes that haven't been found loaded by any class loader yet. */
+    private final Set<String> _pendingClassNames = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-            // The collection factory, use a CopyOnWriteArrayList since writes happen very infrequently.
-            new Supplier<Collection<Variable>>() {
-                @Override
-                public Collection<Variable> get() {
-                    return new CopyOnWriteArrayList<Variable>();
-                }
-            }
-    );
+    /**
+     * The names of every class with annotated members, so that the agent's listener can cheaply ignore all of the
+     * classes that we aren't interested in.  A class stays interesting after it has been loaded, because another class
+     * loader, such as the one of a redeployed application, can define it again.
+     */
+    private final Set<String> _annotatedClassNames = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Whether or not any classes still have unloaded entries.  This is the only state that a scrape reads when every
+     * class has been loaded, so that concurrent scrapes never contend for the registry's lock.
+     */
+    private volatile boolean _classesPending = false;
+
+    /** The earliest time, as read from the ticker, that pending classes are polled for again. */
+    private volatile long _nextProbeTime;
+
+    /** How long to wait after the next poll if it finds no newly loaded classes.  Guarded by {@code this}. */
+    private long _probeInterval = 0;
+
+    /** Classes with annotated members that the agent reported being defined since the last time we checked. */
+    private final Queue<DefinedClass> _definedClasses = new ConcurrentLinkedQueue<DefinedClass>();
+
+    /** Reported classes that weren't defined yet when they were looked for, to look for again.  Guarded by this. */
+    private final List<DefinedClass> _undefinedClasses = Lists.newArrayList();
+
+    /** Whether or not there are any undefined classes to look for again. */
+    private volatile boolean _classesUndefined = false;
+
+    /** The earliest time, as read from the ticker, that undefined classes are looked for again. */
+    private volatile long _nextResolveTime;
+
+    /**
+     * The names of the annotated fields that were found when the class path was scanned.  Indexed by class name.  Only
+     * the names are kept, they're shared with the scanner's results so no entry objects are retained.  Kept after the
+     * class has been loaded, each class loader that defines it gets variables of its own.
+     */
+    private final Multimap<String, String> _annotatedFieldNames = HashMultimap.create();
+
+    /** The names of the annotated methods that were found when the class path was scanned.  Indexed by class name. */
+    private final Multimap<String, String> _annotatedMethodNames = HashMultimap.create();
+
+    /**
+     * The static variables and unbound accessors of loaded classes, partitioned by the class loader that defined them.
+     * Class loaders are weakly referenced and nothing in a partition references a class strongly, so when an
+     * application is undeployed its class loader can be unloaded and its partition goes away along with it.
+     */
+    private final ConcurrentMap<ClassLoader, Partition> _partitions = new MapMaker().weakKeys().makeMap();
+
+    /** The partition of the classes defined by the bootstrap class loader, which are never unloaded. */
+    private final Partition _bootstrapPartition = new Partition();
+
+    /** Tells us about class loaders of partitions that have been garbage collected. */
+    private final ReferenceQueue<ClassLoader> _unloadedClassLoaders = new ReferenceQueue<ClassLoader>();
+
+    /** Keeps the references to the class loaders of partitions reachable, so they're enqueued once collected. */
+    private final Set<PartitionReference> _partitionReferences =
+            Sets.newSetFromMap(new ConcurrentHashMap<PartitionReference, Boolean>());
+
+    /**
+     * The registered instances, grouped by their class along with the template of the class's instance variables.  The
+     * template is resolved the first time an instance of the class is registered.  A slot is all that is stored for an
+     * instance, its variables are views that are only created while they're being iterated over.  Slots only weakly
+     * reference their instances so that we don't maintain any strong references to instances that are given to us.
+     * They should always be able to be reclaimed by the garbage collector.
+     * <p/>
+     * Weakly keyed, and templates don't reference classes strongly, so classes can still be unloaded.
+     */
+    private final ConcurrentMap<Class<?>, InstanceGroup> _instanceGroups = new MapMaker()
+            .concurrencyLevel(REGISTRATION_CONCURRENCY)
+            .weakKeys()
+            .makeMap();
+
+    /** The registered providers.  Registering a provider is rare, visiting them all happens on every scrape. */
+    private final List<ProviderSlot> _providers = new CopyOnWriteArrayList<ProviderSlot>();
+
+    /** Incremented after every change to the set of variables. */
+    private final AtomicLong _version = new AtomicLong();
+
+    /** The most recent snapshot, replaced by the first request for one after the version has changed. */
+    private volatile VariableSnapshot _snapshot;
+
+    /** The variables that combine aggregated instance members across instances.  Indexed by name. */
+    private final ConcurrentMap<String, AggregateVariable> _aggregates =
+            new ConcurrentHashMap<String, AggregateVariable>();
+
+    /** The static and aggregate variables that have been found, indexed by name. */
+    private final NameIndex<Variable> _staticNames = new NameIndex<Variable>();
+
+    /** Every instance variable of the instance groups, indexed by name. */
+    private final NameIndex<GroupMember> _instanceNames = new NameIndex<GroupMember>();
+
+    /** Tells us about registered instances that have been garbage collected, so their slots are purged right away. */
+    private final ReferenceQueue<Object> _collectedInstances = new ReferenceQueue<Object>();
 
     public VariableRegistry(Class<? extends Annotation> annotationClass, AnnotationScanner scanner,
                             NamingStrategy<? extends Annotation> namingStrategy) {
         this(annotationClass, scanner, namingStrategy, new ReflectionClassDetector());
     }
 
+    /**
+     * Create a registry that finds out which classes have been loaded using {@code detector}, for example a
+     * {@link ReflectionClassDetector} that probes the class loaders of every application in a container.
+     */
+    public VariableRegistry(Class<? extends Annotation> annotationClass, AnnotationScanner scanner,
+                            NamingStrategy<? extends Annotation> namingStrategy, ClassDetector detector) {
+        this(annotationClass, scanner, namingStrategy, detector, SnitchAgent.isInstalled(), Ticker.systemTicker());
+    }
+
     @VisibleForTesting
     VariableRegistry(Class<? extends Annotation> annotationClass, AnnotationScanner scanner,
-                     NamingStrategy namingStrategy, ClassDetector detector) {
+                     NamingStrategy<? extends Annotation> namingStrategy, ClassDetector detector, boolean useAgent,
+                     Ticker ticker) {
         _annotationClass = annotationClass;
         _scanner = scanner;
         _namingStrategy = namingStrategy;
         _classDetector = detector;
+        _ticker = ticker;
+
+        if (useAgent) {
+            // Start listening before the class path is scanned so no class definitions can be missed
+            _classDefinitionListener = new ClassDefinitionListener() {
+                @Override
+                public void classDefined(String className, ClassLoader loader) {
+                    VariableRegistry.this.classDefined(className, loader);
+                }
+            };
+            SnitchAgent.addListener(_classDefinitionListener);
+        } else {
+            _classDefinitionListener = null;
+        }
 
         _scanner.addAnnotationClass(_annotationClass);
     }
 
-    /** Return the set of known variables in the system. */
+    /**
+     * Start scanning the class path on a daemon thread instead of on the first thread that needs the results.  Until
+     * the scan finishes {@link #getVariables()} only returns the variables that are already known instead of blocking,
+     * and registered instances are remembered and bound once the scan is done.
+     *
+     * @return A future that completes once the scan has finished.  If it fails, calling this again retries the scan
+     *         and returns a new future.
+     */
+    public synchronized ListenableFuture<Void> scanInBackground() {
+        if (_scanningInBackground || (_alreadyScanned && !_scanFailed)) {
+            return _scanFuture;
+        }
+        if (_scanFailed) {
+            _scanFuture = SettableFuture.create();
+            _scanFailed = false;
+        }
+        _scanningInBackground = true;
+
+        final SettableFuture<Void> future = _scanFuture;
+
+        Thread thread = new ThreadFactoryBuilder()
+                .setNameFormat("snitch-background-scan")
+                .setDaemon(true)
+                .build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Throwable failure = null;
+                        try {
+                            scanClassPath();
+                            checkForNewClasses();
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                        finishBackgroundScan(future, failure);
+                    }
+                });
+        thread.start();
+        return future;
+    }
+
+    private synchronized void finishBackgroundScan(SettableFuture<Void> future, Throwable failure) {
+        _scanningInBackground = false;
+        if (failure == null) {
+            future.set(null);
+            return;
+        }
+
+        // Let callers scan on their own threads again, maybe the failure was temporary.  Whichever scan succeeds next
+        // replaces the failed future.
+        _scanFailed = true;
+        future.setException(failure);
+    }
+
+    /** Complete the scan future, replacing it first if a background scan failed it. */
+    private synchronized void completeScanFuture() {
+        if (_scanFailed) {
+            _scanFuture = SettableFuture.create();
+            _scanFailed = false;
+        }
+        _scanFuture.set(null);
+    }
+
+    /**
+     * Return a future that completes once the class path has been scanned.  If a background scan failed, the future
+     * is replaced once the class path is scanned again.
+     */
+    public ListenableFuture<Void> getScanFuture() {
+        return _scanFuture;
+    }
+
+    /** Return the set of known variables in the system, leaving out the {@link Cost#EXPENSIVE} ones. */
     public Iterable<Variable> getVariables() {
-        if (!_alreadyScanned) {
-            scanClassPath();
+        return getVariables(Cost.NORMAL);
+    }
+
+    /**
+     * Return the known variables that cost at most {@code maxCost} to read.  Variables that don't say what they cost,
+     * such as the ones from providers, are {@link Cost#NORMAL}.
+     */
+    public Iterable<Variable> getVariables(Cost maxCost) {
+        refresh();
+        return allVariables(Iterables.concat(Iterables.transform(_providers, PROVIDED_VARIABLES)), maxCost);
+    }
+
+    /**
+     * Return the known variables whose name is {@code prefix} or starts with {@code prefix} followed by a dot, leaving
+     * out the {@link Cost#EXPENSIVE} ones.  Only the variables with matching names are looked at, no matter how many
+     * variables there are in total.
+     */
+    public Iterable<Variable> getVariables(String prefix) {
+        return getVariables(prefix, Cost.NORMAL);
+    }
+
+    /** Return the variables that {@link #getVariables(String)} finds that cost at most {@code maxCost} to read. */
+    public Iterable<Variable> getVariables(String prefix, Cost maxCost) {
+        refresh();
+        purgeCollectedInstances();
+        return indexedVariables(_staticNames.getWithPrefix(prefix), _instanceNames.getWithPrefix(prefix),
+                NameIndex.withPrefix(prefix), maxCost);
+    }
+
+    /**
+     * Return the known variables whose name matches a glob, leaving out the {@link Cost#EXPENSIVE} ones.  Within a
+     * component of a dotted name {@code *} and {@code ?} match, and {@code **} matches any number of components.  For
+     * example {@code jvm.*.heap} or {@code cache.**}.
+     */
+    public Iterable<Variable> getVariablesMatching(String glob) {
+        return getVariablesMatching(glob, Cost.NORMAL);
+    }
+
+    /** Return the variables that {@link #getVariablesMatching(String)} finds that cost at most {@code maxCost}. */
+    public Iterable<Variable> getVariablesMatching(String glob, Cost maxCost) {
+        refresh();
+        purgeCollectedInstances();
+        return indexedVariables(_staticNames.getMatching(glob), _instanceNames.getMatching(glob),
+                NameIndex.matching(glob), maxCost);
+    }
+
+    /**
+     * Return the known variables with exactly the name {@code name}, whatever they cost.  Naming a variable is how an
+     * {@link Cost#EXPENSIVE} one is read without reading all of the others.
+     */
+    public Iterable<Variable> getVariablesNamed(String name) {
+        refresh();
+        purgeCollectedInstances();
+        return indexedVariables(_staticNames.get(name), _instanceNames.get(name), Predicates.equalTo(name),
+                Cost.EXPENSIVE);
+    }
+
+    /**
+     * Return an immutable snapshot of the variables that {@link #getVariables()} returns.  Snapshots are only taken
+     * when they're asked for, so many changes in between two requests cost one snapshot, and requests without any
+     * changes in between share a snapshot.
+     */
+    public VariableSnapshot getSnapshot() {
+        refresh();
+        purgeCollectedInstances();
+        checkProviders();
+
+        // Read the version first, every change that it counts has been made by the time the variables are read
+        long version = _version.get();
+        VariableSnapshot snapshot = _snapshot;
+        if (snapshot == null || snapshot.getVersion() < version) {
+            snapshot = new VariableSnapshot(version, allVariables(
+                    Iterables.concat(Iterables.transform(_providers, LAST_PROVIDED_VARIABLES)), Cost.NORMAL));
+            _snapshot = snapshot;
         }
+        return snapshot;
+    }
 
-        checkForRecentlyLoadedClasses();
+    /**
+     * Return the current version of the set of variables, the version that a snapshot taken now would have.  Asks
+     * every provider for its variables to find out whether they've changed.
+     */
+    public long getVersion() {
+        refresh();
+        purgeCollectedInstances();
+        checkProviders();
+        return _version.get();
+    }
 
-        // We need to merge _staticVariables and _instanceVariables together here.  We know that they're both
-        // implemented using thread-safe collections, so we can just concatenate them together and be confident that
-        // any consumer will never experience any inconsistencies while iterating.
-        return Iterables.unmodifiableIterable(Iterables.concat(_staticVariables, _instanceVariables.values()));
+    /**
+     * Register a provider of variables that aren't found by scanning for annotations.  Its variables are included
+     * with the others every time they're asked for.
+     *
+     * @return A registration that removes the provider when it's closed.
+     */
+    public Registration registerProvider(VariableProvider provider) {
+        final ProviderSlot slot = new ProviderSlot(provider);
+        _providers.add(slot);
+        _version.incrementAndGet();
+        return new Registration() {
+            @Override
+            public void close() {
+                if (_providers.remove(slot)) {
+                    _version.incrementAndGet();
+                }
+            }
+        };
     }
 
-    /** Register an instance of a class that may have non-static variables/methods annotated. */
-    public synchronized void registerInstance(final Object instance) {
-        if (instance == null) return;
+    /** Find out whether the providers' variables have changed since they were last checked. */
+    private void checkProviders() {
+        for (ProviderSlot slot : _providers) {
+            List<Variable> variables = slot.getVariables();
+            if (!variables.equals(slot._lastVariables)) {
+                slot._lastVariables = variables;
+                _version.incrementAndGet();
+            }
+        }
+    }
 
+    private void refresh() {
         if (!_alreadyScanned) {
+            if (_scanningInBackground) {
+                // Don't wait for the background scan, just use what is available right now
+                return;
+            }
             scanClassPath();
         }
 
-        checkForRecentlyLoadedClasses();
+        checkForNewClasses();
+    }
+
+    /**
+     * Return the number of class loaders that variables have been found in and that haven't been unloaded, not
+     * counting the bootstrap class loader.  A number that keeps growing as applications are redeployed means that
+     * something is keeping old class loaders from being unloaded.
+     */
+    public int getLivePartitionCount() {
+        Reference<? extends ClassLoader> reference = _unloadedClassLoaders.poll();
+        if (reference != null) {
+            purgeUnloadedPartitions(reference);
+        }
+        return _partitionReferences.size();
+    }
+
+    /** Return the number of instances that are registered and have variables. */
+    @VisibleForTesting
+    int getRegisteredInstanceCount() {
+        purgeCollectedInstances();
 
-        // Wrap the instance into a supplier that can create the weak reference for it.  This lets us defer creation of
-        // the weak reference until we know for sure that we need it.  We use a memoized supplier as well so we know for
-        // sure that we'll only ever create one weak reference for this instance and use it in all variables.
-        Supplier<WeakReference<Object>> supplier = Suppliers.memoize(new Supplier<WeakReference<Object>>() {
+        int count = 0;
+        for (InstanceGroup group : _instanceGroups.values()) {
+            count += group._slots.size();
+        }
+        return count;
+    }
+
+    private Iterable<Variable> allVariables(Iterable<Variable> providedVariables, Cost maxCost) {
+        purgeCollectedInstances();
+
+        // We need to merge the static variables of every partition and the variables of every instance together here.
+        // We know that they're all stored in thread-safe collections, so we can just concatenate them together and be
+        // confident that any consumer will never experience any inconsistencies while iterating.
+        Iterable<Variable> staticVariables = Iterables.concat(_bootstrapPartition._staticVariables,
+                Iterables.concat(Iterables.transform(_partitions.values(), STATIC_VARIABLES)),
+                _aggregates.values());
+        Iterable<Variable> instanceVariables = Iterables.concat(
+                Iterables.transform(_instanceGroups.values(), groupVariables(maxCost)));
+        return Iterables.unmodifiableIterable(Iterables.concat(upTo(staticVariables, maxCost), instanceVariables,
+                upTo(providedVariables, maxCost)));
+    }
+
+    /**
+     * Combine the variables found in the name indexes with the provided variables whose names match.  Provided
+     * variables can change on every call, so they aren't indexed.
+     */
+    private Iterable<Variable> indexedVariables(List<Variable> staticVariables, List<GroupMember> members,
+                                                Predicate<String> namePredicate, Cost maxCost) {
+        if (maxCost != Cost.EXPENSIVE) {
+            members = Lists.newArrayList(Iterables.filter(members, memberUpTo(maxCost)));
+        }
+        Iterable<Variable> instanceVariables = Iterables.concat(Iterables.transform(members, MEMBER_VARIABLES));
+        Iterable<Variable> providedVariables = Iterables.filter(
+                Iterables.concat(Iterables.transform(_providers, PROVIDED_VARIABLES)),
+                Predicates.compose(namePredicate, VARIABLE_NAME));
+        return Iterables.unmodifiableIterable(Iterables.concat(upTo(staticVariables, maxCost), instanceVariables,
+                upTo(providedVariables, maxCost)));
+    }
+
+    /** Leave out the variables that cost more than {@code maxCost}, nothing is left out of an expensive scrape. */
+    private static Iterable<Variable> upTo(Iterable<Variable> variables, final Cost maxCost) {
+        if (maxCost == Cost.EXPENSIVE) {
+            return variables;
+        }
+        return Iterables.filter(variables, new Predicate<Variable>() {
             @Override
-            public WeakReference<Object> get() {
-                return new WeakReference<Object>(instance);
+            public boolean apply(Variable variable) {
+                return getCost(variable).isAtMost(maxCost);
             }
         });
+    }
 
-        Collection<Variable> instanceVariables = createInstanceVariables(instance.getClass(), supplier);
-        _instanceVariables.putAll(instance, instanceVariables);
+    private static Cost getCost(Variable variable) {
+        return (variable instanceof CostedVariable) ? ((CostedVariable) variable).getCost() : Cost.NORMAL;
+    }
+
+    private static Function<InstanceGroup, Iterable<Variable>> groupVariables(final Cost maxCost) {
+        return new Function<InstanceGroup, Iterable<Variable>>() {
+            @Override
+            public Iterable<Variable> apply(InstanceGroup group) {
+                return Iterables.concat(Iterables.transform(group._slots, group.variablesUpTo(maxCost)));
+            }
+        };
+    }
+
+    private static Predicate<GroupMember> memberUpTo(final Cost maxCost) {
+        return new Predicate<GroupMember>() {
+            @Override
+            public boolean apply(GroupMember member) {
+                return member._group._template.getCost(member._index).isAtMost(maxCost);
+            }
+        };
+    }
+
+    /**
+     * Register an instance of a class that may have non-static variables/methods annotated.  Once an instance of a
+     * class has been registered, registering more instances of it doesn't take any locks, so threads registering
+     * concurrently don't wait for each other or for scrapes.
+     *
+     * @return A registration that removes the variables of the instance when it's closed.  They're also removed once
+     *         the instance is garbage collected, so the registration doesn't need to be closed.
+     */
+    public Registration registerInstance(Object instance) {
+        if (instance == null) return NOT_REGISTERED;
+
+        InstanceSlot slot = new InstanceSlot(instance, _collectedInstances);
+        if (!_alreadyScanned && _scanningInBackground) {
+            // Don't wait for the background scan, the instance will be bound once it's done.  If the scan finished in
+            // the meantime the next call to getVariables or registerInstance binds it instead.
+            _deferredInstances.add(slot);
+            return new InstanceRegistration(ImmutableList.of(slot));
+        }
+
+        prepareForInstances();
+        addInstanceVariables(instance, slot, null);
+        return new InstanceRegistration(ImmutableList.of(slot));
+    }
+
+    /**
+     * Register several instances at once.  The class path is checked for newly loaded classes once for all of them, and
+     * consecutive instances of the same class share a single template lookup.
+     *
+     * @return A registration that removes the variables of all of the instances when it's closed.
+     */
+    public Registration registerInstances(Iterable<?> instances) {
+        List<InstanceSlot> slots = Lists.newArrayList();
+        if (!_alreadyScanned && _scanningInBackground) {
+            for (Object instance : instances) {
+                if (instance != null) {
+                    InstanceSlot slot = new InstanceSlot(instance, _collectedInstances);
+                    _deferredInstances.add(slot);
+                    slots.add(slot);
+                }
+            }
+            return new InstanceRegistration(slots);
+        }
+
+        prepareForInstances();
+        InstanceGroup group = null;
+        for (Object instance : instances) {
+            if (instance != null) {
+                InstanceSlot slot = new InstanceSlot(instance, _collectedInstances);
+                group = addInstanceVariables(instance, slot, group);
+                slots.add(slot);
+            }
+        }
+        return new InstanceRegistration(slots);
+    }
+
+    private void prepareForInstances() {
+        if (!_alreadyScanned) {
+            scanClassPath();
+        }
+        checkForNewClasses();
+    }
+
+    /**
+     * Add the variables of an instance using an empty slot for it, reusing {@code group} if it's for the instance's
+     * class.
+     *
+     * @return The group of the instance's class.
+     */
+    private InstanceGroup addInstanceVariables(Object instance, InstanceSlot slot, InstanceGroup group) {
+        Class<?> cls = instance.getClass();
+        if (group == null || !group._template.isFor(cls)) {
+            group = getInstanceGroup(cls);
+        }
+
+        if (!group._template.isEmpty() && !slot._closed) {
+            slot._group = group;
+            share(group, slot);
+
+            if (slot._closed) {
+                // The registration was closed by another thread while the instance was being added
+                unregister(slot);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Add the slot of a registration to its group, or if the instance is already registered count the registration
+     * against the slot that is already there instead.
+     */
+    private void share(InstanceGroup group, InstanceSlot slot) {
+        slot._registrations.set(1);
+        while (true) {
+            InstanceSlot shared = group._sharedSlots.putIfAbsent(slot, slot);
+            if (shared == null) {
+                slot._shared = slot;
+                _version.incrementAndGet();
+                return;
+            }
+            if (shared.acquire()) {
+                slot._shared = shared;
+                return;
+            }
+
+            // The last registration of the instance is being closed, wait for its slot to be removed
+            Thread.yield();
+        }
+    }
+
+    /** Forget the registered instances that have been garbage collected. */
+    private void purgeCollectedInstances() {
+        Reference<?> reference;
+        while ((reference = _collectedInstances.poll()) != null) {
+            // The instance is gone, so its slot goes no matter how many of its registrations are still open
+            InstanceSlot shared = ((InstanceSlot) reference)._shared;
+            if (shared != null) {
+                remove(shared);
+            }
+        }
+    }
+
+    /** Give up the registration of a slot, removing the instance once none of its registrations are left. */
+    private void unregister(InstanceSlot slot) {
+        InstanceSlot shared = slot._shared;
+        if (shared != null && slot._released.compareAndSet(false, true) &&
+                shared._registrations.decrementAndGet() == 0) {
+            remove(shared);
+        }
+    }
+
+    private void remove(InstanceSlot shared) {
+        if (shared._group._sharedSlots.remove(shared, shared)) {
+            _version.incrementAndGet();
+        }
+    }
+
+    private InstanceGroup getInstanceGroup(Class<?> cls) {
+        // Templates never change once they've been created, so only creating a group needs the lock
+        InstanceGroup group = _instanceGroups.get(cls);
+        return (group != null) ? group : createInstanceGroup(cls);
     }
 
     private synchronized void scanClassPath() {
@@ -172,20 +778,183 @@ public class VariableRegistry {
             return;
         }
 
-        List<MethodEntry> methodEntries = _scanner.getMethodsAnnotatedWith(_annotationClass);
-        for (MethodEntry entry : methodEntries) {
-            _unloadedMethodEntries.put(entry.getClassName(), entry);
+        List<AnnotationScanner.MethodEntry> methodEntries = _scanner.getMethodsAnnotatedWith(_annotationClass);
+        for (AnnotationScanner.MethodEntry entry : methodEntries) {
+            _annotatedMethodNames.put(entry.getClassName(), entry.getMethodName());
         }
 
-        List<FieldEntry> fieldEntries = _scanner.getFieldsAnnotatedWith(_annotationClass);
-        for (FieldEntry entry : fieldEntries) {
-            _unloadedFieldEntries.put(entry.getClassName(), entry);
+        List<AnnotationScanner.FieldEntry> fieldEntries = _scanner.getFieldsAnnotatedWith(_annotationClass);
+        for (AnnotationScanner.FieldEntry entry : fieldEntries) {
+            _annotatedFieldNames.put(entry.getClassName(), entry.getFieldName());
         }
 
+        _annotatedClassNames.addAll(_annotatedMethodNames.keySet());
+        _annotatedClassNames.addAll(_annotatedFieldNames.keySet());
+        _pendingClassNames.addAll(_annotatedClassNames);
+        _classesPending = !_pendingClassNames.isEmpty();
+        _nextProbeTime = _ticker.read();
         _alreadyScanned = true;
+
+        if (_classDefinitionListener != null) {
+            // Pick up every class that any class loader loaded before the scan, not just the ones that the detector
+            // knows about.  From now on the agent tells us about every new class as it's defined.
+            for (Class<?> cls : getAllLoadedClasses()) {
+                if (_annotatedClassNames.contains(cls.getName())) {
+                    handleLoadedClass(cls.getName(), cls);
+                }
+            }
+        }
+
+        if (!_scanningInBackground) {
+            // The background scan completes the future itself once the instances registered meanwhile are bound
+            completeScanFuture();
+        }
     }
 
+    private synchronized void registerDeferredInstances() {
+        InstanceSlot slot;
+        while ((slot = _deferredInstances.poll()) != null) {
+            Object instance = slot.get();
+            if (instance != null) {
+                addInstanceVariables(instance, slot, null);
+            }
+        }
+    }
+
+    /** Called by the agent's listener for every class defined in the JVM, while it's being defined. */
+    @VisibleForTesting
+    void classDefined(String className, ClassLoader loader) {
+        if (_annotatedClassNames.contains(className)) {
+            _definedClasses.add(new DefinedClass(className, loader));
+        }
+    }
+
+    private void checkForNewClasses() {
+        purgeCollectedInstances();
+
+        Reference<? extends ClassLoader> reference = _unloadedClassLoaders.poll();
+        if (reference != null) {
+            purgeUnloadedPartitions(reference);
+        }
+
+        // Once every class with annotated elements has been loaded this is the only other check that's made.  With
+        // the agent, classes can be defined again by other class loaders at any time.
+        if (_classDefinitionListener != null) {
+            if (!_definedClasses.isEmpty() || (_classesUndefined && _ticker.read() - _nextResolveTime >= 0)) {
+                checkForDefinedClasses();
+            }
+        } else if (_classesPending && _ticker.read() - _nextProbeTime >= 0) {
+            checkForRecentlyLoadedClasses();
+        }
+
+        if (!_deferredInstances.isEmpty()) {
+            registerDeferredInstances();
+        }
+
+        if (_scanFailed && !_scanningInBackground) {
+            // The background scan failed after scanning the class path, this check finished its work instead
+            completeScanFuture();
+        }
+    }
+
+    /**
+     * Handle the classes that the agent reported being defined, looking each one up among the classes defined by the
+     * class loader that defined it.  A class is reported before its definition completes, the ones that aren't there
+     * yet are looked for again once {@link #RESOLVE_INTERVAL_NANOS} has passed.
+     */
+    private synchronized void checkForDefinedClasses() {
+        List<DefinedClass> definedClasses = Lists.newArrayList();
+        long now = _ticker.read();
+        boolean retrying = _classesUndefined && now - _nextResolveTime >= 0;
+        if (retrying) {
+            definedClasses.addAll(_undefinedClasses);
+            _undefinedClasses.clear();
+        }
+        DefinedClass reported;
+        while ((reported = _definedClasses.poll()) != null) {
+            definedClasses.add(reported);
+        }
+
+        // Grouped by class loader, so that each class loader's classes are only listed once
+        Map<ClassLoader, Map<String, DefinedClass>> byLoader = Maps.newIdentityHashMap();
+        for (DefinedClass definedClass : definedClasses) {
+            ClassLoader loader = definedClass.getLoader();
+            if (loader == null && !definedClass.isBootstrap()) {
+                continue;  // The class loader has already been collected
+            }
+
+            Partition partition = (loader != null) ? _partitions.get(loader) : _bootstrapPartition;
+            if (partition != null && partition._classNames.contains(definedClass._className)) {
+                continue;  // Already handled
+            }
+
+            Map<String, DefinedClass> loaderClasses = byLoader.get(loader);
+            if (loaderClasses == null) {
+                loaderClasses = Maps.newHashMap();
+                byLoader.put(loader, loaderClasses);
+            }
+            loaderClasses.put(definedClass._className, definedClass);
+        }
+
+        for (Map.Entry<ClassLoader, Map<String, DefinedClass>> entry : byLoader.entrySet()) {
+            ClassLoader loader = entry.getKey();
+            Map<String, DefinedClass> loaderClasses = entry.getValue();
+            for (Class<?> cls : getInitiatedClasses(loader)) {
+                // Classes that the class loader only delegated to its parent for aren't the ones it defined
+                if (cls.getClassLoader() == loader && loaderClasses.remove(cls.getName()) != null) {
+                    handleLoadedClass(cls.getName(), cls);
+                }
+            }
+
+            for (DefinedClass notYetDefined : loaderClasses.values()) {
+                if (++notYetDefined._attempts < MAX_RESOLVE_ATTEMPTS) {
+                    _undefinedClasses.add(notYetDefined);
+                } else {
+                    // Most likely defining the class failed, in which case the application knows about it already
+                    LOG.warning("Giving up on " + notYetDefined._className + ", the agent reported " + loader
+                            + " defining it but it never did.  Its annotated members won't be monitored.");
+                }
+            }
+        }
+
+        if (!_undefinedClasses.isEmpty() && (retrying || !_classesUndefined)) {
+            _nextResolveTime = now + RESOLVE_INTERVAL_NANOS;
+        }
+        _classesUndefined = !_undefinedClasses.isEmpty();
+    }
+
+    /** Return every class loaded in the JVM, as the agent reports them. */
+    @VisibleForTesting
+    Class<?>[] getAllLoadedClasses() {
+        return SnitchAgent.getAllLoadedClasses();
+    }
+
+    /** Return the classes that {@code loader} has defined or been asked for, as the agent reports them. */
+    @VisibleForTesting
+    Class<?>[] getInitiatedClasses(ClassLoader loader) {
+        return SnitchAgent.getInitiatedClasses(loader);
+    }
+
+    /**
+     * Poll for pending classes that have been loaded.  Polls happen on every check while classes are being loaded, and
+     * back off exponentially while none are, so that a steady stream of scrapes doesn't keep probing for classes that
+     * the application might never load.
+     */
     private synchronized void checkForRecentlyLoadedClasses() {
+        // Another thread may have polled while this one was waiting for the lock
+        long now = _ticker.read();
+        if (!_classesPending || now - _nextProbeTime < 0) {
+            return;
+        }
+
+        boolean found = probeForLoadedClasses();
+        _probeInterval = found ? 0 : Math.min(Math.max(2 * _probeInterval, MIN_PROBE_INTERVAL_NANOS),
+                                              MAX_PROBE_INTERVAL_NANOS);
+        _nextProbeTime = now + _probeInterval;
+    }
+
+    /** Handle every pending class that has been loaded, returning whether or not there were any. */
+    private synchronized boolean probeForLoadedClasses() {
         // When we scan the class path several things can happen:
         //
         //   1) The class that the elements we found belong to has already been loaded by the JVM.  In this case all
@@ -194,48 +963,104 @@ public class VariableRegistry {
         //
         //   2) The class that the elements we found belong to hasn't yet been loaded by the JVM.  In this case the
         //   entries need to be remembered for later when the class has been loaded by the JVM.
-        Set<String> classNames = union(_unloadedMethodEntries.keySet(), _unloadedFieldEntries.keySet());
-        for (String className : classNames) {
-            if (_classDetector.isClassLoaded(className)) {
-                Class<?> cls = _classDetector.getLoadedClass(className);
-                if (cls == null) {
-                    continue;  // TODO: Log error
-                }
+        //
+        // Every pending class is checked in one batch, the detector returns just the ones that have been loaded.
+        Map<String, Class<?>> loadedClasses = _classDetector.getLoadedClasses(_pendingClassNames);
+        for (Map.Entry<String, Class<?>> entry : loadedClasses.entrySet()) {
+            handleLoadedClass(entry.getKey(), entry.getValue());
+        }
+        return !loadedClasses.isEmpty();
+    }
 
-                handleLoadedClass(className, cls);
+    /**
+     * Forget the partitions of class loaders that have been garbage collected.  Their static variables go with them.
+     * The classes they had defined become pending again, because a redeployed application defines them again in a new
+     * class loader.
+     */
+    private synchronized void purgeUnloadedPartitions(Reference<? extends ClassLoader> reference) {
+        for (; reference != null; reference = _unloadedClassLoaders.poll()) {
+            PartitionReference partitionReference = (PartitionReference) reference;
+            _partitionReferences.remove(partitionReference);
+
+            Partition partition = partitionReference._partition;
+            for (Variable variable : partition._staticVariables) {
+                _staticNames.remove(variable.getName(), variable);
             }
+            _pendingClassNames.addAll(partition._classNames);
+        }
+
+        _instanceNames.removeAll(UNLOADED_MEMBER);
+        for (AggregateVariable aggregate : _aggregates.values()) {
+            if (!aggregate.removeUnloadedSources()) {
+                _aggregates.remove(aggregate.getName());
+                _staticNames.remove(aggregate.getName(), aggregate);
+            }
+        }
+        _version.incrementAndGet();
+
+        _classesPending = !_pendingClassNames.isEmpty();
+        _probeInterval = 0;
+        _nextProbeTime = _ticker.read();
+        if (_classDefinitionListener != null) {
+            // The agent has already told us about the classes that other class loaders defined again, and they have
+            // been handled for those class loaders.  Poll once so they don't stay pending.
+            probeForLoadedClasses();
         }
     }
 
+    /** Return the partition for the classes defined by a class loader, creating it if needed. */
+    private synchronized Partition getPartition(ClassLoader loader) {
+        if (loader == null) {
+            return _bootstrapPartition;
+        }
+
+        Partition partition = _partitions.get(loader);
+        if (partition == null) {
+            partition = new Partition();
+            _partitions.put(loader, partition);
+            _partitionReferences.add(new PartitionReference(loader, partition, _unloadedClassLoaders));
+        }
+        return partition;
+    }
+
     private void handleLoadedClass(String className, Class<?> cls) {
-        Collection<FieldEntry> fieldEntries = _unloadedFieldEntries.removeAll(className);
-        handleLoadedClassFields(className, cls, fieldEntries);
+        _pendingClassNames.remove(className);
+        _classesPending = !_pendingClassNames.isEmpty();
 
-        Collection<MethodEntry> methodEntries = _unloadedMethodEntries.removeAll(className);
-        handleLoadedClassMethods(className, cls, methodEntries);
+        Partition partition = getPartition(cls.getClassLoader());
+        if (!partition._classNames.add(className)) {
+            return;  // Already handled for this class loader
+        }
+
+        handleLoadedClassFields(partition, className, cls, _annotatedFieldNames.get(className));
+        handleLoadedClassMethods(partition, className, cls, _annotatedMethodNames.get(className));
     }
 
-    private void handleLoadedClassFields(String className, Class<?> cls, Collection<FieldEntry> entries) {
-        for (FieldEntry entry : entries) {
-            Field field = getAnnotatedField(cls, _annotationClass, entry.getFieldName());
+    private void handleLoadedClassFields(Partition partition, String className, Class<?> cls,
+                                         Collection<String> fieldNames) {
+        for (String fieldName : fieldNames) {
+            Field field = getAnnotatedField(cls, _annotationClass, fieldName);
             if (field == null) {
                 continue;  // TODO: Log error
             }
 
             int modifiers = field.getModifiers();
             if (Modifier.isStatic(modifiers)) {
-                FieldVariable variable = new FieldVariable(cls, getName(field), field);
-                _staticVariables.add(variable);
+                FieldVariable variable = new FieldVariable(cls, getName(field), field, getCost(field));
+                partition._staticVariables.add(variable);
+                _staticNames.add(variable.getName(), variable);
+                _version.incrementAndGet();
             } else {
-                FieldHandle handle = new FieldHandle(field);
-                _unboundFieldHandles.put(className, handle);
+                FieldAccessor accessor = new FieldAccessor(field);
+                partition._unboundFieldAccessors.put(className, accessor);
             }
         }
     }
 
-    private void handleLoadedClassMethods(String className, Class<?> cls, Collection<MethodEntry> entries) {
-        for (MethodEntry entry : entries) {
-            Method method = getAnnotatedMethod(cls, _annotationClass, entry.getMethodName());
+    private void handleLoadedClassMethods(Partition partition, String className, Class<?> cls,
+                                          Collection<String> methodNames) {
+        for (String methodName : methodNames) {
+            Method method = getAnnotatedMethod(cls, _annotationClass, methodName);
             if (method == null) {
                 continue;  // This can happen if a method has arguments, getAnnotatedMethod won't load it.
             }
@@ -247,17 +1072,24 @@ public class VariableRegistry {
 
             int modifiers = method.getModifiers();
             if (Modifier.isStatic(modifiers)) {
-                MethodVariable variable = new MethodVariable(cls, getName(method), method);
-                _staticVariables.add(variable);
+                MethodVariable variable = new MethodVariable(cls, getName(method), method, getCost(method));
+                partition._staticVariables.add(variable);
+                _staticNames.add(variable.getName(), variable);
+                _version.incrementAndGet();
             } else {
-                MethodHandle handle = new MethodHandle(method);
-                _unboundMethodHandles.put(className, handle);
+                MethodAccessor accessor = new MethodAccessor(method);
+                partition._unboundMethodAccessors.put(className, accessor);
             }
         }
     }
 
-    private Collection<Variable> createInstanceVariables(Class<?> cls,
-                                                         Supplier<WeakReference<Object>> referenceSupplier) {
+    private synchronized InstanceGroup createInstanceGroup(Class<?> concreteClass) {
+        InstanceGroup existing = _instanceGroups.get(concreteClass);
+        if (existing != null) {
+            return existing;  // Another thread created it while we were waiting for the lock
+        }
+
+        Class<?> cls = concreteClass;
         // We need to make sure we only resolve each method name one time.  We're making the assumption here that
         // all methods have no arguments, so the only relevant component is the name of the method.  Doing this
         // check is important because it's possible that a base class will define a method that is overridden by
@@ -266,32 +1098,82 @@ public class VariableRegistry {
         // process it.
         Set<String> seenMethodNames = Sets.newHashSet();
 
-        Collection<Variable> variables = Lists.newArrayList();
+        InstanceTemplate.Builder template = InstanceTemplate.builder(concreteClass);
         while (cls != null) {
             String className = cls.getName();
-
-            Collection<FieldHandle> fieldHandles = _unboundFieldHandles.get(className);
-            for (FieldHandle handle : fieldHandles) {
-                Field field = handle.getField();
-                FieldVariable variable = new FieldVariable(cls, getName(field), referenceSupplier.get(), field);
-
-                variables.add(variable);
+            if (_annotatedClassNames.contains(className)) {
+                // The class is obviously loaded, don't wait for the next poll to find out.  Nothing happens if it has
+                // already been handled for its class loader.
+                handleLoadedClass(className, cls);
             }
 
-            Collection<MethodHandle> methodHandles = _unboundMethodHandles.get(className);
-            for (MethodHandle handle : methodHandles) {
-                Method method = handle.getMethod();
+            ClassLoader loader = cls.getClassLoader();
+            Partition partition = (loader != null) ? _partitions.get(loader) : _bootstrapPartition;
+            if (partition != null) {
+                Collection<FieldAccessor> fieldAccessors = partition._unboundFieldAccessors.get(className);
+                for (FieldAccessor accessor : fieldAccessors) {
+                    Field field = accessor.getField();
+                    if (field == null) {
+                        continue;  // The class is being unloaded
+                    }
+                    template.addField(cls, getName(field), accessor, getAggregate(field), getCost(field));
+                }
 
-                if (seenMethodNames.add(method.getName())) {
-                  MethodVariable variable = new MethodVariable(cls, getName(method), referenceSupplier.get(), method);
-                  variables.add(variable);
+                Collection<MethodAccessor> methodAccessors = partition._unboundMethodAccessors.get(className);
+                for (MethodAccessor accessor : methodAccessors) {
+                    Method method = accessor.getMethod();
+                    if (method == null) {
+                        continue;  // The class is being unloaded
+                    }
+
+                    if (seenMethodNames.add(method.getName())) {
+                        template.addMethod(cls, getName(method), accessor, getAggregate(method),
+                                getCost(method));
+                    }
                 }
             }
 
             cls = cls.getSuperclass();
         }
 
-        return variables;
+        InstanceGroup group = new InstanceGroup(template.build());
+        _instanceGroups.put(concreteClass, group);
+        if (!group._template.isEmpty()) {
+            // Make sure the group is dropped from the index if the class is unloaded, even when the class loader
+            // didn't define any of the annotated members itself
+            getPartition(concreteClass.getClassLoader());
+            for (int i = 0; i < group._template.size(); i++) {
+                _instanceNames.add(group._template.getName(i), new GroupMember(group, i));
+            }
+            for (int i = 0; i < group._template.aggregatedSize(); i++) {
+                addAggregatedMember(group, i);
+            }
+        }
+        return group;
+    }
+
+    private void addAggregatedMember(InstanceGroup group, int index) {
+        String name = group._template.getAggregatedName(index);
+        Aggregate aggregate = group._template.getAggregate(index);
+
+        AggregateVariable variable = _aggregates.get(name);
+        if (variable == null) {
+            variable = new AggregateVariable(name, aggregate, group._template.getAggregatedCost(index));
+            _aggregates.put(name, variable);
+            _staticNames.add(name, variable);
+            _version.incrementAndGet();
+        }
+
+        if (!variable.accepts(group._template, index)) {
+            // Members with the same name are combined the way the first one that was found says, a member that says
+            // otherwise is left out rather than silently combined the wrong way
+            LOG.warning("Leaving the " + group._template.getAggregatedType(index).getName() + " " + name + " of "
+                    + group._template.getAggregatedOwner(index) + " (" + aggregate + ", "
+                    + group._template.getAggregatedCost(index) + ") out of " + variable.describe()
+                    + ", it can't be combined with the members that are already in it");
+            return;
+        }
+        variable.addSource(group._template, index, group._slots);
     }
 
     @SuppressWarnings("unchecked")
@@ -306,12 +1188,14 @@ public class VariableRegistry {
         return _namingStrategy.getName(method, annotation);
     }
 
-    /** Create a new set that's the union of two sets. */
-    private static <T> Set<T> union(Set<T> a, Set<T> b) {
-        Set<T> union = Sets.newHashSet();
-        union.addAll(a);
-        union.addAll(b);
-        return union;
+    private Aggregate getAggregate(AnnotatedElement element) {
+        Annotation annotation = element.getAnnotation(_annotationClass);
+        return (annotation instanceof Monitored) ? ((Monitored) annotation).aggregate() : Aggregate.NONE;
+    }
+
+    private Cost getCost(AnnotatedElement element) {
+        Annotation annotation = element.getAnnotation(_annotationClass);
+        return (annotation instanceof Monitored) ? ((Monitored) annotation).cost() : Cost.NORMAL;
     }
 
     private static Method getAnnotatedMethod(Class<?> cls, Class<? extends Annotation> annotationClass, String name) {
@@ -346,41 +1230,214 @@ public class VariableRegistry {
         return field;
     }
 
-    private static final class FieldHandle {
-        private final Field _field;
+    /** The registered instances of a class, along with the template for their variables. */
+    private static final class InstanceGroup {
+        private final InstanceTemplate _template;
+
+        /** The slot of each registered instance, shared by every registration of the instance. */
+        private final ConcurrentMap<InstanceSlot, InstanceSlot> _sharedSlots =
+                new ConcurrentHashMap<InstanceSlot, InstanceSlot>(16, 0.75f, REGISTRATION_CONCURRENCY);
+        private final Set<InstanceSlot> _slots = _sharedSlots.keySet();
+
+        /** The variables of an instance up to each cost, indexed by the ordinal of the cost. */
+        private final List<Function<InstanceSlot, List<Variable>>> _variablesUpTo;
+
+        InstanceGroup(InstanceTemplate template) {
+            _template = template;
+
+            ImmutableList.Builder<Function<InstanceSlot, List<Variable>>> variablesUpTo = ImmutableList.builder();
+            for (final Cost cost : Cost.values()) {
+                variablesUpTo.add(new Function<InstanceSlot, List<Variable>>() {
+                    @Override
+                    public List<Variable> apply(InstanceSlot slot) {
+                        // Skip instances that were collected after the last purge, rather than return dead variables
+                        return (slot.get() != null) ? _template.bind(slot, cost) : ImmutableList.<Variable>of();
+                    }
+                });
+            }
+            _variablesUpTo = variablesUpTo.build();
+        }
 
-        public FieldHandle(Field field) {
-            _field = field;
+        Function<InstanceSlot, List<Variable>> variablesUpTo(Cost maxCost) {
+            return _variablesUpTo.get(maxCost.ordinal());
         }
+    }
+
+    /** One of the variables of the instances in a group, as found in the name index. */
+    private static final class GroupMember implements Function<InstanceSlot, Variable> {
+        private final InstanceGroup _group;
+        private final int _index;
 
-        public Field getField() {
-            return _field;
+        GroupMember(InstanceGroup group, int index) {
+            _group = group;
+            _index = index;
         }
 
         @Override
-        public String toString() {
-            return Objects.toStringHelper(this)
-                    .add("field", _field)
-                    .toString();
+        public Variable apply(InstanceSlot slot) {
+            return (slot.get() != null) ? _group._template.bind(_index, slot) : null;
         }
     }
 
-    private static final class MethodHandle {
-        private final Method _method;
+    /**
+     * A registration of an instance.  Slots are equal when they're for the same instance, so an instance that is
+     * registered more than once only has one slot in its group, which all of its registrations share and count.  Once
+     * the instance has been collected a slot is only equal to itself, which is all that purging it needs.
+     */
+    private static final class InstanceSlot extends WeakReference<Object> {
+        private final int _hashCode;
 
-        public MethodHandle(Method method) {
-            _method = method;
+        /** The group the slot has been added to, or {@code null} if it hasn't been added to one. */
+        private volatile InstanceGroup _group;
+
+        /** The slot in the group that this registration shares, this slot itself for the first registration. */
+        private volatile InstanceSlot _shared;
+
+        /** The number of open registrations sharing this slot, once it's in a group. */
+        private final AtomicInteger _registrations = new AtomicInteger();
+
+        /** Whether or not this registration has been counted out of the slot it shares, so it's only done once. */
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        /** Whether or not the registration of this slot has been closed. */
+        private volatile boolean _closed;
+
+        InstanceSlot(Object instance, ReferenceQueue<Object> queue) {
+            super(instance, queue);
+            _hashCode = System.identityHashCode(instance);
+        }
+
+        /** Count another registration, unless the last one has already been closed and the slot is being removed. */
+        boolean acquire() {
+            while (true) {
+                int registrations = _registrations.get();
+                if (registrations == 0) {
+                    return false;
+                }
+                if (_registrations.compareAndSet(registrations, registrations + 1)) {
+                    return true;
+                }
+            }
         }
 
-        public Method getMethod() {
-            return _method;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof InstanceSlot)) return false;
+
+            Object instance = get();
+            return instance != null && instance == ((InstanceSlot) o).get();
         }
 
         @Override
-        public String toString() {
-            return Objects.toStringHelper(this)
-                    .add("method", _method)
-                    .toString();
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
+    /** A registered provider, along with the variables it provided when the providers were last checked. */
+    private static final class ProviderSlot {
+        private final VariableProvider _provider;
+        private volatile List<Variable> _lastVariables = ImmutableList.of();
+
+        /** Whether or not the provider failed the last time it was asked, so that a failure is only logged once. */
+        private volatile boolean _failing;
+
+        ProviderSlot(VariableProvider provider) {
+            _provider = provider;
+        }
+
+        List<Variable> getVariables() {
+            try {
+                List<Variable> variables = ImmutableList.copyOf(_provider.getVariables());
+                _failing = false;
+                return variables;
+            } catch (RuntimeException e) {
+                // Don't let one broken provider keep every other variable from being scraped
+                if (!_failing) {
+                    _failing = true;
+                    LOG.log(Level.WARNING, "Variable provider " + _provider + " failed, leaving out its variables "
+                            + "until it recovers", e);
+                }
+                return ImmutableList.of();
+            }
+        }
+    }
+
+    /** Closing it removes the slots of the instances that were registered together. */
+    private final class InstanceRegistration implements Registration {
+        private final List<InstanceSlot> _slots;
+
+        InstanceRegistration(List<InstanceSlot> slots) {
+            _slots = slots;
+        }
+
+        @Override
+        public void close() {
+            for (InstanceSlot slot : _slots) {
+                slot._closed = true;
+                unregister(slot);
+            }
+        }
+    }
+
+    /** What is known about the loaded classes that were defined by a single class loader. */
+    private static final class Partition {
+        /**
+         * The variables that are static.  This storage is separate from the instance variable storage for two
+         * reasons.  First, concurrent maps typically don't permit null keys, and since these are static variables they
+         * don't have an instance backing them and thus the logical choice would be null for the instance (that's how
+         * all of the reflection APIs work).  Secondly, the write pattern to this set of variables is quite different
+         * from the write pattern for instance backed variables.  Instance backed variables are only ever discovered
+         * when the instance is registered and then never again.  So the storage for them can be optimized around very
+         * infrequent writes.  On the other hand, the static variables storage is written to whenever a new class is
+         * loaded that contains an annotation.  This doesn't happen very often, but will happen multiple times during
+         * the lifetime of this storage so a CopyOnWriteArrayList isn't a very good choice for the static variables
+         * since writes are very expensive.
+         */
+        private final Collection<Variable> _staticVariables = new ConcurrentLinkedQueue<Variable>();
+
+        /** The non-static field accessors of the loaded classes.  Indexed by class name. */
+        private final Multimap<String, FieldAccessor> _unboundFieldAccessors = HashMultimap.create();
+
+        /** The non-static method accessors of the loaded classes.  Indexed by class name. */
+        private final Multimap<String, MethodAccessor> _unboundMethodAccessors = HashMultimap.create();
+
+        /** The names of the loaded classes with annotated members, pending again if the class loader is unloaded. */
+        private final Set<String> _classNames = Sets.newHashSet();
+    }
+
+    /** A class that the agent reported being defined, along with the class loader that is defining it. */
+    private static final class DefinedClass {
+        private final String _className;
+
+        /** Weak so that a queued class doesn't keep an undeployed application's class loader from being collected. */
+        private final WeakReference<ClassLoader> _loader;
+
+        /** How many checks have looked for the class so far.  Guarded by the registry. */
+        private int _attempts;
+
+        DefinedClass(String className, ClassLoader loader) {
+            _className = className;
+            _loader = (loader != null) ? new WeakReference<ClassLoader>(loader) : null;
+        }
+
+        boolean isBootstrap() {
+            return _loader == null;
+        }
+
+        ClassLoader getLoader() {
+            return (_loader != null) ? _loader.get() : null;
+        }
+    }
+
+    /** Weak reference to the class loader of a partition, enqueued once the class loader has been collected. */
+    private static final class PartitionReference extends WeakReference<ClassLoader> {
+        private final Partition _partition;
+
+        PartitionReference(ClassLoader loader, Partition partition, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            _partition = partition;
         }
     }
 }
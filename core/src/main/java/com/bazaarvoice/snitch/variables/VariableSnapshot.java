@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.bazaarvoice.snitch.Variable;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Every variable that the registry knew about at one point, along with the version of the registry at that point.  The
+ * version increases every time a variable appears or goes away, so a consumer that scrapes regularly can keep whatever
+ * it derives from the set of variables until the version changes, rather than rebuild it on every scrape.
+ * <p/>
+ * Only the set of variables is fixed, their values are still read when {@link Variable#getValue()} is called.
+ */
+public final class VariableSnapshot {
+    private final long _version;
+    private final List<Variable> _variables;
+
+    public VariableSnapshot(long version, Iterable<Variable> variables) {
+        _version = version;
+        _variables = ImmutableList.copyOf(variables);
+    }
+
+    /** The version of the registry that this is a snapshot of. */
+    public long getVersion() {
+        return _version;
+    }
+
+    public List<Variable> getVariables() {
+        return _variables;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("version", _version)
+                .add("variables", _variables.size())
+                .toString();
+    }
+}
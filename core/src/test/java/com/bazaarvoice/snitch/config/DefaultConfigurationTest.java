@@ -18,12 +18,14 @@ package com.bazaarvoice.snitch.config;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -40,6 +42,12 @@ public class DefaultConfigurationTest {
         assertNull(config.getNamingStrategyClassName());
         assertTrue(config.getFormatterClassNames().isEmpty());
         assertTrue(config.getPackagesToScan().isEmpty());
+        assertTrue(config.getPackagesToExclude().isEmpty());
+        assertTrue(config.getJarsToScan().isEmpty());
+        assertTrue(config.getJarsToExclude().isEmpty());
+        assertEquals(1, config.getScanThreads());
+        assertNull(config.getScanCacheFile());
+        assertFalse(config.isBackgroundScan());
     }
 
     @Test
@@ -104,6 +112,56 @@ public class DefaultConfigurationTest {
         assertTrue(packages.contains("com.google"));
     }
 
+    @Test
+    public void testPackagesToExclude() throws Exception {
+        Properties props = props("exclude-packages", "com.bazaarvoice.generated, org.apache");
+        DefaultConfiguration config = new DefaultConfiguration(props, EMPTY_LIST);
+
+        assertEquals(Arrays.asList("com.bazaarvoice.generated", "org.apache"), config.getPackagesToExclude());
+    }
+
+    @Test
+    public void testJarsToScan() throws Exception {
+        Properties props = props("jars", "app-*.jar", "exclude-jars", "*-tests.jar");
+        DefaultConfiguration config = new DefaultConfiguration(props, EMPTY_LIST);
+
+        assertEquals(Arrays.asList("app-*.jar"), config.getJarsToScan());
+        assertEquals(Arrays.asList("*-tests.jar"), config.getJarsToExclude());
+    }
+
+    @Test
+    public void testScanThreads() throws Exception {
+        Properties props = props("scan-threads", " 8 ");
+        DefaultConfiguration config = new DefaultConfiguration(props, EMPTY_LIST);
+
+        assertEquals(8, config.getScanThreads());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScanThreads() throws Exception {
+        new DefaultConfiguration(props("scan-threads", "lots"), EMPTY_LIST);
+    }
+
+    @Test
+    public void testScanCacheFile() throws Exception {
+        Properties props = props("scan-cache-file", "/tmp/snitch.cache");
+        DefaultConfiguration config = new DefaultConfiguration(props, EMPTY_LIST);
+
+        assertEquals("/tmp/snitch.cache", config.getScanCacheFile());
+    }
+
+    @Test
+    public void testBackgroundScan() throws Exception {
+        DefaultConfiguration config = new DefaultConfiguration(props("background-scan", "TRUE"), EMPTY_LIST);
+
+        assertTrue(config.isBackgroundScan());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBackgroundScan() throws Exception {
+        new DefaultConfiguration(props("background-scan", "sometimes"), EMPTY_LIST);
+    }
+
     @Test
     public void testFormatterClassNamesOneSource() throws Exception {
         Properties props = props("class", "formatter");
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.processor;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MonitoredProcessorTest {
+    private static final String MONITORED = Monitored.class.getName();
+    private static final String DECLARATION = "annotation " + MONITORED;
+    private static final String COVERS_BAR = "covers example.Bar";
+    private static final String COVERS_FOO = "covers example.Foo";
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    private File _sourceDir;
+    private File _outputDir;
+    private File _indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        _sourceDir = _tempFolder.newFolder("src");
+        _outputDir = _tempFolder.newFolder("classes");
+        _indexFile = new File(_outputDir, IndexAnnotationScanner.INDEX_RESOURCE);
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        compile(source("Foo", "@" + MONITORED + " int count;"),
+                source("Bar", "@" + MONITORED + " int size() { return 0; }"));
+
+        assertEquals(ImmutableList.of(DECLARATION, COVERS_BAR, COVERS_FOO,
+                                      "field " + MONITORED + " example.Foo count",
+                                      "method " + MONITORED + " example.Bar size"), readIndex());
+    }
+
+    @Test
+    public void testIncrementalCompileKeepsOtherClasses() throws IOException {
+        compile(source("Foo", "@" + MONITORED + " int count;"), source("Bar", "@" + MONITORED + " int size;"));
+        compile(source("Foo", "@" + MONITORED + " int total;"));
+
+        assertEquals(ImmutableList.of(DECLARATION, COVERS_BAR, COVERS_FOO,
+                                      "field " + MONITORED + " example.Bar size",
+                                      "field " + MONITORED + " example.Foo total"), readIndex());
+    }
+
+    @Test
+    public void testIncrementalCompileWithoutAnnotations() throws IOException {
+        compile(source("Foo", "@" + MONITORED + " int count;"), source("Bar", "@" + MONITORED + " int size;"));
+        compile(source("Foo", "int count;"));
+
+        assertEquals(ImmutableList.of(DECLARATION, COVERS_BAR, COVERS_FOO, "field " + MONITORED + " example.Bar size"),
+                readIndex());
+    }
+
+    @Test
+    public void testRemovedClassesAreDropped() throws IOException {
+        compile(source("Foo", "@" + MONITORED + " int count;"), source("Bar", "@" + MONITORED + " int size;"));
+        assertTrue(new File(_outputDir, "example/Bar.class").delete());
+        compile(source("Foo", "@" + MONITORED + " int count;"));
+
+        assertEquals(ImmutableList.of(DECLARATION, COVERS_FOO, "field " + MONITORED + " example.Foo count"),
+                readIndex());
+    }
+
+    @Test
+    public void testMalformedLinesAreReported() throws IOException {
+        compile(source("Foo", "@" + MONITORED + " int count;"), source("Bar", "@" + MONITORED + " int size;"));
+        Files.append("field " + MONITORED + " example.Bar\n", _indexFile, Charsets.UTF_8);
+        List<Diagnostic<? extends JavaFileObject>> diagnostics =
+                compile(source("Foo", "@" + MONITORED + " int count;"));
+
+        assertEquals(ImmutableList.of(DECLARATION, COVERS_BAR, COVERS_FOO,
+                                      "field " + MONITORED + " example.Bar size",
+                                      "field " + MONITORED + " example.Foo count"), readIndex());
+        boolean reported = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            reported |= diagnostic.getKind() == Diagnostic.Kind.WARNING
+                    && diagnostic.getMessage(null).startsWith("Dropping line 6 of the existing");
+        }
+        assertTrue(reported);
+    }
+
+    private File source(String className, String member) throws IOException {
+        File file = new File(_sourceDir, "example/" + className + ".java");
+        Files.createParentDirs(file);
+        Files.write("package example; public class " + className + " { " + member + " }", file, Charsets.UTF_8);
+        return file;
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compile(File... sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, Charsets.UTF_8);
+        try {
+            List<String> options = ImmutableList.of("-classpath", System.getProperty("java.class.path"),
+                    "-d", _outputDir.getPath(), "-processor", MonitoredProcessor.class.getName());
+            boolean success = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjects(sources)).call();
+            assertTrue(diagnostics.getDiagnostics().toString(), success);
+        } finally {
+            fileManager.close();
+        }
+        return diagnostics.getDiagnostics();
+    }
+
+    private List<String> readIndex() throws IOException {
+        List<String> lines = Lists.newArrayList();
+        for (String line : Files.readLines(_indexFile, Charsets.UTF_8)) {
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner.Reporter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClassFileScannerTest {
+    private static final Set<Class<? extends Annotation>> ANNOTATIONS = ImmutableSet.<Class<? extends Annotation>>of(
+            Foo.class);
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    private final Reporter _reporter = new Reporter(ANNOTATIONS);
+    private final ClassFileScanner _scanner = new ClassFileScanner(_reporter);
+
+    @Test
+    public void testAnnotatedClass() throws IOException {
+        _scanner.scanClass("Annotated.class", classBytes(Annotated.class));
+
+        assertEquals(ImmutableList.of(new ClassEntry(Annotated.class.getName())),
+                _reporter.getTypeAnnotations().get(Foo.class));
+        assertEquals(ImmutableList.of(new FieldEntry(Annotated.class.getName(), "field")),
+                _reporter.getFieldAnnotations().get(Foo.class));
+        assertEquals(ImmutableList.of(new MethodEntry(Annotated.class.getName(), "method")),
+                _reporter.getMethodAnnotations().get(Foo.class));
+    }
+
+    @Test
+    public void testClassWithoutAnnotationDescriptor() throws IOException {
+        _scanner.scanClass("NotAnnotated.class", classBytes(NotAnnotated.class));
+
+        assertTrue(_reporter.getTypeAnnotations().isEmpty());
+        assertTrue(_reporter.getFieldAnnotations().isEmpty());
+        assertTrue(_reporter.getMethodAnnotations().isEmpty());
+    }
+
+    @Test
+    public void testMalformedClassIsSkipped() throws IOException {
+        byte[] bytes = classBytes(Annotated.class);
+        _scanner.scanClass("Truncated.class", Arrays.copyOf(bytes, bytes.length / 2));
+        _scanner.scanClass("Garbage.class", new byte[] {1, 2, 3});
+
+        assertTrue(_reporter.getTypeAnnotations().isEmpty());
+        assertTrue(_reporter.getFieldAnnotations().isEmpty());
+        assertTrue(_reporter.getMethodAnnotations().isEmpty());
+    }
+
+    @Test
+    public void testJar() throws IOException {
+        File jar = _tempFolder.newFile("test.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            addClass(out, Annotated.class);
+            addClass(out, NotAnnotated.class);
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+
+        _scanner.scan(jar);
+
+        assertEquals(ImmutableList.of(new ClassEntry(Annotated.class.getName())),
+                _reporter.getTypeAnnotations().get(Foo.class));
+        assertEquals(ImmutableList.of(new FieldEntry(Annotated.class.getName(), "field")),
+                _reporter.getFieldAnnotations().get(Foo.class));
+        assertEquals(ImmutableList.of(new MethodEntry(Annotated.class.getName(), "method")),
+                _reporter.getMethodAnnotations().get(Foo.class));
+    }
+
+    @Test
+    public void testNestedJar() throws IOException {
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        ZipOutputStream innerOut = new ZipOutputStream(inner);
+        addClass(innerOut, "", Annotated.class);
+        innerOut.close();
+
+        File jar = _tempFolder.newFile("boot.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("BOOT-INF/lib/inner.jar"));
+            out.write(inner.toByteArray());
+            out.closeEntry();
+            addClass(out, "BOOT-INF/classes/", NotAnnotated.class);
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+
+        _scanner.scan(jar);
+
+        assertEquals(ImmutableList.of(new ClassEntry(Annotated.class.getName())),
+                _reporter.getTypeAnnotations().get(Foo.class));
+        assertEquals(ImmutableList.of(new FieldEntry(Annotated.class.getName(), "field")),
+                _reporter.getFieldAnnotations().get(Foo.class));
+    }
+
+    @Test
+    public void testFilteredNestedJar() throws IOException {
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        ZipOutputStream innerOut = new ZipOutputStream(inner);
+        addClass(innerOut, "", Annotated.class);
+        innerOut.close();
+
+        File jar = _tempFolder.newFile("boot.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("BOOT-INF/lib/third-party.jar"));
+            out.write(inner.toByteArray());
+            out.closeEntry();
+            addClass(out, "BOOT-INF/classes/", Annotated.class);
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+
+        List<String> none = Collections.emptyList();
+        ScanFilter filter = new ScanFilter(none, none, none, ImmutableList.of("third-party*.jar"));
+        new ClassFileScanner(_reporter, filter).scan(jar);
+
+        // Only the copy in BOOT-INF/classes is found
+        assertEquals(ImmutableList.of(new ClassEntry(Annotated.class.getName())),
+                _reporter.getTypeAnnotations().get(Foo.class));
+    }
+
+    @Test
+    public void testJarOutsideOfLibraryDirectory() throws IOException {
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        ZipOutputStream innerOut = new ZipOutputStream(inner);
+        addClass(innerOut, "", Annotated.class);
+        innerOut.close();
+
+        File jar = _tempFolder.newFile("fat.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("resources/bundled.jar"));
+            out.write(inner.toByteArray());
+            out.closeEntry();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+
+        _scanner.scan(jar);
+
+        assertTrue(_reporter.getTypeAnnotations().isEmpty());
+    }
+
+    private static void addClass(ZipOutputStream out, Class<?> cls) throws IOException {
+        addClass(out, "", cls);
+    }
+
+    private static void addClass(ZipOutputStream out, String prefix, Class<?> cls) throws IOException {
+        out.putNextEntry(new ZipEntry(prefix + cls.getName().replace('.', '/') + ".class"));
+        out.write(classBytes(cls));
+        out.closeEntry();
+    }
+
+    private static byte[] classBytes(Class<?> cls) throws IOException {
+        String resource = cls.getName().substring(cls.getPackage().getName().length() + 1) + ".class";
+        InputStream in = cls.getResourceAsStream(resource);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private static @interface Foo {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private static @interface Bar {
+        String[] value();
+    }
+
+    @SuppressWarnings("unused")
+    @Bar({"a", "b"}) @Foo
+    private static final class Annotated {
+        private static final long CONSTANT = Long.MAX_VALUE;
+
+        @Bar("x") @Foo int field;
+        @Deprecated int other;
+
+        @Bar("y") @Foo int method() { return field; }
+        double other() { return 1.5; }
+    }
+
+    @SuppressWarnings("unused")
+    @Bar("z")
+    private static final class NotAnnotated {
+        @Bar("x") int field;
+        @Bar("y") int method() { return field; }
+    }
+}
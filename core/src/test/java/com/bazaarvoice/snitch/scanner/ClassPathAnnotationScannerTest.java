@@ -15,26 +15,55 @@
  */
 package com.bazaarvoice.snitch.scanner;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ClassPathAnnotationScannerTest {
     private static final String PACKAGE_NAME = ClassPathAnnotationScannerTest.class.getPackage().getName();
+    private static final String BAZ = Baz.class.getName();
+    private static final String COVERS = "covers " + ClassPathAnnotationScannerTest.class.getName() + "\n";
     private final ClassPathAnnotationScanner _scanner;
 
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
     public ClassPathAnnotationScannerTest() {
         _scanner = new ClassPathAnnotationScanner(PACKAGE_NAME);
         _scanner.addAnnotationClass(Foo.class);
     }
 
+    @Before
+    public void setUp() {
+        // Every test should start by scanning the class path rather than reusing what an earlier test found
+        SharedScanResults.clear();
+    }
+
     @Test
     public void testAnnotatedClasses() {
         Collection<AnnotationScanner.ClassEntry> entries = _scanner.getClassesAnnotatedWith(Foo.class);
@@ -137,6 +166,333 @@ public class ClassPathAnnotationScannerTest {
         entries.clear();
     }
 
+    @Test
+    public void testParallelScanMatchesSerialScan() {
+        ClassPathAnnotationScanner parallel = new ClassPathAnnotationScanner(4, PACKAGE_NAME);
+        parallel.addAnnotationClass(Foo.class);
+
+        assertEquals(HashMultiset.create(_scanner.getClassesAnnotatedWith(Foo.class)),
+                HashMultiset.create(parallel.getClassesAnnotatedWith(Foo.class)));
+        assertEquals(HashMultiset.create(_scanner.getMethodsAnnotatedWith(Foo.class)),
+                HashMultiset.create(parallel.getMethodsAnnotatedWith(Foo.class)));
+        assertEquals(HashMultiset.create(_scanner.getFieldsAnnotatedWith(Foo.class)),
+                HashMultiset.create(parallel.getFieldsAnnotatedWith(Foo.class)));
+    }
+
+    @Test
+    public void testScanCacheIsWritten() throws IOException {
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        List<AnnotationScanner.FieldEntry> entries = newCachingScanner(cacheFile).getFieldsAnnotatedWith(Foo.class);
+        assertEquals(_scanner.getFieldsAnnotatedWith(Foo.class), entries);
+
+        String contents = Files.toString(cacheFile, Charsets.UTF_8);
+        assertTrue(contents.contains("field " + Foo.class.getName() + " " + TestClass.class.getName() + " publicFoo"));
+    }
+
+    @Test
+    public void testScanCacheIsUsed() throws IOException {
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        newCachingScanner(cacheFile).getFieldsAnnotatedWith(Foo.class);
+
+        // Add an entry that doesn't exist in the class path, it can only be found if the cache is used
+        Files.append("field " + Foo.class.getName() + " " + TestClass.class.getName() + " cachedOnly\n", cacheFile,
+                Charsets.UTF_8);
+
+        Collection<AnnotationScanner.FieldEntry> entries = newCachingScanner(cacheFile).getFieldsAnnotatedWith(Foo.class);
+        assertContainsField(entries, TestClass.class, "cachedOnly");
+        assertContainsField(entries, TestClass.class, "publicFoo");
+    }
+
+    @Test
+    public void testStaleScanCacheIsIgnored() throws IOException {
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        newCachingScanner(cacheFile).getFieldsAnnotatedWith(Foo.class);
+
+        // Change every fingerprint and add an entry that doesn't exist in the class path
+        String contents = Files.toString(cacheFile, Charsets.UTF_8).replaceAll("(?m)^unit \\S+ ", "unit stale ");
+        contents += "field " + Foo.class.getName() + " " + TestClass.class.getName() + " cachedOnly\n";
+        Files.write(contents, cacheFile, Charsets.UTF_8);
+
+        Collection<AnnotationScanner.FieldEntry> entries = newCachingScanner(cacheFile).getFieldsAnnotatedWith(Foo.class);
+        assertNotContainsField(entries, TestClass.class, "cachedOnly");
+        assertContainsField(entries, TestClass.class, "publicFoo");
+    }
+
+    @Test
+    public void testAddedAnnotationIsScannedIncrementally() {
+        List<AnnotationScanner.FieldEntry> fooEntries = _scanner.getFieldsAnnotatedWith(Foo.class);
+        assertTrue(_scanner.getFieldsAnnotatedWith(Baz.class).isEmpty());
+
+        _scanner.addAnnotationClass(Baz.class);
+        assertContainsField(_scanner.getFieldsAnnotatedWith(Baz.class), BazClass.class, "baz");
+        assertNotContainsField(_scanner.getFieldsAnnotatedWith(Baz.class), TestClass.class, "publicFoo");
+        assertEquals(fooEntries, _scanner.getFieldsAnnotatedWith(Foo.class));
+    }
+
+    @Test
+    public void testAddedAnnotationIsAddedToScanCache() throws IOException {
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        ClassPathAnnotationScanner scanner = newCachingScanner(cacheFile);
+        scanner.getFieldsAnnotatedWith(Foo.class);
+        scanner.addAnnotationClass(Baz.class);
+        scanner.getFieldsAnnotatedWith(Baz.class);
+
+        // Both annotations should be served from the cache by a scanner that looks for them at once
+        Files.append("field " + Baz.class.getName() + " " + BazClass.class.getName() + " cachedOnly\n", cacheFile,
+                Charsets.UTF_8);
+        ClassPathAnnotationScanner cached = newCachingScanner(cacheFile);
+        cached.addAnnotationClass(Baz.class);
+        assertContainsField(cached.getFieldsAnnotatedWith(Baz.class), BazClass.class, "cachedOnly");
+        assertContainsField(cached.getFieldsAnnotatedWith(Baz.class), BazClass.class, "baz");
+        assertContainsField(cached.getFieldsAnnotatedWith(Foo.class), TestClass.class, "publicFoo");
+    }
+
+    @Test
+    public void testExcludedPackageIsNotScanned() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.bazaarvoice.snitch"), ImmutableList.of(PACKAGE_NAME),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, null, filter);
+        scanner.addAnnotationClass(Foo.class);
+
+        assertTrue(scanner.getClassesAnnotatedWith(Foo.class).isEmpty());
+        assertTrue(scanner.getFieldsAnnotatedWith(Foo.class).isEmpty());
+    }
+
+    @Test
+    public void testSharedResultsAreReused() {
+        List<AnnotationScanner.FieldEntry> fooEntries = _scanner.getFieldsAnnotatedWith(Foo.class);
+
+        // A scanner with a cache file only writes it when it scans, so no file means the shared results were used
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, cacheFile, PACKAGE_NAME);
+        scanner.addAnnotationClass(Foo.class);
+        assertEquals(HashMultiset.create(fooEntries), HashMultiset.create(scanner.getFieldsAnnotatedWith(Foo.class)));
+        assertFalse(cacheFile.exists());
+
+        // Annotations that haven't been scanned for yet still need a scan
+        scanner.addAnnotationClass(Baz.class);
+        assertContainsField(scanner.getFieldsAnnotatedWith(Baz.class), BazClass.class, "baz");
+        assertTrue(cacheFile.exists());
+    }
+
+    @Test
+    public void testSharedResultsAreNotReusedWithDifferentFilter() {
+        assertContainsField(_scanner.getFieldsAnnotatedWith(Foo.class), TestClass.class, "publicFoo");
+
+        ScanFilter filter = new ScanFilter(ImmutableList.of(PACKAGE_NAME), Collections.<String>emptyList(),
+                Collections.<String>emptyList(), ImmutableList.of("*.jar"));
+        ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, null, filter);
+        scanner.addAnnotationClass(Foo.class);
+        assertContainsField(scanner.getFieldsAnnotatedWith(Foo.class), TestClass.class, "publicFoo");
+
+        ScanFilter excluding = new ScanFilter(ImmutableList.of("com.bazaarvoice.snitch"),
+                ImmutableList.of(PACKAGE_NAME), Collections.<String>emptyList(), Collections.<String>emptyList());
+        ClassPathAnnotationScanner excluded = new ClassPathAnnotationScanner(1, null, excluding);
+        excluded.addAnnotationClass(Foo.class);
+        assertTrue(excluded.getFieldsAnnotatedWith(Foo.class).isEmpty());
+    }
+
+    @Test
+    public void testSharedResultsDontDependOnGuessedPackages() throws ClassNotFoundException {
+        // Scanners without any configured packages guess them from the loaded packages, which change between the two
+        ClassPathAnnotationScanner first = new ClassPathAnnotationScanner(1, null, ScanFilter.ALL);
+        first.addAnnotationClass(Foo.class);
+        List<AnnotationScanner.FieldEntry> fooEntries = first.getFieldsAnnotatedWith(Foo.class);
+        assertContainsField(fooEntries, TestClass.class, "publicFoo");
+
+        Class.forName("javax.sql.rowset.serial.SerialBlob");
+
+        // A scanner with a cache file only writes it when it scans, so no file means the shared results were used
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        ClassPathAnnotationScanner second = new ClassPathAnnotationScanner(1, cacheFile, ScanFilter.ALL);
+        second.addAnnotationClass(Foo.class);
+        assertEquals(HashMultiset.create(fooEntries), HashMultiset.create(second.getFieldsAnnotatedWith(Foo.class)));
+        assertFalse(cacheFile.exists());
+    }
+
+    @Test
+    public void testUnitIndexIsUsed() throws IOException {
+        // The index lists a field that the class doesn't have, so finding it means the index was read
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" + COVERS +
+                                   "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n" +
+                                   "field " + BAZ + " " + PACKAGE_NAME + ".Missing other\n");
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(unit, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "indexedOnly")), entries);
+    }
+
+    @Test
+    public void testUnitIndexInJarIsUsed() throws IOException {
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" + COVERS +
+                                   "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+        File jar = newJar("indexed.jar", unit, "META-INF/", "META-INF/snitch/", IndexAnnotationScanner.INDEX_RESOURCE);
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(jar, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "indexedOnly")), entries);
+    }
+
+    @Test
+    public void testUnitIndexWithoutDeclarationIsScanned() throws IOException {
+        File unit = newIndexedUnit("field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(unit, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "baz")), entries);
+    }
+
+    @Test
+    public void testUnitIndexWithoutCoversIsScanned() throws IOException {
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" +
+                                   "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(unit, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "baz")), entries);
+    }
+
+    @Test
+    public void testUnitIndexNotCoveringEveryClassIsScanned() throws IOException {
+        // Like a shaded jar, the unit holds a class that whoever wrote the index never saw
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" + COVERS +
+                                   "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+        copyClassFile(ScanFilterTest.class, unit);
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(unit, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "baz")), entries);
+    }
+
+    @Test
+    public void testVouchedJarIsNotScanned() throws IOException {
+        File jar = newJar("dependency.jar", newIndexedUnit(""));
+        String fingerprint = UnitIndex.Contents.read(jar, ScanFilter.ALL).getFingerprint();
+
+        // An artifact whose index vouches for the jar, it lists a field that the class doesn't have
+        File artifact = newArtifact("annotation " + BAZ + "\n" +
+                                    "jar " + BAZ + " " + fingerprint + "\n" +
+                                    "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+
+        List<AnnotationScanner.FieldEntry> entries =
+                scanUnits(new ScanFilter(ImmutableList.of(PACKAGE_NAME)), artifact, jar);
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "indexedOnly")), entries);
+    }
+
+    @Test
+    public void testChangedVouchedJarIsScanned() throws IOException {
+        File jar = newJar("dependency.jar", newIndexedUnit(""));
+        File artifact = newArtifact("annotation " + BAZ + "\n" +
+                                    "jar " + BAZ + " 0123456789abcdef0123456789abcdef\n" +
+                                    "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+
+        List<AnnotationScanner.FieldEntry> entries =
+                scanUnits(new ScanFilter(ImmutableList.of(PACKAGE_NAME)), artifact, jar);
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "baz")), entries);
+    }
+
+    @Test
+    public void testMalformedUnitIndexIsScanned() throws IOException {
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" +
+                                   "field " + BAZ + " " + BazClass.class.getName() + "\n");
+
+        List<AnnotationScanner.FieldEntry> entries = scanUnit(unit, new ScanFilter(ImmutableList.of(PACKAGE_NAME)));
+        assertEquals(ImmutableList.of(new FieldEntry(BazClass.class.getName(), "baz")), entries);
+    }
+
+    @Test
+    public void testUnitIndexIsFiltered() throws IOException {
+        File unit = newIndexedUnit("annotation " + BAZ + "\n" + COVERS +
+                                   "field " + BAZ + " " + BazClass.class.getName() + " indexedOnly\n");
+
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.bazaarvoice.snitch"), ImmutableList.of(PACKAGE_NAME),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertTrue(scanUnit(unit, filter).isEmpty());
+    }
+
+    /** Create a class directory holding {@link BazClass} and an index with the given contents. */
+    private File newIndexedUnit(String index) throws IOException {
+        File unit = _tempFolder.newFolder("indexed");
+        copyClassFile(BazClass.class, unit);
+
+        File indexFile = new File(unit, IndexAnnotationScanner.INDEX_RESOURCE);
+        Files.createParentDirs(indexFile);
+        Files.write(index, indexFile, Charsets.UTF_8);
+        return unit;
+    }
+
+    /** Create a class directory without any classes, only the package directory and an index. */
+    private File newArtifact(String index) throws IOException {
+        File artifact = _tempFolder.newFolder("artifact");
+        assertTrue(new File(artifact, PACKAGE_NAME.replace('.', '/')).mkdirs());
+
+        File indexFile = new File(artifact, IndexAnnotationScanner.INDEX_RESOURCE);
+        Files.createParentDirs(indexFile);
+        Files.write(index, indexFile, Charsets.UTF_8);
+        return artifact;
+    }
+
+    /** Create a jar holding {@link BazClass} from a unit, along with other paths of the unit. */
+    private File newJar(String name, File unit, String... paths) throws IOException {
+        File jar = new File(_tempFolder.getRoot(), name);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            // Directory entries as well, the class path is searched for the directory of the package
+            for (String path : ImmutableList.<String>builder()
+                    .add("com/", "com/bazaarvoice/", "com/bazaarvoice/snitch/", "com/bazaarvoice/snitch/scanner/")
+                    .add(classFilePath(BazClass.class))
+                    .add(paths)
+                    .build()) {
+                out.putNextEntry(new JarEntry(path));
+                if (!path.endsWith("/")) {
+                    Files.copy(new File(unit, path), out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    /** Scan a class path that only holds {@code unit} for {@link Baz}. */
+    private static List<AnnotationScanner.FieldEntry> scanUnit(File unit, ScanFilter filter) throws IOException {
+        return scanUnits(filter, unit);
+    }
+
+    /** Scan a class path that only holds {@code units} for {@link Baz}. */
+    private static List<AnnotationScanner.FieldEntry> scanUnits(ScanFilter filter, File... units) throws IOException {
+        URL[] urls = new URL[units.length];
+        for (int i = 0; i < units.length; i++) {
+            urls[i] = units[i].toURI().toURL();
+        }
+        ClassLoader loader = new URLClassLoader(urls, null);
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, null, filter);
+            scanner.addAnnotationClass(Baz.class);
+            return scanner.getFieldsAnnotatedWith(Baz.class);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private static void copyClassFile(Class<?> cls, File unit) throws IOException {
+        String path = classFilePath(cls);
+        File classFile = new File(unit, path);
+        Files.createParentDirs(classFile);
+        Files.copy(new File(cls.getProtectionDomain().getCodeSource().getLocation().getPath(), path), classFile);
+    }
+
+    private static String classFilePath(Class<?> cls) {
+        return cls.getName().replace('.', '/') + ".class";
+    }
+
+    private static ClassPathAnnotationScanner newCachingScanner(File cacheFile) {
+        // Forget what earlier scanners found, otherwise the new scanner would never need to read the cache file
+        SharedScanResults.clear();
+
+        ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, cacheFile, PACKAGE_NAME);
+        scanner.addAnnotationClass(Foo.class);
+        return scanner;
+    }
+
     private static void assertContainsType(Collection<AnnotationScanner.ClassEntry> entries, Class<?> cls) {
         for (AnnotationScanner.ClassEntry entry : entries) {
             if (cls.getName().equals(entry.getClassName())) {
@@ -192,6 +548,15 @@ public class ClassPathAnnotationScannerTest {
     @Target({ElementType.FIELD, ElementType.METHOD, ElementType.TYPE})
     private static @interface Foo {}
 
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.FIELD, ElementType.METHOD, ElementType.TYPE})
+    private static @interface Baz {}
+
+    @SuppressWarnings("UnusedDeclaration")
+    private static final class BazClass {
+        @Baz private int baz;
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     @Foo
     private static final class TestClass {
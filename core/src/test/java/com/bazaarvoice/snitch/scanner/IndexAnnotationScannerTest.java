@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexAnnotationScannerTest {
+    private static final String INDEX = "com/bazaarvoice/snitch/scanner/test-index";
+    private static final String MALFORMED_INDEX = "com/bazaarvoice/snitch/scanner/malformed-index";
+    private static final String[] NO_PACKAGES = new String[0];
+
+    @Test
+    public void testClassEntries() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(NO_PACKAGES, INDEX);
+        assertEquals(ImmutableList.of(new ClassEntry("com.example.Annotated")),
+                scanner.getClassesAnnotatedWith(Foo.class));
+    }
+
+    @Test
+    public void testMethodEntries() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(NO_PACKAGES, INDEX);
+        assertEquals(ImmutableList.of(new MethodEntry("com.example.Annotated", "getValue")),
+                scanner.getMethodsAnnotatedWith(Foo.class));
+    }
+
+    @Test
+    public void testFieldEntries() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(NO_PACKAGES, INDEX);
+        assertEquals(ImmutableList.of(new FieldEntry("com.example.Annotated$Inner", "count"),
+                                      new FieldEntry("org.example.Elsewhere", "count")),
+                scanner.getFieldsAnnotatedWith(Foo.class));
+    }
+
+    @Test
+    public void testPackageFilter() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(new String[] {"org.example"}, INDEX);
+        assertEquals(ImmutableList.of(new FieldEntry("org.example.Elsewhere", "count")),
+                scanner.getFieldsAnnotatedWith(Foo.class));
+        assertTrue(scanner.getMethodsAnnotatedWith(Foo.class).isEmpty());
+    }
+
+    @Test
+    public void testMissingIndex() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(NO_PACKAGES, "does/not/exist");
+        assertTrue(scanner.getClassesAnnotatedWith(Foo.class).isEmpty());
+        assertTrue(scanner.getMethodsAnnotatedWith(Foo.class).isEmpty());
+        assertTrue(scanner.getFieldsAnnotatedWith(Foo.class).isEmpty());
+    }
+
+    @Test
+    public void testMalformedIndex() {
+        IndexAnnotationScanner scanner = new IndexAnnotationScanner(NO_PACKAGES, MALFORMED_INDEX);
+        try {
+            scanner.getClassesAnnotatedWith(Foo.class);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().startsWith("Line 3 of "));
+        }
+    }
+
+    @Test
+    public void testParseLine() {
+        assertNull(IndexAnnotationScanner.parseLine("   "));
+        assertNull(IndexAnnotationScanner.parseLine("# comment"));
+        assertEquals(ImmutableList.of("field", "com.example.Foo", "com.example.Bar", "count"),
+                IndexAnnotationScanner.parseLine(" field com.example.Foo\tcom.example.Bar  count "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseLineWithUnknownKind() {
+        IndexAnnotationScanner.parseLine("constructor com.example.Foo com.example.Bar");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFieldEntriesImmutable() {
+        List<AnnotationScanner.FieldEntry> entries = new IndexAnnotationScanner(NO_PACKAGES, INDEX).getFieldsAnnotatedWith(Foo.class);
+        entries.clear();
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private static @interface Foo {}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexBuilderTest {
+    private static final String FOO = Foo.class.getName();
+    private static final String INDEXED = Indexed.class.getName();
+
+    private final IndexBuilder _builder = new IndexBuilder(ImmutableSet.<Class<? extends Annotation>>of(Foo.class),
+            new ScanFilter(ImmutableList.of(IndexBuilderTest.class.getPackage().getName())));
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertTrue(_builder.isEmpty());
+        assertEquals("annotation " + FOO + "\n", write());
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        _builder.scan(classPathRoot());
+
+        String index = write();
+        assertEquals("annotation " + FOO + "\n" +
+                     "class " + FOO + " " + INDEXED + "\n" +
+                     "field " + FOO + " " + INDEXED + " field\n" +
+                     "method " + FOO + " " + INDEXED + " method\n", withoutCovers(index));
+
+        // Every scanned class is covered by its top level class, classes outside of the filter aren't
+        assertTrue(index.contains("covers " + IndexBuilderTest.class.getName() + "\n"));
+        assertFalse(index.contains("covers " + INDEXED + "\n"));
+        assertFalse(index.contains("covers " + Monitored.class.getName() + "\n"));
+    }
+
+    @Test
+    public void testExistingLinesOfOtherAnnotationsAreKept() throws Exception {
+        _builder.addExisting("annotation com.example.Other");
+        _builder.addExisting("covers com.example.Foo");
+        _builder.addExisting("field com.example.Other com.example.Foo count");
+        _builder.addExisting("field " + FOO + " com.example.Gone count");
+        _builder.addExisting("# comment");
+        _builder.scan(classPathRoot());
+
+        // The existing declarations are dropped, the builder only vouches for what it scanned itself
+        String index = write();
+        assertEquals("annotation " + FOO + "\n" +
+                     "class " + FOO + " " + INDEXED + "\n" +
+                     "field " + FOO + " " + INDEXED + " field\n" +
+                     "field com.example.Other com.example.Foo count\n" +
+                     "method " + FOO + " " + INDEXED + " method\n", withoutCovers(index));
+        assertFalse(index.contains("covers com.example.Foo\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedExistingLine() {
+        _builder.addExisting("field com.example.Other com.example.Foo");
+    }
+
+    private String write() throws IOException {
+        StringWriter writer = new StringWriter();
+        _builder.write(writer);
+        return writer.toString();
+    }
+
+    private static String withoutCovers(String index) {
+        StringBuilder buf = new StringBuilder();
+        for (String line : Splitter.on('\n').omitEmptyStrings().split(index)) {
+            if (!line.startsWith(IndexAnnotationScanner.COVERS_KIND + " ")) {
+                buf.append(line).append('\n');
+            }
+        }
+        return buf.toString();
+    }
+
+    private static File classPathRoot() throws URISyntaxException {
+        return new File(IndexBuilderTest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private static @interface Foo {}
+
+    @SuppressWarnings("unused")
+    @Foo
+    private static final class Indexed {
+        @Foo int field;
+        @Foo int method() { return field; }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanFilterTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void testEverythingIncludedByDefault() {
+        assertTrue(ScanFilter.ALL.includesClass("com/example/Foo.class"));
+        assertTrue(ScanFilter.ALL.includesClass("Foo.class"));
+        assertTrue(ScanFilter.ALL.includesDirectory("org/example"));
+        assertTrue(ScanFilter.ALL.includesJar("anything.jar"));
+    }
+
+    @Test
+    public void testIncludedPackages() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.example", "org.example.app"));
+
+        assertTrue(filter.includesClass("com/example/Foo.class"));
+        assertTrue(filter.includesClass("com/example/deep/Foo.class"));
+        assertTrue(filter.includesClass("org/example/app/Foo.class"));
+        assertFalse(filter.includesClass("org/example/Foo.class"));
+        assertFalse(filter.includesClass("com/examples/Foo.class"));
+        assertFalse(filter.includesClass("net/Foo.class"));
+        assertFalse(filter.includesClass("Foo.class"));
+    }
+
+    @Test
+    public void testExcludedPackages() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.example"), ImmutableList.of("com.example.generated"),
+                NONE, NONE);
+
+        assertTrue(filter.includesClass("com/example/Foo.class"));
+        assertFalse(filter.includesClass("com/example/generated/Foo.class"));
+        assertFalse(filter.includesClass("com/example/generated/deep/Foo.class"));
+    }
+
+    @Test
+    public void testExcludedPackagesWithoutIncludedPackages() {
+        ScanFilter filter = new ScanFilter(NONE, ImmutableList.of("org.apache"), NONE, NONE);
+
+        assertTrue(filter.includesClass("com/example/Foo.class"));
+        assertFalse(filter.includesClass("org/apache/Foo.class"));
+    }
+
+    @Test
+    public void testMostSpecificRuleWins() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com", "com.example.generated.keep"),
+                ImmutableList.of("com.example"), NONE, NONE);
+
+        assertTrue(filter.includesClass("com/Foo.class"));
+        assertFalse(filter.includesClass("com/example/Foo.class"));
+        assertFalse(filter.includesClass("com/example/generated/Foo.class"));
+        assertTrue(filter.includesClass("com/example/generated/keep/Foo.class"));
+    }
+
+    @Test
+    public void testIncludedDirectories() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.example.app"), ImmutableList.of("com.example.app.gen"),
+                NONE, NONE);
+
+        assertTrue(filter.includesDirectory("com"));
+        assertTrue(filter.includesDirectory("com/example"));
+        assertTrue(filter.includesDirectory("com/example/app"));
+        assertTrue(filter.includesDirectory("com/example/app/sub"));
+        assertFalse(filter.includesDirectory("com/example/app/gen"));
+        assertFalse(filter.includesDirectory("com/other"));
+        assertFalse(filter.includesDirectory("org"));
+        assertFalse(filter.includesDirectory("META-INF"));
+    }
+
+    @Test
+    public void testJarGlobs() {
+        ScanFilter filter = new ScanFilter(NONE, NONE, ImmutableList.of("app-*.jar", "lib?.jar"),
+                ImmutableList.of("*-tests.jar"));
+
+        assertTrue(filter.includesJar("app-core-1.0.jar"));
+        assertTrue(filter.includesJar("lib1.jar"));
+        assertFalse(filter.includesJar("lib10.jar"));
+        assertFalse(filter.includesJar("guava-11.0.2.jar"));
+        assertFalse(filter.includesJar("app-core-1.0-tests.jar"));
+        assertFalse(filter.includesJar("app.jar"));
+    }
+
+    @Test
+    public void testKeyDependsOnRules() {
+        ScanFilter filter = new ScanFilter(ImmutableList.of("com.example", "org.example"));
+
+        assertEquals(filter.getKey(), new ScanFilter(ImmutableList.of("org.example", "com.example")).getKey());
+        assertFalse(filter.getKey().equals(new ScanFilter(ImmutableList.of("com.example")).getKey()));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.scanner;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanResultsTest {
+    private static final String FOO = "com.example.Foo";
+    private static final String BAR = "com.example.Bar";
+
+    @Test
+    public void testEntries() {
+        ScanResults results = ScanResults.builder()
+                .addClass(FOO, "a.A")
+                .addMethod(FOO, "a.A", "m")
+                .addField(FOO, "a.A", "f")
+                .addField(FOO, "b.B", "g")
+                .addField(BAR, "a.A", "f")
+                .build();
+
+        assertEquals(ImmutableList.of(new ClassEntry("a.A")), results.getClasses(FOO));
+        assertEquals(ImmutableList.of(new MethodEntry("a.A", "m")), results.getMethods(FOO));
+        assertEquals(ImmutableList.of(new FieldEntry("a.A", "f"), new FieldEntry("b.B", "g")), results.getFields(FOO));
+        assertEquals(ImmutableList.of(new FieldEntry("a.A", "f")), results.getFields(BAR));
+    }
+
+    @Test
+    public void testMissingAnnotation() {
+        ScanResults results = ScanResults.builder().addClass(FOO, "a.A").build();
+
+        assertTrue(results.getClasses(BAR).isEmpty());
+        assertTrue(results.getMethods(FOO).isEmpty());
+        assertTrue(results.getFields(FOO).isEmpty());
+    }
+
+    @Test
+    public void testNamesAreShared() {
+        ScanResults results = ScanResults.builder()
+                .addMethod(FOO, new String("a.A"), "m")
+                .addField(FOO, new String("a.A"), "f")
+                .build();
+
+        assertSame(results.getMethods(FOO).get(0).getClassName(), results.getFields(FOO).get(0).getClassName());
+    }
+
+    @Test
+    public void testAddAll() {
+        ScanResults first = ScanResults.builder().addField(FOO, "a.A", "f").build();
+        ScanResults merged = ScanResults.builder().addAll(first).addField(BAR, "b.B", "g").build();
+
+        assertEquals(ImmutableList.of(new FieldEntry("a.A", "f")), merged.getFields(FOO));
+        assertEquals(ImmutableList.of(new FieldEntry("b.B", "g")), merged.getFields(BAR));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testEntriesImmutable() {
+        List<AnnotationScanner.FieldEntry> entries = ScanResults.builder().addField(FOO, "a.A", "f").build()
+                .getFields(FOO);
+        entries.clear();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        ScanResults.builder().addField(FOO, "a.A", "f").build().getFields(FOO).get(1);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.util;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GlobsTest {
+    @Test
+    public void testWildcards() {
+        Pattern pattern = Globs.toPattern("my?service-*.jar");
+        assertTrue(pattern.matcher("my-service-1.0.jar").matches());
+        assertTrue(pattern.matcher("my_service-.jar").matches());
+        assertFalse(pattern.matcher("myservice-1.0.jar").matches());
+        assertFalse(pattern.matcher("my-service-1.0.jar.bak").matches());
+    }
+
+    @Test
+    public void testLiteralCharacters() {
+        Pattern pattern = Globs.toPattern("a.b[c]+");
+        assertTrue(pattern.matcher("a.b[c]+").matches());
+        assertFalse(pattern.matcher("axb[c]+").matches());
+    }
+
+    @Test
+    public void testHasWildcards() {
+        assertTrue(Globs.hasWildcards("jvm.*"));
+        assertTrue(Globs.hasWildcards("heap?"));
+        assertFalse(Globs.hasWildcards("jvm.memory"));
+    }
+}
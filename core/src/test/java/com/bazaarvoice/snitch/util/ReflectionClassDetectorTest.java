@@ -16,12 +16,21 @@
 package com.bazaarvoice.snitch.util;
 
 import com.bazaarvoice.snitch.util.ReflectionClassDetector;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import org.junit.Test;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ReflectionClassDetectorTest {
@@ -54,4 +63,83 @@ public class ReflectionClassDetectorTest {
         assertNotNull(cls);
         assertEquals(CLASS_NAME_THAT_IS_LOADED, cls.getName());
     }
+
+    @Test
+    public void testLoadedClasses() {
+        // The class that isn't loaded is left out, other tests in this class may have loaded it
+        Map<String, Class<?>> loaded = _helper.getLoadedClasses(ImmutableList.of(CLASS_NAME_THAT_DOES_NOT_EXIST,
+                CLASS_NAME_THAT_IS_LOADED));
+        assertEquals(ImmutableMap.<String, Class<?>>of(CLASS_NAME_THAT_IS_LOADED, String.class), loaded);
+    }
+
+    @Test
+    public void testClassLoadedByGivenLoader() throws IOException {
+        IsolatingClassLoader loader = new IsolatingClassLoader();
+        Class<?> cls = loader.define(Isolated.class.getName());
+
+        ReflectionClassDetector detector = new ReflectionClassDetector(ImmutableList.<ClassLoader>of(loader));
+        assertTrue(detector.isClassLoaded(Isolated.class.getName()));
+        assertSame(cls, detector.getLoadedClass(Isolated.class.getName()));
+        assertSame(cls, detector.getLoadedClasses(ImmutableList.of(Isolated.class.getName()))
+                .get(Isolated.class.getName()));
+    }
+
+    @Test
+    public void testWithoutAccessToFindLoadedClass() throws IOException {
+        IsolatingClassLoader loader = new IsolatingClassLoader();
+        Class<?> cls = loader.define(Isolated.class.getName());
+
+        // What a JVM that denies access to ClassLoader.findLoadedClass ends up with.  The agent isn't installed in
+        // tests, so nothing is detected, but nothing is loaded to find out either.
+        ReflectionClassDetector detector = new ReflectionClassDetector(ImmutableList.<ClassLoader>of(loader), null);
+        assertFalse(detector.isClassLoaded(Isolated.class.getName()));
+        assertFalse(detector.isClassLoaded(Isolated.Nested.class.getName()));
+        assertTrue(detector.getLoadedClasses(ImmutableList.of(Isolated.class.getName(),
+                Isolated.Nested.class.getName(), CLASS_NAME_THAT_DOES_NOT_EXIST)).isEmpty());
+        assertNull(loader.findLoaded(Isolated.Nested.class.getName()));
+
+        // Only getLoadedClass is allowed to load a class
+        assertSame(cls, detector.getLoadedClass(Isolated.class.getName()));
+    }
+
+    public static class Isolated {
+        public static class Nested {}
+    }
+
+    /**
+     * Defines classes itself instead of delegating to the class loader that loaded the tests, either explicitly or when
+     * asked to load them.
+     */
+    private static class IsolatingClassLoader extends ClassLoader {
+        IsolatingClassLoader() {
+            super(null);
+        }
+
+        @Override
+        protected Class<?> findClass(String className) throws ClassNotFoundException {
+            try {
+                return define(className);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(className, e);
+            }
+        }
+
+        Class<?> findLoaded(String className) {
+            return findLoadedClass(className);
+        }
+
+        Class<?> define(String className) throws IOException {
+            InputStream in = ReflectionClassDetectorTest.class.getResourceAsStream(
+                    "/" + className.replace('.', '/') + ".class");
+            if (in == null) {
+                throw new FileNotFoundException(className);
+            }
+            try {
+                byte[] bytes = ByteStreams.toByteArray(in);
+                return defineClass(className, bytes, 0, bytes.length);
+            } finally {
+                in.close();
+            }
+        }
+    }
 }
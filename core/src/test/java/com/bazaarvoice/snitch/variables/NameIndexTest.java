@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.variables;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NameIndexTest {
+    private final NameIndex<String> _index = new NameIndex<String>();
+
+    public NameIndexTest() {
+        for (String name : new String[] {"jvm.memory", "jvm.memory.heap", "jvm.memory.nonHeap", "jvm.memoryPools",
+                                         "jvm.threads.count", "cache.users.hits", "cache.orders.hits", "requests"}) {
+            _index.add(name, name);
+        }
+    }
+
+    @Test
+    public void testPrefix() {
+        assertValues(_index.getWithPrefix("jvm.memory"), "jvm.memory", "jvm.memory.heap", "jvm.memory.nonHeap");
+    }
+
+    @Test
+    public void testPrefixIsWholeName() {
+        assertValues(_index.getWithPrefix("requests"), "requests");
+    }
+
+    @Test
+    public void testPrefixWithoutMatches() {
+        assertTrue(_index.getWithPrefix("jvm.mem").isEmpty());
+        assertTrue(_index.getWithPrefix("unknown.name").isEmpty());
+    }
+
+    @Test
+    public void testEmptyPrefix() {
+        assertEquals(8, _index.getWithPrefix("").size());
+    }
+
+    @Test
+    public void testLiteralGlob() {
+        assertValues(_index.getMatching("jvm.memory.heap"), "jvm.memory.heap");
+    }
+
+    @Test
+    public void testStarGlob() {
+        assertValues(_index.getMatching("cache.*.hits"), "cache.users.hits", "cache.orders.hits");
+        assertValues(_index.getMatching("jvm.mem*"), "jvm.memory", "jvm.memoryPools");
+    }
+
+    @Test
+    public void testQuestionMarkGlob() {
+        assertValues(_index.getMatching("jvm.memory.?eap"), "jvm.memory.heap");
+    }
+
+    @Test
+    public void testAnyComponentsGlob() {
+        assertValues(_index.getMatching("jvm.**"), "jvm.memory", "jvm.memory.heap", "jvm.memory.nonHeap",
+                "jvm.memoryPools", "jvm.threads.count");
+        assertValues(_index.getMatching("**.hits"), "cache.users.hits", "cache.orders.hits");
+        assertValues(_index.getMatching("**.**.count"), "jvm.threads.count");
+    }
+
+    @Test
+    public void testGlobDoesNotMatchDots() {
+        assertTrue(_index.getMatching("jvm.*").contains("jvm.memory"));
+        assertTrue(!_index.getMatching("jvm.*").contains("jvm.memory.heap"));
+    }
+
+    @Test
+    public void testGlobQuotesOtherCharacters() {
+        _index.add("a+b", "a+b");
+        assertValues(_index.getMatching("a+*"), "a+b");
+    }
+
+    @Test
+    public void testRemove() {
+        _index.remove("jvm.memory.heap", "jvm.memory.heap");
+        assertValues(_index.getWithPrefix("jvm.memory"), "jvm.memory", "jvm.memory.nonHeap");
+    }
+
+    @Test
+    public void testRemoveAll() {
+        _index.removeAll(Predicates.containsPattern("^cache"));
+        assertTrue(_index.getMatching("cache.**").isEmpty());
+        assertEquals(6, _index.getWithPrefix("").size());
+    }
+
+    @Test
+    public void testSeveralValuesWithTheSameName() {
+        _index.add("requests", "other");
+        assertValues(_index.getWithPrefix("requests"), "requests", "other");
+    }
+
+    @Test
+    public void testPrefixPredicate() {
+        assertTrue(NameIndex.withPrefix("jvm.memory").apply("jvm.memory"));
+        assertTrue(NameIndex.withPrefix("jvm.memory").apply("jvm.memory.heap"));
+        assertFalse(NameIndex.withPrefix("jvm.memory").apply("jvm.memoryPools"));
+        assertTrue(NameIndex.withPrefix("").apply("requests"));
+    }
+
+    @Test
+    public void testGlobPredicate() {
+        assertTrue(NameIndex.matching("cache.*.hits").apply("cache.users.hits"));
+        assertFalse(NameIndex.matching("cache.*.hits").apply("cache.users.misses"));
+        assertTrue(NameIndex.matching("jvm.**").apply("jvm.memory.heap"));
+        assertTrue(NameIndex.matching("**.heap").apply("jvm.memory.heap"));
+        assertFalse(NameIndex.matching("jvm.*").apply("jvm.memory.heap"));
+        assertTrue(NameIndex.matching("jvm.memory.?eap").apply("jvm.memory.heap"));
+    }
+
+    private static void assertValues(Collection<String> actual, String... expected) {
+        Set<String> values = Sets.newHashSet(actual);
+        assertEquals(actual.size(), values.size());
+        assertEquals(ImmutableSet.copyOf(expected), values);
+    }
+}
@@ -15,36 +15,97 @@
  */
 package com.bazaarvoice.snitch.variables;
 
+import com.bazaarvoice.snitch.Aggregate;
+import com.bazaarvoice.snitch.Cost;
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.Registration;
 import com.bazaarvoice.snitch.Variable;
+import com.bazaarvoice.snitch.VariableProvider;
 import com.bazaarvoice.snitch.naming.DefaultNamingStrategy;
 import com.bazaarvoice.snitch.naming.NamingStrategy;
 import com.bazaarvoice.snitch.scanner.AnnotationScanner;
 import com.bazaarvoice.snitch.util.ClassDetector;
+import com.bazaarvoice.snitch.util.ReflectionClassDetector;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.bazaarvoice.snitch.scanner.AnnotationScanner.FieldEntry;
 import static com.bazaarvoice.snitch.scanner.AnnotationScanner.MethodEntry;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class VariableRegistryTest {
     private final AnnotationScanner _scanner = mock(AnnotationScanner.class);
-    private final NamingStrategy _namingStrategy = DefaultNamingStrategy.INSTANCE;
+    private final NamingStrategy<Annotation> _namingStrategy = DefaultNamingStrategy.INSTANCE;
     private final ClassDetector _detector = mock(ClassDetector.class);
     private final VariableRegistry _registry = new VariableRegistry(Foo.class, _scanner, _namingStrategy, _detector);
 
+    public VariableRegistryTest() {
+        // Answer batched lookups one class at a time, so tests only have to say which individual classes are loaded
+        when(_detector.getLoadedClasses(Matchers.<Collection<String>>any())).thenAnswer(
+                new Answer<Map<String, Class<?>>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map<String, Class<?>> answer(InvocationOnMock invocation) {
+                        Map<String, Class<?>> loaded = Maps.newHashMap();
+                        for (String className : (Collection<String>) invocation.getArguments()[0]) {
+                            Class<?> cls = _detector.isClassLoaded(className)
+                                    ? _detector.getLoadedClass(className)
+                                    : null;
+                            if (cls != null) {
+                                loaded.put(className, cls);
+                            }
+                        }
+                        return loaded;
+                    }
+                });
+    }
+
     @Test
     public void testFieldInUnloadedClass() {
         List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME, STATIC_FIELD_NAME);
@@ -260,6 +321,892 @@ public class VariableRegistryTest {
         assertEquals(2, Iterators.size(iterator));
     }
 
+    @Test
+    public void testStaticFieldInClassDefinedWithAgent() throws NoSuchFieldException {
+        VariableRegistry registry = newAgentRegistry();
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(false);
+
+        // Not yet loaded when the class path is scanned
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+
+        // The agent reports the class being defined, no polling should be needed to find it
+        registry.classDefined("some.other.Class", TestClass.class.getClassLoader());
+        registry.classDefined(CLASS_NAME, TestClass.class.getClassLoader());
+
+        FieldVariable variable = (FieldVariable) Iterables.getOnlyElement(registry.getVariables());
+        assertEquals(TestClass.class.getField(STATIC_FIELD_NAME), variable.getField());
+        verify(_detector, never()).isClassLoaded(CLASS_NAME);
+        verify(_detector, never()).getLoadedClass(Matchers.anyString());
+    }
+
+    @Test
+    public void testClassDefinedWithAgentIsResolvedOnceDefined() throws IOException {
+        List<FieldEntry> fields = mockFields(UNLOADABLE_CLASS_NAME, "unloadableField");
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        FakeTicker ticker = new FakeTicker();
+        VariableRegistry registry = spy(newAgentRegistry(ticker));
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+
+        // Reported while it's being defined, the class loader hasn't defined it yet
+        ChildFirstClassLoader loader = new ChildFirstClassLoader();
+        registry.classDefined(UNLOADABLE_CLASS_NAME, loader);
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+        verify(registry, times(1)).getInitiatedClasses(loader);
+
+        // The class loader's classes aren't listed again on every check while the class is still missing
+        loader.define(UNLOADABLE_CLASS_NAME);
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+        verify(registry, times(1)).getInitiatedClasses(loader);
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        Variable variable = Iterables.getOnlyElement(registry.getVariables());
+        assertEquals(loader, variable.getOwner().getClassLoader());
+        verify(registry, times(2)).getInitiatedClasses(loader);
+    }
+
+    @Test
+    public void testClassDefinedBeforeScanByAnyLoaderWithAgent() throws IOException {
+        List<FieldEntry> fields = mockFields(UNLOADABLE_CLASS_NAME, "unloadableField");
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+
+        // Defined by a class loader that the detector doesn't know about, before the class path is scanned
+        final ChildFirstClassLoader loader = new ChildFirstClassLoader();
+        loader.define(UNLOADABLE_CLASS_NAME);
+        VariableRegistry registry = new VariableRegistry(Foo.class, _scanner, _namingStrategy, _detector, true,
+                Ticker.systemTicker()) {
+            @Override
+            Class<?>[] getAllLoadedClasses() {
+                return loader._definedClasses.toArray(new Class<?>[0]);
+            }
+        };
+
+        Variable variable = Iterables.getOnlyElement(registry.getVariables());
+        assertEquals(loader, variable.getOwner().getClassLoader());
+        verify(_detector, never()).isClassLoaded(UNLOADABLE_CLASS_NAME);
+    }
+
+    @Test
+    public void testClassDefinedAgainWithAgent() throws IOException {
+        List<FieldEntry> fields = mockFields(UNLOADABLE_CLASS_NAME, "unloadableField");
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        VariableRegistry registry = newAgentRegistry();
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+
+        // Another class loader, such as the one of a redeployed application, defines the class again
+        Set<ClassLoader> loaders = Sets.newHashSet();
+        for (int i = 0; i < 2; i++) {
+            ChildFirstClassLoader loader = new ChildFirstClassLoader();
+            loader.define(UNLOADABLE_CLASS_NAME);
+            registry.classDefined(UNLOADABLE_CLASS_NAME, loader);
+            registry.classDefined(UNLOADABLE_CLASS_NAME, loader);
+            loaders.add(loader);
+        }
+
+        Set<ClassLoader> owners = Sets.newHashSet();
+        for (Variable variable : registry.getVariables()) {
+            owners.add(variable.getOwner().getClassLoader());
+        }
+        assertEquals(loaders, owners);
+        assertEquals(2, Iterables.size(registry.getVariables()));
+    }
+
+    @Test
+    public void testBackgroundScanDoesNotBlock() throws Exception {
+        final CountDownLatch scanStarted = new CountDownLatch(1);
+        final CountDownLatch finishScan = new CountDownLatch(1);
+        final List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenAnswer(new Answer<List<FieldEntry>>() {
+            @Override
+            public List<FieldEntry> answer(InvocationOnMock invocation) throws InterruptedException {
+                scanStarted.countDown();
+                finishScan.await();
+                return fields;
+            }
+        });
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        ListenableFuture<Void> future = _registry.scanInBackground();
+        assertTrue(scanStarted.await(10, TimeUnit.SECONDS));
+
+        // Neither of these should wait for the scan to finish
+        TestClass instance = new TestClass();
+        _registry.registerInstance(instance);
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+        assertFalse(future.isDone());
+
+        finishScan.countDown();
+        future.get(10, TimeUnit.SECONDS);
+
+        // The static field and the field of the instance registered during the scan
+        assertEquals(2, Iterables.size(_registry.getVariables()));
+    }
+
+    @Test
+    public void testFailedBackgroundScanIsRetried() throws Exception {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenThrow(new IllegalStateException()).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        ListenableFuture<Void> failed = _registry.scanInBackground();
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        ListenableFuture<Void> retried = _registry.scanInBackground();
+        retried.get(10, TimeUnit.SECONDS);
+        assertSame(retried, _registry.getScanFuture());
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+    }
+
+    @Test
+    public void testForegroundCheckCompletesFailedBackgroundScan() throws Exception {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenThrow(new IllegalStateException()).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        // The class path is scanned, checking for loaded classes afterwards fails
+        ListenableFuture<Void> failed = _registry.scanInBackground();
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+        assertTrue(_registry.getScanFuture().isDone());
+        _registry.getScanFuture().get();
+    }
+
+    @Test
+    public void testPollingBacksOffWhileNothingLoads() throws NoSuchFieldException {
+        FakeTicker ticker = new FakeTicker();
+        VariableRegistry registry = new VariableRegistry(Foo.class, _scanner, _namingStrategy, _detector, false,
+                ticker);
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(false);
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+
+        // Nothing was loaded by the first poll, so the next one waits
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+        verify(_detector, times(1)).isClassLoaded(CLASS_NAME);
+
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        FieldVariable variable = (FieldVariable) Iterables.getOnlyElement(registry.getVariables());
+        assertEquals(TestClass.class.getField(STATIC_FIELD_NAME), variable.getField());
+        verify(_detector, times(2)).isClassLoaded(CLASS_NAME);
+    }
+
+    @Test
+    public void testPollingBackoffGrows() {
+        FakeTicker ticker = new FakeTicker();
+        VariableRegistry registry = new VariableRegistry(Foo.class, _scanner, _namingStrategy, _detector, false,
+                ticker);
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(false);
+
+        registry.getVariables();
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        registry.getVariables();
+        verify(_detector, times(2)).isClassLoaded(CLASS_NAME);
+
+        // The second empty poll doubled the wait
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        registry.getVariables();
+        verify(_detector, times(2)).isClassLoaded(CLASS_NAME);
+
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        registry.getVariables();
+        verify(_detector, times(3)).isClassLoaded(CLASS_NAME);
+    }
+
+    @Test
+    public void testNoPollingOnceEveryClassIsLoaded() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+        verify(_detector, times(1)).isClassLoaded(CLASS_NAME);
+    }
+
+    @Test
+    public void testRegisteredInstanceIsBoundWhilePollingBacksOff() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(false);
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+
+        // Registering an instance proves that its class is loaded, no poll is needed to find it
+        _registry.registerInstance(new TestClass());
+        assertTrue(Iterables.getOnlyElement(_registry.getVariables()) instanceof FieldVariable);
+    }
+
+    @Test
+    public void testInstanceVariablesAreResolvedOncePerClass() throws NoSuchFieldException {
+        NamingStrategy<Annotation> namingStrategy = spy(DefaultNamingStrategy.INSTANCE);
+        VariableRegistry registry = new VariableRegistry(Foo.class, _scanner, namingStrategy, _detector);
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass first = new TestClass();
+        TestClass second = new TestClass();
+        registry.registerInstance(first);
+        registry.registerInstance(second);
+
+        List<Variable> variables = Lists.newArrayList(registry.getVariables());
+        assertEquals(2, variables.size());
+        assertEquals(TestClass.class.getField(FIELD_NAME), ((FieldVariable) variables.get(0)).getField());
+        assertEquals(Sets.newHashSet(first, second),
+                Sets.newHashSet(variables.get(0).getInstance(), variables.get(1).getInstance()));
+        verify(namingStrategy, times(1)).getName(any(Field.class), any(Annotation.class));
+    }
+
+    @Test
+    public void testInstanceRegisteredTwice() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass instance = new TestClass();
+        _registry.registerInstance(instance);
+        _registry.registerInstance(instance);
+
+        Variable variable = Iterables.getOnlyElement(_registry.getVariables());
+        assertEquals(instance, variable.getInstance());
+    }
+
+    @Test
+    public void testInstanceVariablesReadCurrentValues() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass instance = new TestClass();
+        _registry.registerInstance(instance);
+        assertEquals(0, Iterables.getOnlyElement(_registry.getVariables()).getValue());
+
+        instance.field = 7;
+        assertEquals(7, Iterables.getOnlyElement(_registry.getVariables()).getValue());
+    }
+
+    @Test
+    public void testRegisterInstances() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        List<MethodEntry> methods = mockMethods(SUBCLASS_NAME, OVERRIDDEN_METHOD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_scanner.getMethodsAnnotatedWith(Foo.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+        when(_detector.isClassLoaded(SUBCLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(SUBCLASS_NAME)).thenReturn(TestSubclass.class);
+
+        List<TestClass> instances = Lists.newArrayList(new TestClass(), new TestClass(), new TestSubclass(), null);
+        _registry.registerInstances(instances);
+
+        // One field for each instance, and the overridden method of the subclass
+        List<Variable> variables = Lists.newArrayList(_registry.getVariables());
+        assertEquals(4, variables.size());
+        Collection<Object> bound = Sets.newIdentityHashSet();
+        for (Variable variable : variables) {
+            bound.add(variable.getInstance());
+        }
+        assertEquals(3, bound.size());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        // Scan and find the class up front, the mocks aren't meant to be called from several threads at once
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+
+        final int threadCount = 8;
+        final int instancesPerThread = 1000;
+        final List<Object> instances = Collections.synchronizedList(Lists.newArrayList());
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean registering = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+        try {
+            List<Future<?>> registrations = Lists.newArrayList();
+            for (int i = 0; i < threadCount; i++) {
+                final boolean bulk = (i % 2 == 0);
+                registrations.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        List<TestClass> mine = Lists.newArrayList();
+                        for (int j = 0; j < instancesPerThread; j++) {
+                            TestClass instance = new TestClass();
+                            mine.add(instance);
+                            if (!bulk) {
+                                _registry.registerInstance(instance);
+                            }
+                        }
+                        if (bulk) {
+                            _registry.registerInstances(mine);
+                        }
+                        instances.addAll(mine);
+                        return null;
+                    }
+                }));
+            }
+
+            // Scrape the whole time, a scrape must never fail or see a half registered instance
+            Future<?> scrapes = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (registering.get()) {
+                        for (Variable variable : _registry.getVariables()) {
+                            assertEquals(0, variable.getValue());
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            start.countDown();
+            for (Future<?> registration : registrations) {
+                registration.get(30, TimeUnit.SECONDS);
+            }
+            registering.set(false);
+            scrapes.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threadCount * instancesPerThread, instances.size());
+        assertEquals(threadCount * instancesPerThread + 1, Iterables.size(_registry.getVariables()));
+    }
+
+    @Test
+    public void testClosingRegistrationRemovesVariables() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass instance = new TestClass();
+        TestClass other = new TestClass();
+        Registration registration = _registry.registerInstance(instance);
+        _registry.registerInstance(other);
+        assertEquals(2, Iterables.size(_registry.getVariables()));
+
+        registration.close();
+        registration.close();
+        assertEquals(other, Iterables.getOnlyElement(_registry.getVariables()).getInstance());
+        assertEquals(1, _registry.getRegisteredInstanceCount());
+    }
+
+    @Test
+    public void testClosingDuplicateRegistration() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass instance = new TestClass();
+        Registration first = _registry.registerInstance(instance);
+        Registration second = _registry.registerInstance(instance);
+        assertEquals(1, _registry.getRegisteredInstanceCount());
+
+        // The instance stays until every registration of it has been closed
+        second.close();
+        second.close();
+        assertEquals(instance, Iterables.getOnlyElement(_registry.getVariables()).getInstance());
+
+        first.close();
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+
+        // And can be registered again afterwards
+        _registry.registerInstance(instance);
+        assertEquals(1, _registry.getRegisteredInstanceCount());
+    }
+
+    @Test
+    public void testClosingBulkRegistration() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        List<TestClass> instances = Lists.newArrayList(new TestClass(), new TestClass());
+        Registration registration = _registry.registerInstances(instances);
+        assertEquals(2, Iterables.size(_registry.getVariables()));
+
+        registration.close();
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+    }
+
+    @Test
+    public void testClosingRegistrationDuringBackgroundScan() throws Exception {
+        final CountDownLatch finishScan = new CountDownLatch(1);
+        final List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenAnswer(new Answer<List<FieldEntry>>() {
+            @Override
+            public List<FieldEntry> answer(InvocationOnMock invocation) throws InterruptedException {
+                finishScan.await();
+                return fields;
+            }
+        });
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        ListenableFuture<Void> future = _registry.scanInBackground();
+        TestClass instance = new TestClass();
+        _registry.registerInstance(instance).close();
+
+        finishScan.countDown();
+        future.get(10, TimeUnit.SECONDS);
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+    }
+
+    @Test
+    public void testCollectedInstancesArePurged() throws Exception {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass survivor = new TestClass();
+        _registry.registerInstance(survivor);
+        _registry.registerInstances(Lists.newArrayList(new TestClass(), new TestClass()));
+        assertEquals(3, _registry.getRegisteredInstanceCount());
+
+        for (int i = 0; i < 100 && _registry.getRegisteredInstanceCount() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, _registry.getRegisteredInstanceCount());
+        assertEquals(survivor, Iterables.getOnlyElement(_registry.getVariables()).getInstance());
+    }
+
+    @Test
+    public void testGetVariablesByPrefix() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME, FIELD_NAME);
+        List<MethodEntry> methods = mockMethods(CLASS_NAME, STATIC_METHOD_NAME, METHOD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_scanner.getMethodsAnnotatedWith(Foo.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        TestClass instance = new TestClass();
+        _registry.registerInstance(instance);
+
+        Variable staticField = Iterables.getOnlyElement(_registry.getVariables(STATIC_FIELD_NAME));
+        assertEquals(STATIC_FIELD_NAME, staticField.getName());
+        assertEquals(null, staticField.getInstance());
+
+        Variable field = Iterables.getOnlyElement(_registry.getVariables(FIELD_NAME));
+        assertEquals(FIELD_NAME, field.getName());
+        assertEquals(instance, field.getInstance());
+
+        assertTrue(Iterables.isEmpty(_registry.getVariables("unknown")));
+        assertEquals(4, Iterables.size(_registry.getVariables("")));
+    }
+
+    @Test
+    public void testGetVariablesMatching() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME, FIELD_NAME);
+        List<MethodEntry> methods = mockMethods(CLASS_NAME, STATIC_METHOD_NAME, METHOD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_scanner.getMethodsAnnotatedWith(Foo.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        _registry.registerInstances(Lists.newArrayList(new TestClass(), new TestClass()));
+
+        Set<String> names = Sets.newHashSet();
+        for (Variable variable : _registry.getVariablesMatching("static*")) {
+            names.add(variable.getName());
+        }
+        assertEquals(Sets.newHashSet(STATIC_FIELD_NAME, STATIC_METHOD_NAME), names);
+
+        // One for each of the instances
+        assertEquals(2, Iterables.size(_registry.getVariablesMatching("meth?d")));
+    }
+
+    @Test
+    public void testIndexFollowsRegistrations() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        assertTrue(Iterables.isEmpty(_registry.getVariables(FIELD_NAME)));
+
+        TestClass instance = new TestClass();
+        Registration registration = _registry.registerInstance(instance);
+        Iterable<Variable> variables = _registry.getVariables(FIELD_NAME);
+        assertEquals(instance, Iterables.getOnlyElement(variables).getInstance());
+
+        registration.close();
+        assertTrue(Iterables.isEmpty(_registry.getVariables(FIELD_NAME)));
+    }
+
+    @Test
+    public void testIndexDropsStaticVariablesOfUnloadedClassLoader() throws Exception {
+        List<FieldEntry> fields = mockFields(UNLOADABLE_CLASS_NAME, "unloadableField");
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+
+        List<WeakReference<ClassLoader>> loaderReference = Lists.newArrayList();
+        VariableRegistry registry = newRegistryWithUnloadableClass(loaderReference);
+        assertEquals(1, Iterables.size(registry.getVariables("unloadableField")));
+
+        clearSoftReferences();
+        for (int i = 0; i < 100 && registry.getLivePartitionCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, registry.getLivePartitionCount());
+        assertTrue(Iterables.isEmpty(registry.getVariables("unloadableField")));
+    }
+
+    @Test
+    public void testSnapshotIsReusedUntilVariablesChange() {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        VariableSnapshot first = _registry.getSnapshot();
+        assertEquals(1, first.getVariables().size());
+        assertTrue(first == _registry.getSnapshot());
+        assertEquals(first.getVersion(), _registry.getVersion());
+
+        TestClass instance = new TestClass();
+        Registration registration = _registry.registerInstance(instance);
+        VariableSnapshot second = _registry.getSnapshot();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(2, second.getVariables().size());
+        assertEquals(1, first.getVariables().size());
+
+        // Registering the same instance again changes nothing
+        Registration again = _registry.registerInstance(instance);
+        assertTrue(second == _registry.getSnapshot());
+
+        registration.close();
+        again.close();
+        VariableSnapshot third = _registry.getSnapshot();
+        assertTrue(third.getVersion() > second.getVersion());
+        assertEquals(1, third.getVariables().size());
+    }
+
+    @Test
+    public void testSnapshotVersionChangesWhenInstanceIsCollected() throws Exception {
+        List<FieldEntry> fields = mockFields(CLASS_NAME, FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+
+        _registry.registerInstance(new TestClass());
+        long version = _registry.getVersion();
+
+        for (int i = 0; i < 100 && _registry.getVersion() == version; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        VariableSnapshot snapshot = _registry.getSnapshot();
+        assertTrue(snapshot.getVersion() > version);
+        assertTrue(snapshot.getVariables().isEmpty());
+    }
+
+    @Test
+    public void testProvidedVariables() {
+        Variable shard = mockVariable("shards.1.size");
+        Registration registration = _registry.registerProvider(newProvider(shard));
+
+        assertEquals(shard, Iterables.getOnlyElement(_registry.getVariables()));
+        assertEquals(shard, Iterables.getOnlyElement(_registry.getVariables("shards")));
+        assertEquals(shard, Iterables.getOnlyElement(_registry.getVariablesMatching("shards.*.size")));
+        assertTrue(Iterables.isEmpty(_registry.getVariables("shards.2")));
+        assertTrue(Iterables.isEmpty(_registry.getVariablesMatching("*.size")));
+
+        registration.close();
+        assertTrue(Iterables.isEmpty(_registry.getVariables()));
+    }
+
+    @Test
+    public void testProvidedVariablesAreAskedForOnEveryScrape() {
+        List<Variable> provided = Lists.newArrayList(mockVariable("shards.1.size"));
+        _registry.registerProvider(newProvider(provided));
+        assertEquals(1, Iterables.size(_registry.getVariables()));
+
+        provided.add(mockVariable("shards.2.size"));
+        assertEquals(2, Iterables.size(_registry.getVariables()));
+    }
+
+    @Test
+    public void testSnapshotVersionFollowsProvidedVariables() {
+        List<Variable> provided = Lists.newArrayList(mockVariable("shards.1.size"));
+        _registry.registerProvider(newProvider(provided));
+
+        VariableSnapshot first = _registry.getSnapshot();
+        assertEquals(1, first.getVariables().size());
+        assertTrue(first == _registry.getSnapshot());
+
+        provided.add(mockVariable("shards.2.size"));
+        VariableSnapshot second = _registry.getSnapshot();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(2, second.getVariables().size());
+    }
+
+    @Test
+    public void testBrokenProviderDoesNotHideOtherVariables() {
+        VariableProvider broken = mock(VariableProvider.class);
+        when(broken.getVariables()).thenThrow(new IllegalStateException());
+        Variable shard = mockVariable("shards.1.size");
+        _registry.registerProvider(broken);
+        _registry.registerProvider(newProvider(shard));
+
+        assertEquals(shard, Iterables.getOnlyElement(_registry.getSnapshot().getVariables()));
+    }
+
+    @Test
+    public void testAggregatedVariables() {
+        VariableRegistry registry = newWorkerRegistry();
+        List<Worker> workers = Lists.newArrayList(new Worker(1, 2.0), new Worker(5, 3.0), new Worker(3, 7.0));
+        registry.registerInstances(workers);
+
+        Map<String, Variable> variables = Maps.newHashMap();
+        for (Variable variable : registry.getVariables()) {
+            assertEquals(null, variables.put(variable.getName(), variable));
+        }
+        assertEquals(Sets.newHashSet("worker.busy", "worker.count", "worker.minBusy", "worker.maxBusy",
+                "worker.latency"), variables.keySet());
+
+        assertEquals(9L, variables.get("worker.busy").getValue());
+        assertEquals(Long.class, variables.get("worker.busy").getType());
+        assertEquals(3L, variables.get("worker.count").getValue());
+        assertEquals(1L, variables.get("worker.minBusy").getValue());
+        assertEquals(5L, variables.get("worker.maxBusy").getValue());
+        assertEquals(4.0, variables.get("worker.latency").getValue());
+        assertEquals(Double.class, variables.get("worker.latency").getType());
+
+        workers.get(0).busy = 10;
+        assertEquals(18L, variables.get("worker.busy").getValue());
+    }
+
+    @Test
+    public void testAggregatedVariablesWithoutInstances() {
+        VariableRegistry registry = newWorkerRegistry();
+        Registration registration = registry.registerInstance(new Worker(1, 1.0));
+        registration.close();
+
+        Map<String, Object> values = Maps.newHashMap();
+        for (Variable variable : registry.getVariables()) {
+            values.put(variable.getName(), variable.getValue());
+        }
+        assertEquals(0L, values.get("worker.busy"));
+        assertEquals(0L, values.get("worker.count"));
+        assertEquals(null, values.get("worker.minBusy"));
+        assertEquals(null, values.get("worker.latency"));
+    }
+
+    @Test
+    public void testAggregatedVariablesAreIndexed() {
+        VariableRegistry registry = newWorkerRegistry();
+        Worker worker = new Worker(2, 1.0);
+        registry.registerInstance(worker);
+
+        assertEquals(2L, Iterables.getOnlyElement(registry.getVariables("worker.busy")).getValue());
+        assertEquals(2, Iterables.size(registry.getVariablesMatching("worker.*Busy")));
+    }
+
+    @Test
+    public void testConflictingAggregatedMembersAreLeftOut() {
+        AnnotationScanner scanner = mock(AnnotationScanner.class);
+        List<FieldEntry> fields = Lists.newArrayList(Iterables.concat(
+                mockFields(WORKER_CLASS_NAME, "busy", "id", "busyToo", "busyAsWell"),
+                mockFields(CONFLICTING_WORKER_CLASS_NAME, "busy", "busyToo")));
+        List<MethodEntry> methods = mockMethods(WORKER_CLASS_NAME, "latency");
+        when(scanner.getFieldsAnnotatedWith(Monitored.class)).thenReturn(fields);
+        when(scanner.getMethodsAnnotatedWith(Monitored.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(WORKER_CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(WORKER_CLASS_NAME)).thenReturn(Worker.class);
+        when(_detector.isClassLoaded(CONFLICTING_WORKER_CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CONFLICTING_WORKER_CLASS_NAME)).thenReturn(ConflictingWorker.class);
+        VariableRegistry registry = new VariableRegistry(Monitored.class, scanner, _namingStrategy, _detector);
+
+        registry.registerInstance(new Worker(2, 1.0));
+        registry.registerInstance(new ConflictingWorker());
+
+        // Neither the member that aggregates differently nor the one that isn't a whole number is combined
+        assertEquals(2L, Iterables.getOnlyElement(registry.getVariables("worker.busy")).getValue());
+        assertEquals(Long.class, Iterables.getOnlyElement(registry.getVariables("worker.minBusy")).getType());
+        assertEquals(2L, Iterables.getOnlyElement(registry.getVariables("worker.minBusy")).getValue());
+    }
+
+    private VariableRegistry newWorkerRegistry() {
+        AnnotationScanner scanner = mock(AnnotationScanner.class);
+        List<FieldEntry> fields = mockFields(WORKER_CLASS_NAME, "busy", "id", "busyToo", "busyAsWell");
+        List<MethodEntry> methods = mockMethods(WORKER_CLASS_NAME, "latency");
+        when(scanner.getFieldsAnnotatedWith(Monitored.class)).thenReturn(fields);
+        when(scanner.getMethodsAnnotatedWith(Monitored.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(WORKER_CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(WORKER_CLASS_NAME)).thenReturn(Worker.class);
+        return new VariableRegistry(Monitored.class, scanner, _namingStrategy, _detector);
+    }
+
+    @Test
+    public void testExpensiveVariablesAreLeftOut() {
+        VariableRegistry registry = newReportRegistry();
+        registry.registerInstance(new Report());
+
+        assertEquals(Sets.newHashSet("report.cached", "report.rows"), names(registry.getVariables()));
+        assertEquals(Sets.newHashSet("report.cached", "report.rows"),
+                names(registry.getSnapshot().getVariables()));
+        assertEquals(Sets.newHashSet("report.cached"), names(registry.getVariables(Cost.CHEAP)));
+        assertEquals(Sets.newHashSet("report.cached", "report.rows", "report.history", "report.checksum",
+                "report.size"), names(registry.getVariables(Cost.EXPENSIVE)));
+    }
+
+    @Test
+    public void testExpensiveVariablesAreLeftOutOfLookups() {
+        VariableRegistry registry = newReportRegistry();
+        registry.registerInstance(new Report());
+
+        assertEquals(Sets.newHashSet("report.cached", "report.rows"), names(registry.getVariables("report")));
+        assertEquals(5, Iterables.size(registry.getVariables("report", Cost.EXPENSIVE)));
+        assertEquals(Sets.newHashSet("report.cached"), names(registry.getVariablesMatching("report.*", Cost.CHEAP)));
+        assertEquals(Sets.newHashSet("report.checksum"),
+                names(registry.getVariablesMatching("report.check*", Cost.EXPENSIVE)));
+    }
+
+    @Test
+    public void testVariablesNamed() {
+        VariableRegistry registry = newReportRegistry();
+        registry.registerInstance(new Report());
+        Variable provided = mockVariable("report.provided");
+        registry.registerProvider(newProvider(provided));
+
+        assertEquals(42, Iterables.getOnlyElement(registry.getVariablesNamed("report.checksum")).getValue());
+        assertEquals(3L, Iterables.getOnlyElement(registry.getVariablesNamed("report.size")).getValue());
+        assertEquals(Report.history, Iterables.getOnlyElement(registry.getVariablesNamed("report.history")).getValue());
+        assertEquals(provided, Iterables.getOnlyElement(registry.getVariablesNamed("report.provided")));
+        assertTrue(Iterables.isEmpty(registry.getVariablesNamed("report")));
+    }
+
+    private VariableRegistry newReportRegistry() {
+        AnnotationScanner scanner = mock(AnnotationScanner.class);
+        List<FieldEntry> fields = mockFields(REPORT_CLASS_NAME, "cached", "history", "rows");
+        List<MethodEntry> methods = mockMethods(REPORT_CLASS_NAME, "checksum", "size");
+        when(scanner.getFieldsAnnotatedWith(Monitored.class)).thenReturn(fields);
+        when(scanner.getMethodsAnnotatedWith(Monitored.class)).thenReturn(methods);
+        when(_detector.isClassLoaded(REPORT_CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(REPORT_CLASS_NAME)).thenReturn(Report.class);
+        return new VariableRegistry(Monitored.class, scanner, _namingStrategy, _detector);
+    }
+
+    private static Set<String> names(Iterable<Variable> variables) {
+        Set<String> names = Sets.newHashSet();
+        for (Variable variable : variables) {
+            names.add(variable.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testLivePartitionCount() {
+        assertEquals(0, _registry.getLivePartitionCount());
+
+        List<FieldEntry> fields = mockFields(CLASS_NAME, STATIC_FIELD_NAME);
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+        when(_detector.isClassLoaded(CLASS_NAME)).thenReturn(true);
+        when((Class) _detector.getLoadedClass(CLASS_NAME)).thenReturn(TestClass.class);
+        _registry.getVariables();
+
+        assertEquals(1, _registry.getLivePartitionCount());
+    }
+
+    @Test
+    public void testStaticVariablesOfUnloadedClassLoaderArePurged() throws Exception {
+        List<FieldEntry> fields = mockFields(UNLOADABLE_CLASS_NAME, "unloadableField");
+        when(_scanner.getFieldsAnnotatedWith(Foo.class)).thenReturn(fields);
+
+        List<WeakReference<ClassLoader>> loaderReference = Lists.newArrayList();
+        VariableRegistry registry = newRegistryWithUnloadableClass(loaderReference);
+
+        // Nothing but the test itself should be keeping the class loader from being collected, once the members that
+        // are cached softly have been let go of
+        clearSoftReferences();
+        for (int i = 0; i < 100 && registry.getLivePartitionCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(null, loaderReference.get(0).get());
+        assertEquals(0, registry.getLivePartitionCount());
+        assertTrue(Iterables.isEmpty(registry.getVariables()));
+    }
+
+    /** The JVM clears every soft reference before it gives up on an allocation, so make it give up on one. */
+    private static void clearSoftReferences() {
+        List<long[]> hog = Lists.newArrayList();
+        try {
+            while (true) {
+                hog.add(new long[Integer.MAX_VALUE / 2]);
+            }
+        } catch (OutOfMemoryError e) {
+            hog.clear();
+        }
+    }
+
+    private VariableRegistry newRegistryWithUnloadableClass(List<WeakReference<ClassLoader>> loaderReference)
+            throws IOException {
+        ChildFirstClassLoader loader = new ChildFirstClassLoader();
+        loader.define(UNLOADABLE_CLASS_NAME);
+        loaderReference.add(new WeakReference<ClassLoader>(loader));
+
+        VariableRegistry registry = new VariableRegistry(Foo.class, _scanner, _namingStrategy,
+                new ReflectionClassDetector(ImmutableList.<ClassLoader>of(loader)));
+        Variable variable = Iterables.getOnlyElement(registry.getVariables());
+        assertEquals(42, variable.getValue());
+        assertEquals(loader, variable.getOwner().getClassLoader());
+        assertEquals(1, registry.getLivePartitionCount());
+        return registry;
+    }
+
+    private static Variable mockVariable(String name) {
+        Variable variable = mock(Variable.class);
+        when(variable.getName()).thenReturn(name);
+        return variable;
+    }
+
+    private static VariableProvider newProvider(Variable... variables) {
+        return newProvider(Lists.newArrayList(variables));
+    }
+
+    private static VariableProvider newProvider(final List<Variable> variables) {
+        return new VariableProvider() {
+            @Override
+            public Iterable<Variable> getVariables() {
+                return variables;
+            }
+        };
+    }
+
     private static List<FieldEntry> mockFields(String className, String... fieldNames) {
         List<FieldEntry> entries = Lists.newArrayList();
         for (String fieldName : fieldNames) {
@@ -286,12 +1233,29 @@ public class VariableRegistryTest {
     @Target({ElementType.FIELD, ElementType.METHOD, ElementType.TYPE})
     public @interface Foo {}
 
+    private static class FakeTicker extends Ticker {
+        private long _nanos = 0;
+
+        @Override
+        public long read() {
+            return _nanos;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            _nanos += unit.toNanos(duration);
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////
     // Helper names and class.
     // These names should all be compatible with the fields and methods in the test class
     /////////////////////////////////////////////////////////////////////////////////////
 
     private static final String CLASS_NAME = TestClass.class.getName();
+    private static final String WORKER_CLASS_NAME = Worker.class.getName();
+    private static final String CONFLICTING_WORKER_CLASS_NAME = ConflictingWorker.class.getName();
+    private static final String REPORT_CLASS_NAME = Report.class.getName();
+    private static final String UNLOADABLE_CLASS_NAME = Unloadable.class.getName();
     private static final String SUBCLASS_NAME = TestSubclass.class.getName();
     private static final String STATIC_FIELD_NAME = "staticField";
     private static final String STATIC_METHOD_NAME = "staticMethod";
@@ -319,4 +1283,91 @@ public class VariableRegistryTest {
     private static class TestSubclass extends TestClass {
         @Foo @Override public int methodToOverride() { return 1; }
     }
+
+    @SuppressWarnings("unused")
+    private static class Worker {
+        @Monitored(value = "worker.busy", aggregate = Aggregate.SUM) public int busy;
+        @Monitored(value = "worker.count", aggregate = Aggregate.COUNT) public int id;
+        @Monitored(value = "worker.minBusy", aggregate = Aggregate.MIN) public int busyToo;
+        @Monitored(value = "worker.maxBusy", aggregate = Aggregate.MAX) public Integer busyAsWell;
+        private final double _latency;
+
+        Worker(int busy, double latency) {
+            this.busy = busy;
+            busyToo = busy;
+            busyAsWell = busy;
+            _latency = latency;
+        }
+
+        @Monitored(value = "worker.latency", aggregate = Aggregate.AVG)
+        public double latency() {
+            return _latency;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static class ConflictingWorker {
+        @Monitored(value = "worker.busy", aggregate = Aggregate.MAX) public int busy = 100;
+        @Monitored(value = "worker.minBusy", aggregate = Aggregate.MIN) public double busyToo = 0.5;
+    }
+
+    @SuppressWarnings("unused")
+    private static class Report {
+        @Monitored(value = "report.cached", cost = Cost.CHEAP) public static int cached = 1;
+        @Monitored(value = "report.history", cost = Cost.EXPENSIVE) public static String history = "history";
+        @Monitored("report.rows") public int rows = 2;
+
+        @Monitored(value = "report.checksum", cost = Cost.EXPENSIVE)
+        public int checksum() {
+            return 42;
+        }
+
+        @Monitored(value = "report.size", aggregate = Aggregate.SUM, cost = Cost.EXPENSIVE)
+        public int size() {
+            return 3;
+        }
+    }
+
+    /** Defined again by a class loader of its own, so that it can be unloaded. */
+    public static class Unloadable {
+        @Foo public static int unloadableField = 42;
+    }
+
+    /** A registry that uses the agent, which reports the classes that the test class loaders defined. */
+    private VariableRegistry newAgentRegistry() {
+        return newAgentRegistry(Ticker.systemTicker());
+    }
+
+    private VariableRegistry newAgentRegistry(Ticker ticker) {
+        return new VariableRegistry(Foo.class, _scanner, _namingStrategy, _detector, true, ticker) {
+            @Override
+            Class<?>[] getInitiatedClasses(ClassLoader loader) {
+                if (loader instanceof ChildFirstClassLoader) {
+                    return ((ChildFirstClassLoader) loader)._definedClasses.toArray(new Class<?>[0]);
+                }
+                return new Class<?>[] {TestClass.class, Foo.class};
+            }
+        };
+    }
+
+    /** Defines classes itself instead of delegating to the class loader that loaded the tests. */
+    private static class ChildFirstClassLoader extends ClassLoader {
+        private final List<Class<?>> _definedClasses = Lists.newArrayList();
+
+        ChildFirstClassLoader() {
+            super(VariableRegistryTest.class.getClassLoader());
+        }
+
+        Class<?> define(String className) throws IOException {
+            InputStream in = getParent().getResourceAsStream(className.replace('.', '/') + ".class");
+            try {
+                byte[] bytes = ByteStreams.toByteArray(in);
+                Class<?> cls = defineClass(className, bytes, 0, bytes.length);
+                _definedClasses.add(cls);
+                return cls;
+            } finally {
+                in.close();
+            }
+        }
+    }
 }
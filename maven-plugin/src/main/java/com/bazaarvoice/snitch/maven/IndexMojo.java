@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.maven;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.bazaarvoice.snitch.scanner.IndexBuilder;
+import com.bazaarvoice.snitch.scanner.ScanFilter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scans the project's classes and its resolved dependency jars for monitored members, and writes them into the
+ * {@value IndexAnnotationScanner#INDEX_RESOURCE} resource of the artifact being built.  At runtime Snitch reads the
+ * index instead of scanning the artifact.  The index also vouches for each dependency jar by a fingerprint of its
+ * classes, so third party jars that the annotation processor never saw aren't scanned either, as long as the same jar
+ * is on the class path at runtime.  Dependency jars are always indexed as a whole, whatever the packages to index.
+ * <p/>
+ * An index that is already there, such as the one written by the annotation processor, is merged: its lines for
+ * annotation classes that the plugin indexes are replaced by what the scan finds, every other line is kept.
+ *
+ * @goal index
+ * @phase prepare-package
+ * @requiresDependencyResolution runtime
+ * @threadSafe
+ */
+public class IndexMojo extends AbstractMojo {
+    /**
+     * @parameter default-value="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * The directory holding the project's compiled classes, the index is written into it.
+     *
+     * @parameter default-value="${project.build.outputDirectory}"
+     * @required
+     */
+    private File outputDirectory;
+
+    /**
+     * Fully qualified names of the annotation classes to index, defaults to {@link Monitored}.
+     *
+     * @parameter
+     */
+    private List<String> annotations = Collections.emptyList();
+
+    /**
+     * Packages to index, defaults to every package.  The index only covers the classes of these packages, an artifact
+     * that holds classes of other packages that Snitch is configured to look at is scanned at runtime.
+     *
+     * @parameter
+     */
+    private List<String> packages = Collections.emptyList();
+
+    /**
+     * Packages not to index, even when they're inside of an indexed package.
+     *
+     * @parameter
+     */
+    private List<String> excludePackages = Collections.emptyList();
+
+    /**
+     * Globs of the dependency jar file names to index, defaults to every jar.  Jars that aren't indexed are scanned
+     * at runtime.
+     *
+     * @parameter
+     */
+    private List<String> jars = Collections.emptyList();
+
+    /**
+     * Globs of the dependency jar file names not to index.
+     *
+     * @parameter
+     */
+    private List<String> excludeJars = Collections.emptyList();
+
+    /**
+     * Skip indexing.
+     *
+     * @parameter property="snitch.index.skip" default-value="false"
+     */
+    private boolean skip;
+
+    public IndexMojo() {
+    }
+
+    @VisibleForTesting
+    IndexMojo(MavenProject project, File outputDirectory) {
+        this.project = project;
+        this.outputDirectory = outputDirectory;
+    }
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping snitch index");
+            return;
+        }
+
+        ScanFilter filter = new ScanFilter(packages, excludePackages, jars, excludeJars);
+        List<File> dependencies = Lists.newArrayList();
+        for (Artifact artifact : project.getArtifacts()) {
+            File file = artifact.getFile();
+            if (file != null && file.isFile() && filter.includesJar(file.getName())) {
+                dependencies.add(file);
+            }
+        }
+
+        List<File> units = Lists.newArrayList(dependencies);
+        if (outputDirectory.isDirectory()) {
+            units.add(0, outputDirectory);
+        }
+
+        File indexFile = new File(outputDirectory, IndexAnnotationScanner.INDEX_RESOURCE);
+        IndexBuilder builder = new IndexBuilder(loadAnnotationClasses(units), filter);
+        try {
+            if (indexFile.isFile()) {
+                mergeExistingIndex(indexFile, builder);
+            }
+            if (outputDirectory.isDirectory()) {
+                getLog().debug("Indexing " + outputDirectory);
+                builder.scan(outputDirectory);
+            }
+            for (File dependency : dependencies) {
+                getLog().debug("Indexing " + dependency);
+                if (!builder.scanDependency(dependency)) {
+                    getLog().info("Not indexing " + dependency + ", it holds libraries of its own");
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to index " + project.getArtifactId(), e);
+        }
+
+        // Written even without any members, the index still spares Snitch from scanning the artifact at runtime
+        writeIndex(indexFile, builder);
+    }
+
+    /** Keep the lines of an existing index that the scan won't find again, malformed lines are dropped. */
+    private void mergeExistingIndex(File indexFile, IndexBuilder builder) throws IOException {
+        int lineNumber = 0;
+        for (String line : Files.readLines(indexFile, Charsets.UTF_8)) {
+            lineNumber++;
+            try {
+                builder.addExisting(line);
+            } catch (IllegalArgumentException e) {
+                getLog().warn("Dropping line " + lineNumber + " of " + indexFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load the annotation classes from the project's class path.  Only their names are needed to find them in the
+     * bytecode, but custom annotation classes are generally not visible to the plugin itself.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Class<? extends Annotation>> loadAnnotationClasses(List<File> units) throws MojoExecutionException {
+        if (annotations.isEmpty()) {
+            return Collections.<Class<? extends Annotation>>singleton(Monitored.class);
+        }
+
+        URL[] urls = new URL[units.size()];
+        try {
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = units.get(i).toURI().toURL();
+            }
+        } catch (MalformedURLException e) {
+            throw new MojoExecutionException("Unable to build the project class path", e);
+        }
+
+        ClassLoader loader = new URLClassLoader(urls, getClass().getClassLoader());
+        Set<Class<? extends Annotation>> annotationClasses = Sets.newHashSet();
+        for (String name : annotations) {
+            Class<?> cls;
+            try {
+                cls = Class.forName(name, false, loader);
+            } catch (ClassNotFoundException e) {
+                throw new MojoExecutionException("Unable to find annotation class " + name, e);
+            }
+            if (!cls.isAnnotation()) {
+                throw new MojoExecutionException(name + " isn't an annotation class");
+            }
+            annotationClasses.add((Class<? extends Annotation>) cls);
+        }
+        return annotationClasses;
+    }
+
+    private void writeIndex(File indexFile, IndexBuilder builder) throws MojoExecutionException {
+        if (!indexFile.getParentFile().isDirectory() && !indexFile.getParentFile().mkdirs()) {
+            throw new MojoExecutionException("Unable to create directory " + indexFile.getParentFile());
+        }
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(indexFile), Charsets.UTF_8);
+            builder.write(writer);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write " + indexFile, e);
+        } finally {
+            Closeables.closeQuietly(writer);
+        }
+
+        getLog().info("Wrote snitch index to " + indexFile);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Bazaarvoice
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bazaarvoice.snitch.maven;
+
+import com.bazaarvoice.snitch.Monitored;
+import com.bazaarvoice.snitch.scanner.AnnotationScanner;
+import com.bazaarvoice.snitch.scanner.ClassPathAnnotationScanner;
+import com.bazaarvoice.snitch.scanner.IndexAnnotationScanner;
+import com.bazaarvoice.snitch.scanner.ScanFilter;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.project.MavenProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IndexMojoTest {
+    private static final String MONITORED = Monitored.class.getName();
+    private static final String INDEXED = Indexed.class.getName();
+    private static final String DEPENDENCY = Dependency.class.getName();
+    private static final String COVERS = "covers " + IndexMojoTest.class.getName();
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    private File _outputDirectory;
+    private File _indexFile;
+    private IndexMojo _mojo;
+
+    @Before
+    public void setUp() throws Exception {
+        // The output directory only holds the annotated class
+        _outputDirectory = _tempFolder.newFolder("classes");
+        String path = INDEXED.replace('.', '/') + ".class";
+        File classFile = new File(_outputDirectory, path);
+        Files.createParentDirs(classFile);
+        Files.copy(new File(classPathRoot(), path), classFile);
+        _indexFile = new File(_outputDirectory, IndexAnnotationScanner.INDEX_RESOURCE);
+
+        MavenProject project = mock(MavenProject.class);
+        when(project.getArtifacts()).thenReturn(Collections.<Artifact>emptySet());
+        _mojo = new IndexMojo(project, _outputDirectory);
+    }
+
+    @Test
+    public void testIndexIsWritten() throws Exception {
+        _mojo.execute();
+
+        assertEquals(ImmutableList.of("annotation " + MONITORED, COVERS,
+                                      "field " + MONITORED + " " + INDEXED + " count"), readIndex());
+    }
+
+    @Test
+    public void testExistingIndexIsMerged() throws Exception {
+        Files.createParentDirs(_indexFile);
+        Files.write("annotation " + MONITORED + "\n" +
+                    "annotation com.example.Other\n" +
+                    "covers com.example.Foo\n" +
+                    "field " + MONITORED + " " + INDEXED + " removed\n" +
+                    "field com.example.Other com.example.Foo size\n" +
+                    "field com.example.Other com.example.Foo\n", _indexFile, Charsets.UTF_8);
+
+        _mojo.execute();
+
+        // Only what the mojo scanned itself is declared and covered
+        assertEquals(ImmutableList.of("annotation " + MONITORED, COVERS,
+                                      "field " + MONITORED + " " + INDEXED + " count",
+                                      "field com.example.Other com.example.Foo size"), readIndex());
+    }
+
+    @Test
+    public void testDependencyIsNotScannedAtRuntime() throws Exception {
+        File dependency = newDependencyJar();
+        Artifact artifact = mock(Artifact.class);
+        when(artifact.getFile()).thenReturn(dependency);
+        MavenProject project = mock(MavenProject.class);
+        when(project.getArtifacts()).thenReturn(Collections.singleton(artifact));
+        new IndexMojo(project, _outputDirectory).execute();
+
+        // A scanner only writes its cache file once it has scanned something
+        File cacheFile = new File(_tempFolder.getRoot(), "scan.cache");
+        ClassLoader loader = new URLClassLoader(new URL[] {_outputDirectory.toURI().toURL(),
+                dependency.toURI().toURL()}, null);
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        List<AnnotationScanner.FieldEntry> entries;
+        try {
+            ClassPathAnnotationScanner.clearSharedResults();
+            ClassPathAnnotationScanner scanner = new ClassPathAnnotationScanner(1, cacheFile,
+                    new ScanFilter(ImmutableList.of(IndexMojoTest.class.getPackage().getName())));
+            scanner.addAnnotationClass(Monitored.class);
+            entries = scanner.getFieldsAnnotatedWith(Monitored.class);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+
+        Set<String> fields = Sets.newHashSet();
+        for (AnnotationScanner.FieldEntry entry : entries) {
+            fields.add(entry.getClassName() + "." + entry.getFieldName());
+        }
+        assertEquals(ImmutableSet.of(INDEXED + ".count", DEPENDENCY + ".size"), fields);
+        assertFalse(cacheFile.exists());
+    }
+
+    /** Create a jar that only holds the dependency's class, along with the directories of its package. */
+    private File newDependencyJar() throws Exception {
+        File jar = _tempFolder.newFile("dependency.jar");
+        String path = DEPENDENCY.replace('.', '/') + ".class";
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            String directory = "";
+            for (String name : Splitter.on('/').split(path.substring(0, path.lastIndexOf('/')))) {
+                directory += name + "/";
+                out.putNextEntry(new JarEntry(directory));
+            }
+            out.putNextEntry(new JarEntry(path));
+            Files.copy(new File(classPathRoot(), path), out);
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static File classPathRoot() throws URISyntaxException {
+        return new File(IndexMojoTest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private ImmutableList<String> readIndex() throws IOException {
+        return ImmutableList.copyOf(Files.readLines(_indexFile, Charsets.UTF_8));
+    }
+
+    private static final class Indexed {
+        @Monitored int count;
+    }
+
+    private static final class Dependency {
+        @Monitored int size;
+    }
+}
@@ -15,12 +15,18 @@
  */
 package com.bazaarvoice.snitch.servlet;
 
+import com.bazaarvoice.snitch.Cost;
 import com.bazaarvoice.snitch.Formatter;
 import com.bazaarvoice.snitch.Snitch;
 import com.bazaarvoice.snitch.Variable;
+import com.bazaarvoice.snitch.variables.VariableSnapshot;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.google.common.io.Closeables;
 import com.google.gson.stream.JsonWriter;
 
@@ -31,6 +37,8 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Servlet implementation for Snitch that allows the monitored variables to be accessed.  This implementation will emit
@@ -38,8 +46,19 @@ import java.util.Collection;
  */
 public class VariableServlet extends HttpServlet {
     private static final long serialVersionUID = 0L;
+
+    private static final Function<Variable, String> NAME = new Function<Variable, String>() {
+        @Override
+        public String apply(Variable variable) {
+            return variable.getName();
+        }
+    };
+
     private final Snitch _snitch;
 
+    /** All of the variables organized by name, as of the last request for them. */
+    private transient volatile VariablesByName _variablesByName;
+
     public VariableServlet() {
         _snitch = Snitch.getInstance();
     }
@@ -53,14 +72,19 @@ public class VariableServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse response) throws ServletException, IOException {
         addClientNoCacheHeaders(response);
-        response.setContentType("application/json");
 
-        // Organize the variables into a multimap indexed by key
-        Multimap<String, Variable> variables = HashMultimap.create();
-        for (Variable variable : _snitch.getVariables()) {
-            variables.put(variable.getName(), variable);
+        Cost maxCost;
+        try {
+            maxCost = getMaxCost(req);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown cost: " + req.getParameter("cost"));
+            return;
         }
 
+        response.setContentType("application/json");
+
+        Multimap<String, Variable> variables = getVariablesByName(req, maxCost);
+
         JsonWriter writer = new JsonWriter(new BufferedWriter(response.getWriter()));
         writer.setIndent("  ");  // Pretty print by default
 
@@ -88,6 +112,56 @@ public class VariableServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Return the most expensive variables to include, as given by the {@code cost} parameter such as
+     * {@code expensive}.  Expensive variables are left out by default.
+     */
+    private static Cost getMaxCost(HttpServletRequest req) {
+        String cost = req.getParameter("cost");
+        return (cost != null) ? Cost.valueOf(cost.toUpperCase(Locale.ENGLISH)) : Cost.NORMAL;
+    }
+
+    /**
+     * Return the variables asked for, indexed by name.  The {@code name} parameter, which can be repeated, asks for
+     * exactly the named variables whatever they cost to read.  Otherwise the {@code prefix} parameter limits them to a
+     * subtree of dotted names such as {@code jvm.memory}, and the {@code match} parameter to names matching a glob such
+     * as {@code jvm.*.heap}.  Without either, all of the variables are returned and they're only organized by name
+     * again when the set of variables has changed since the last request.
+     */
+    private Multimap<String, Variable> getVariablesByName(HttpServletRequest req, Cost maxCost) {
+        String[] names = req.getParameterValues("name");
+        if (names != null) {
+            List<Iterable<Variable>> named = Lists.newArrayList();
+            for (String name : ImmutableSet.copyOf(names)) {
+                named.add(_snitch.getVariablesNamed(name));
+            }
+            return Multimaps.index(Iterables.concat(named), NAME);
+        }
+
+        String match = req.getParameter("match");
+        if (match != null) {
+            return Multimaps.index(_snitch.getVariablesMatching(match, maxCost), NAME);
+        }
+
+        String prefix = req.getParameter("prefix");
+        if (prefix != null) {
+            return Multimaps.index(_snitch.getVariables(prefix, maxCost), NAME);
+        }
+
+        if (maxCost != Cost.NORMAL) {
+            // Snapshots only have the variables of the default cost
+            return Multimaps.index(_snitch.getVariables(maxCost), NAME);
+        }
+
+        VariableSnapshot snapshot = _snitch.getSnapshot();
+        VariablesByName cached = _variablesByName;
+        if (cached == null || cached._version != snapshot.getVersion()) {
+            cached = new VariablesByName(snapshot.getVersion(), Multimaps.index(snapshot.getVariables(), NAME));
+            _variablesByName = cached;
+        }
+        return cached._variables;
+    }
+
     /**
      * Adds headers to the response which will keep the end-user's browser from caching the response.  Since these
      * values can update each time the servlet is invoked we don't want the browser or query tool to cache values.
@@ -103,4 +177,15 @@ public class VariableServlet extends HttpServlet {
         // "no-store" is necessary to prevent caching on FireFox.
         response.setHeader("Cache-Control", "no-cache, no-store");
     }
+
+    /** The variables of a snapshot organized by name. */
+    private static final class VariablesByName {
+        private final long _version;
+        private final Multimap<String, Variable> _variables;
+
+        VariablesByName(long version, Multimap<String, Variable> variables) {
+            _version = version;
+            _variables = variables;
+        }
+    }
 }
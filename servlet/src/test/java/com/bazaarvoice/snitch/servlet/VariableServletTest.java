@@ -15,10 +15,12 @@
  */
 package com.bazaarvoice.snitch.servlet;
 
+import com.bazaarvoice.snitch.Cost;
 import com.bazaarvoice.snitch.Formatter;
 import com.bazaarvoice.snitch.Snitch;
 import com.bazaarvoice.snitch.Variable;
 import com.bazaarvoice.snitch.formatters.DefaultFormatter;
+import com.bazaarvoice.snitch.variables.VariableSnapshot;
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import org.junit.Test;
@@ -39,6 +41,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -61,10 +65,23 @@ public class VariableServletTest {
         _snitch = mock(Snitch.class);
         when((Formatter) _snitch.getFormatter(Matchers.<Variable>any())).thenReturn(DefaultFormatter.INSTANCE);
         when(_snitch.getVariables()).thenReturn(_variables);
+        when(_snitch.getSnapshot()).thenAnswer(new Answer<VariableSnapshot>() {
+            @Override
+            public VariableSnapshot answer(InvocationOnMock invocation) {
+                // Every new variable is a new version
+                return new VariableSnapshot(_variables.size(), _variables);
+            }
+        });
 
         _request = mock(HttpServletRequest.class);
         _response = mock(HttpServletResponse.class);
-        when(_response.getWriter()).thenReturn(new PrintWriter(_output));
+        when(_response.getWriter()).thenAnswer(new Answer<PrintWriter>() {
+            @Override
+            public PrintWriter answer(InvocationOnMock invocation) {
+                // The servlet closes the writer, so every request needs a new one
+                return new PrintWriter(_output);
+            }
+        });
 
         _servlet = new VariableServlet(_snitch);
     }
@@ -151,6 +168,91 @@ public class VariableServletTest {
         assertTrue(jsonVars.contains(a2.getValue()));
     }
 
+    @Test
+    public void testPrefixParameter() throws IOException, ServletException {
+        Variable heap = defineVariable("jvm.memory.heap", 1);
+        defineVariable("jvm.threads", 2);
+        when(_request.getParameter("prefix")).thenReturn("jvm.memory");
+        when(_snitch.getVariables("jvm.memory", Cost.NORMAL)).thenReturn(Lists.newArrayList(heap));
+
+        _servlet.doGet(_request, _response);
+        assertVariablesInJson(_output.toString(), heap);
+        assertEquals(1, parseJson(_output.toString()).size());
+    }
+
+    @Test
+    public void testMatchParameter() throws IOException, ServletException {
+        Variable heap = defineVariable("jvm.memory.heap", 1);
+        defineVariable("jvm.threads", 2);
+        when(_request.getParameter("match")).thenReturn("jvm.*.heap");
+        when(_snitch.getVariablesMatching("jvm.*.heap", Cost.NORMAL)).thenReturn(Lists.newArrayList(heap));
+
+        _servlet.doGet(_request, _response);
+        assertVariablesInJson(_output.toString(), heap);
+        assertEquals(1, parseJson(_output.toString()).size());
+    }
+
+    @Test
+    public void testCostParameter() throws IOException, ServletException {
+        defineVariable("cheap", 1);
+        Variable expensive = defineVariable("expensive", 2);
+        when(_request.getParameter("cost")).thenReturn("expensive");
+        when(_snitch.getVariables(Cost.EXPENSIVE)).thenReturn(Lists.newArrayList(expensive));
+
+        _servlet.doGet(_request, _response);
+        assertVariablesInJson(_output.toString(), expensive);
+        assertEquals(1, parseJson(_output.toString()).size());
+        verify(_snitch, never()).getSnapshot();
+    }
+
+    @Test
+    public void testCostParameterWithPrefix() throws IOException, ServletException {
+        Variable heap = defineVariable("jvm.memory.heap", 1);
+        when(_request.getParameter("prefix")).thenReturn("jvm.memory");
+        when(_request.getParameter("cost")).thenReturn("CHEAP");
+        when(_snitch.getVariables("jvm.memory", Cost.CHEAP)).thenReturn(Lists.newArrayList(heap));
+
+        _servlet.doGet(_request, _response);
+        assertVariablesInJson(_output.toString(), heap);
+    }
+
+    @Test
+    public void testUnknownCostParameter() throws IOException, ServletException {
+        when(_request.getParameter("cost")).thenReturn("free");
+
+        _servlet.doGet(_request, _response);
+        verify(_response).sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown cost: free");
+        assertEquals("", _output.toString());
+    }
+
+    @Test
+    public void testNameParameter() throws IOException, ServletException {
+        Variable heap = defineVariable("jvm.memory.heap", 1);
+        Variable dump = defineVariable("jvm.memory.dump", "expensive");
+        defineVariable("jvm.threads", 2);
+        when(_request.getParameterValues("name")).thenReturn(new String[] {"jvm.memory.heap", "jvm.memory.dump"});
+        when(_snitch.getVariablesNamed("jvm.memory.heap")).thenReturn(Lists.newArrayList(heap));
+        when(_snitch.getVariablesNamed("jvm.memory.dump")).thenReturn(Lists.newArrayList(dump));
+
+        _servlet.doGet(_request, _response);
+        assertVariablesInJson(_output.toString(), heap, dump);
+        assertEquals(2, parseJson(_output.toString()).size());
+    }
+
+    @Test
+    public void testVariablesAreOrganizedOncePerVersion() throws IOException, ServletException {
+        Variable a = defineVariable("a", 1);
+        _servlet.doGet(_request, _response);
+        _servlet.doGet(_request, _response);
+        verify(a, times(1)).getName();
+
+        Variable b = defineVariable("b", 2);
+        _output.getBuffer().setLength(0);
+        _servlet.doGet(_request, _response);
+        verify(a, times(2)).getName();
+        assertVariablesInJson(_output.toString(), a, b);
+    }
+
     @SuppressWarnings({"unchecked"})
     private <T> Variable defineVariable(String name, final T value) {
         return defineVariable(name, value, (Class<T>) value.getClass());